@@ -0,0 +1,20 @@
+package dbmap;
+
+/**
+ * Statistics about the values in a column of a database table, as collected
+ * by TabularDataConverter when the table was loaded (see
+ * reader.ColumnStatistics).  The statistics can be used to suggest likely ID
+ * columns without scanning the table.
+ */
+public class ColumnStats {
+	public long valueCount;
+	public long blankCount;
+	public int minLength;
+	public int maxLength;
+	// an estimate of the number of distinct non-blank values
+	public long distinctCount;
+	// one of "empty", "integer", "real", "date", or "text"
+	public String type;
+	// true if every value is non-blank and (probably) unique
+	public boolean idCandidate;
+}
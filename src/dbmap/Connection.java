@@ -4,9 +4,12 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.sql.SQLException;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 
 import de.fuberlin.wiwiss.d2rq.map.Database;
+import reader.InMemoryDatabase;
 
 /**
  * Represents a database connection, can be used to generate a JDBC URL, 
@@ -21,6 +24,10 @@ public class Connection
     public String password;
     public String username;
 
+    // the in-memory database this connection refers to, if any (not part of
+    // the JSON representation)
+    private InMemoryDatabase memorydb = null;
+
     /**
      * For construction from JSON.
      */
@@ -37,12 +44,24 @@ public class Connection
         database = sqliteFile.getName();
     }
 
+    /**
+     * Create Connection to an in-memory SQLite database, where
+     * database = database name and host is blank.
+     */
+    public Connection(InMemoryDatabase memorydb) {
+        system = DBsystem.sqlite;
+        host = "";
+        database = memorydb.getName();
+        this.memorydb = memorydb;
+    }
+
     /**
      * Generate a JDBC URL specific to DBsystem.
      * 
      * @return JDBC URL.
      */
-    String getJdbcUrl() {
+    @JsonIgnore
+    public String getJdbcUrl() {
         switch (system) {
             case mysql:
                 return "jdbc:mysql://" + host + "/" + database;
@@ -53,11 +72,37 @@ public class Connection
             case sqlserver:
                 return "jdbc:sqlserver://" + host + ";databaseName=" + database;
             case sqlite:
+                if (memorydb != null)
+                    return memorydb.getUrl();
                 return "jdbc:sqlite:" + host + "/" + database;
         }
         return null;
     }
 
+    /**
+     * Get the JDBC URL that this application uses to connect: the connection
+     * string of the connection's pool (see ConnectionPool), or the JDBC URL
+     * if the connection is not pooled.
+     *
+     * @return JDBC URL.
+     */
+    String getPooledJdbcUrl() {
+        String url = ConnectionPool.getUrl(this);
+        return url == null ? getJdbcUrl() : url;
+    }
+
+    /**
+     * Get the file of a SQLite database.
+     * 
+     * @return The file, or null if this is not a connection to a SQLite file
+     * (e.g., a connection to an in-memory database).
+     */
+    File getSQLiteFile() {
+        if (system != DBsystem.sqlite || memorydb != null)
+            return null;
+        return new File(host + File.separator + database);
+    }
+
     /**
      * Create D2RQ Database from the database connection.
      * 
@@ -65,7 +110,7 @@ public class Connection
      */
     Database getD2RQdatabase() {
         Database database = new Database(ResourceFactory.createResource());
-        database.setJDBCDSN(getJdbcUrl());
+        database.setJDBCDSN(getPooledJdbcUrl());
         database.setUsername(username);
         database.setPassword(password);
         return database;
@@ -77,9 +122,21 @@ public class Connection
      * @param pw PrintWriter used to write output to.
      */
     public void printD2RQ(PrintWriter pw) throws SQLException {
+        printD2RQ(pw, false);
+    }
+
+    /**
+     * Generate D2RQ Mapping Language representation of this Connection.
+     * A pooled representation can only be used by D2RQ in this application,
+     * while the pool is open.
+     *
+     * @param pw PrintWriter used to write output to.
+     * @param pooled Whether to use the connection's pool, if it has one.
+     */
+    public void printD2RQ(PrintWriter pw, boolean pooled) throws SQLException {
         pw.println("map:database a d2rq:Database;");
         pw.println("\td2rq:jdbcDriver \"" + system.driver + "\";");
-        pw.println("\td2rq:jdbcDSN \"" + getJdbcUrl() + "\";");
+        pw.println("\td2rq:jdbcDSN \"" + (pooled ? getPooledJdbcUrl() : getJdbcUrl()) + "\";");
         if (username != null && !username.isEmpty()) {
             pw.println("\td2rq:username \"" + username + "\";");
         }
@@ -93,10 +150,11 @@ public class Connection
     /**
      * For SQLite DBsystems verify if the file exists 
      * in local filesystem, throw exception if not.
+     * In-memory databases need no file.
      *
      */
     public void verifyFile() throws Exception {
-        if (system.equals(DBsystem.sqlite) && !new File(host + File.separator + database).exists()) {
+        if (system.equals(DBsystem.sqlite) && memorydb == null && !new File(host + File.separator + database).exists()) {
             throw new Exception("Data Source file not available.");
         }
     }
@@ -0,0 +1,658 @@
+package dbmap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import settings.SettingsManager;
+
+/**
+ * A bounded pool of JDBC connections to a MySQL, PostgreSQL, Oracle or SQL
+ * Server database, shared by all requests in the web application that use the
+ * same dbmap.Connection.  Without pooling, every inspection and
+ * triplification of a remote database opens new physical connections (D2RQ
+ * opens its own for every Database it is given) and closes them again, which
+ * takes far longer than the work that is done with them.
+ *
+ * D2RQ and the rest of the Triplifier open connections from connection
+ * strings, so, like reader.InMemoryDatabase, the pools register a small JDBC
+ * driver for connection strings of the form "jdbc:triplifier:pool:ID".
+ * Connection.getPooledJdbcUrl() gives the string of the connection's pool.
+ * Closing a connection from a pool returns it to the pool, and closes the
+ * statements that are still open.  The statements, metadata and result sets
+ * of a connection from a pool are wrapped so that they, too, give out the
+ * connection from the pool and not the pooled connection itself.  A
+ * connection is validated with a short query before it is handed out again,
+ * and idle connections are closed after the "connectionPoolIdleTimeout"
+ * setting (in seconds).  A pool opens at most "connectionPoolMaxSize"
+ * connections at a time; if they are all in use, a request waits for one to
+ * be returned.
+ *
+ * Pooling is off until setEnabled() is called, which the web application
+ * does when it starts, and shutdown() deregisters the driver when the web
+ * application stops.  SQLite databases are never pooled, since opening them
+ * is cheap and their files can be replaced by new uploads.
+ */
+public class ConnectionPool
+{
+    public static final String URL_PREFIX = "jdbc:triplifier:pool:";
+    public static final String MAX_SIZE_KEY = "connectionPoolMaxSize";
+    public static final String IDLE_TIMEOUT_KEY = "connectionPoolIdleTimeout";
+    // the default maximum number of connections per pool
+    public static final int DEFAULT_MAX_SIZE = 8;
+    // the default time after which idle connections are closed, in seconds
+    public static final int DEFAULT_IDLE_TIMEOUT = 300;
+    // how long to wait for a connection if all are in use, in milliseconds
+    private static final long BORROW_TIMEOUT = 30 * 1000;
+    // how long to wait for the validation query, in seconds
+    private static final int VALIDATION_TIMEOUT = 5;
+    // the types of the objects from a pooled connection that are wrapped
+    private static final List<Class<?>> WRAPPED_TYPES = Arrays.<Class<?>>asList(
+            Statement.class, PreparedStatement.class, CallableStatement.class,
+            DatabaseMetaData.class, ResultSet.class);
+
+    // all pools, indexed by getKey() and by ID
+    private static final HashMap<String, ConnectionPool> pools =
+            new HashMap<String, ConnectionPool>();
+    private static final HashMap<String, ConnectionPool> poolsbyid =
+            new HashMap<String, ConnectionPool>();
+    private static boolean enabled = false;
+    // set by shutdown(), after which pooling cannot be turned on again
+    private static boolean shutdown = false;
+    // the ID of the next pool; IDs are never reused, so that a connection
+    // string of a closed pool cannot refer to another database's pool
+    private static int nextid = 1;
+    // closes idle connections; only runs while pooling is enabled
+    private static Timer evictor = null;
+
+    private static final PoolDriver driver = new PoolDriver();
+
+    static {
+        try {
+            DriverManager.registerDriver(driver);
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String id;
+    private final String url;
+    private final Properties info = new Properties();
+    private final String validationquery;
+    private final int maxsize;
+    private final long idletimeout;
+
+    // the idle connections, the most recently used first
+    private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+    // the number of open connections, idle or in use
+    private int opencnt = 0;
+    private boolean closed = false;
+
+    private ConnectionPool(String id, Connection connection, int maxsize, long idletimeout) {
+        this.id = id;
+        this.url = connection.getJdbcUrl();
+        this.maxsize = maxsize;
+        this.idletimeout = idletimeout;
+
+        if (connection.username != null)
+            info.setProperty("user", connection.username);
+        if (connection.password != null)
+            info.setProperty("password", connection.password);
+
+        validationquery = connection.system == DBsystem.oracle ? "SELECT 1 FROM DUAL" : "SELECT 1";
+    }
+
+    /**
+     * Turns pooling on or off.  Turning it off closes all pools.
+     *
+     * @param enable True to pool connections to remote databases.
+     */
+    public static void setEnabled(boolean enable) {
+        synchronized (pools) {
+            enabled = enable && !shutdown;
+        }
+
+        if (!enable)
+            closeAll();
+    }
+
+    /**
+     * Turns pooling off for good and deregisters the driver for the pools'
+     * connection strings, so that DriverManager does not keep the classes of
+     * a stopped web application loaded.
+     */
+    public static void shutdown() {
+        synchronized (pools) {
+            shutdown = true;
+        }
+        setEnabled(false);
+
+        try {
+            DriverManager.deregisterDriver(driver);
+        } catch (SQLException e) {
+            // The driver was not registered, so there is nothing to do.
+        }
+    }
+
+    /**
+     * Tests if pooling is turned on.
+     *
+     * @return True if connections to remote databases are pooled.
+     */
+    public static boolean isEnabled() {
+        synchronized (pools) {
+            return enabled;
+        }
+    }
+
+    /**
+     * Closes all pools and their idle connections.  Connections that are in
+     * use are closed when they are returned.
+     */
+    public static void closeAll() {
+        List<ConnectionPool> closing;
+        synchronized (pools) {
+            closing = new ArrayList<ConnectionPool>(pools.values());
+            pools.clear();
+            poolsbyid.clear();
+            if (evictor != null) {
+                evictor.cancel();
+                evictor = null;
+            }
+        }
+
+        for (ConnectionPool pool : closing)
+            pool.close();
+    }
+
+    /**
+     * Get the connection string of a connection's pool, creating the pool if
+     * necessary.
+     *
+     * @param connection The database connection parameters.
+     * @return The connection string, or null if the connection is not pooled
+     * (i.e., pooling is turned off, the maximum pool size is 0, or the
+     * database is a SQLite database).
+     */
+    static String getUrl(Connection connection) {
+        if (connection.system == DBsystem.sqlite)
+            return null;
+
+        String key = getKey(connection);
+        synchronized (pools) {
+            if (!enabled)
+                return null;
+
+            ConnectionPool pool = pools.get(key);
+            if (pool == null) {
+                int maxsize = getSetting(MAX_SIZE_KEY, DEFAULT_MAX_SIZE);
+                if (maxsize <= 0)
+                    return null;
+                long idletimeout = getSetting(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT) * 1000L;
+
+                pool = new ConnectionPool(Integer.toString(nextid++), connection,
+                        maxsize, idletimeout);
+                pools.put(key, pool);
+                poolsbyid.put(pool.id, pool);
+                startEvictor(idletimeout);
+            }
+
+            return URL_PREFIX + pool.id;
+        }
+    }
+
+    // The password is part of the key, so that a request with a different
+    // password cannot borrow connections that were opened with the right one.
+    private static String getKey(Connection connection) {
+        return connection.getJdbcUrl() + "\n" + connection.username + "\n" + connection.password;
+    }
+
+    private static int getSetting(String key, int defaultval) {
+        try {
+            SettingsManager sm = SettingsManager.getInstance();
+            sm.loadProperties();
+
+            String value = sm.retrieveValue(key);
+            if (!value.equals(""))
+                return Integer.parseInt(value.trim());
+        } catch (Exception e) {
+            // The settings file is not available or the value is invalid, so
+            // use the default.
+        }
+
+        return defaultval;
+    }
+
+    /**
+     * Starts the timer that closes idle connections, if it is not running.
+     * Must be called while holding the lock on pools.
+     */
+    private static void startEvictor(long idletimeout) {
+        if (evictor != null)
+            return;
+
+        long period = Math.max(idletimeout / 2, 1000);
+        evictor = new Timer("ConnectionPool evictor", true);
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                List<ConnectionPool> checked;
+                synchronized (pools) {
+                    checked = new ArrayList<ConnectionPool>(pools.values());
+                }
+                for (ConnectionPool pool : checked)
+                    pool.evictIdle();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Gets a connection from this pool: the most recently used idle
+     * connection that is still valid, or a new connection if there is none
+     * and the pool is not full.  If the pool is full, waits until a
+     * connection is returned.
+     */
+    private java.sql.Connection borrow() throws SQLException {
+        while (true) {
+            java.sql.Connection conn = takeIdle();
+
+            if (conn == null) {
+                // A slot for a new connection was reserved.
+                try {
+                    conn = DriverManager.getConnection(url, info);
+                } catch (SQLException e) {
+                    discard(null);
+                    throw e;
+                }
+            } else if (!isValid(conn)) {
+                discard(conn);
+                continue;
+            }
+
+            return (java.sql.Connection)Proxy.newProxyInstance(
+                    java.sql.Connection.class.getClassLoader(),
+                    new Class<?>[] { java.sql.Connection.class },
+                    new PooledConnectionHandler(this, conn));
+        }
+    }
+
+    /**
+     * Removes the most recently used idle connection from the pool.  If there
+     * is none, reserves a slot for a new connection, waiting for a slot if
+     * the pool is full.
+     *
+     * @return The idle connection, or null if a slot was reserved.
+     */
+    private synchronized java.sql.Connection takeIdle() throws SQLException {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+
+        while (idle.isEmpty() && opencnt >= maxsize && !closed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+                throw new SQLException("All " + maxsize + " connections to " + url
+                        + " are in use.");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection to " + url + ".");
+            }
+        }
+
+        if (closed)
+            throw new SQLException("The connection pool for " + url + " is closed.");
+        if (!idle.isEmpty())
+            return idle.removeFirst().conn;
+
+        opencnt++;
+        return null;
+    }
+
+    private boolean isValid(java.sql.Connection conn) {
+        // Connection.isValid() is not implemented by all of the drivers
+        // (e.g., PostgreSQL's), so run a query instead.
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.setQueryTimeout(VALIDATION_TIMEOUT);
+                stmt.executeQuery(validationquery).close();
+            } finally {
+                stmt.close();
+            }
+
+            return true;
+        } catch (SQLException e) {
+            return false;
+        } catch (RuntimeException e) {
+            // Some drivers fail this way on broken connections.
+            return false;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool.  Connections that cannot be reset
+     * are closed instead.
+     */
+    private void release(java.sql.Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            discard(conn);
+            return;
+        }
+
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(new IdleConnection(conn));
+                notify();
+                return;
+            }
+        }
+
+        discard(conn);
+    }
+
+    /**
+     * Closes a connection of the pool (if it is not null) and frees its slot.
+     */
+    private void discard(java.sql.Connection conn) {
+        synchronized (this) {
+            opencnt--;
+            notify();
+        }
+
+        closeQuietly(conn);
+    }
+
+    /**
+     * Closes the idle connections that were not used for the idle timeout.
+     */
+    private void evictIdle() {
+        List<java.sql.Connection> evicted = new ArrayList<java.sql.Connection>();
+        long oldest = System.currentTimeMillis() - idletimeout;
+
+        synchronized (this) {
+            while (!idle.isEmpty() && idle.getLast().lastused < oldest) {
+                evicted.add(idle.removeLast().conn);
+                opencnt--;
+            }
+            if (!evicted.isEmpty())
+                notifyAll();
+        }
+
+        for (java.sql.Connection conn : evicted)
+            closeQuietly(conn);
+    }
+
+    /**
+     * Closes the idle connections and makes the pool close the other
+     * connections when they are returned.
+     */
+    private void close() {
+        List<java.sql.Connection> closing = new ArrayList<java.sql.Connection>();
+
+        synchronized (this) {
+            closed = true;
+            for (IdleConnection ic : idle)
+                closing.add(ic.conn);
+            opencnt -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+
+        for (java.sql.Connection conn : closing)
+            closeQuietly(conn);
+    }
+
+    private static void closeQuietly(java.sql.Connection conn) {
+        if (conn == null)
+            return;
+
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // The connection is not used again, so there is nothing to do.
+        }
+    }
+
+
+    /**
+     * An idle connection and the time it was returned to the pool.
+     */
+    private static class IdleConnection
+    {
+        final java.sql.Connection conn;
+        final long lastused = System.currentTimeMillis();
+
+        IdleConnection(java.sql.Connection conn) {
+            this.conn = conn;
+        }
+    }
+
+
+    /**
+     * Passes all calls on a borrowed connection to the pooled connection,
+     * except close(), which closes the statements that are still open and
+     * returns the pooled connection to the pool.  Once it is closed, the
+     * borrowed connection can no longer be used.
+     */
+    private static class PooledConnectionHandler implements InvocationHandler
+    {
+        private final ConnectionPool pool;
+        private final java.sql.Connection conn;
+        private boolean closed = false;
+        // the statements of the pooled connection that are not closed yet
+        private final Set<Statement> statements =
+                Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+
+        PooledConnectionHandler(ConnectionPool pool, java.sql.Connection conn) {
+            this.pool = pool;
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String mname = method.getName();
+
+            if (mname.equals("close") && method.getParameterTypes().length == 0) {
+                synchronized (this) {
+                    if (closed)
+                        return null;
+                    closed = true;
+                }
+                closeStatements();
+                pool.release(conn);
+                return null;
+            } else if (mname.equals("isClosed") && method.getParameterTypes().length == 0) {
+                synchronized (this) {
+                    return closed || conn.isClosed();
+                }
+            } else if (mname.equals("equals") && args != null && args.length == 1)
+                return proxy == args[0];
+            else if (mname.equals("hashCode") && args == null)
+                return System.identityHashCode(proxy);
+
+            synchronized (this) {
+                if (closed)
+                    throw new SQLException("The connection is closed.");
+            }
+
+            Object result;
+            try {
+                result = method.invoke(conn, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            // Track the new statements.
+            if (result instanceof Statement) {
+                synchronized (this) {
+                    statements.add((Statement)result);
+                }
+            }
+
+            return wrap(proxy, result, method.getReturnType());
+        }
+
+        /**
+         * Wraps an object from the pooled connection so that it gives out the
+         * borrowed connection instead of the pooled connection.  Objects that
+         * cannot lead to the pooled connection are returned as they are.
+         *
+         * @param proxy The borrowed connection.
+         * @param result The object to wrap.
+         * @param type The declared type of the object.
+         * @return The wrapped object.
+         */
+        Object wrap(Object proxy, Object result, Class<?> type) {
+            if (result == null)
+                return null;
+            else if (type == java.sql.Connection.class)
+                return proxy;
+            else if (!WRAPPED_TYPES.contains(type))
+                return result;
+
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                    new PooledObjectHandler(this, proxy, result));
+        }
+
+        synchronized void untrack(Statement stmt) {
+            statements.remove(stmt);
+        }
+
+        private void closeStatements() {
+            List<Statement> closing;
+            synchronized (this) {
+                closing = new ArrayList<Statement>(statements);
+                statements.clear();
+            }
+
+            for (Statement stmt : closing) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    // The connection is released anyway.
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Passes all calls on a statement, metadata or result set of a borrowed
+     * connection to the object of the pooled connection, and wraps the
+     * objects they return (see PooledConnectionHandler.wrap()).
+     */
+    private static class PooledObjectHandler implements InvocationHandler
+    {
+        private final PooledConnectionHandler connhandler;
+        // the borrowed connection
+        private final Object connproxy;
+        private final Object target;
+
+        PooledObjectHandler(PooledConnectionHandler connhandler, Object connproxy, Object target) {
+            this.connhandler = connhandler;
+            this.connproxy = connproxy;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String mname = method.getName();
+
+            if (mname.equals("equals") && args != null && args.length == 1)
+                return proxy == args[0];
+            else if (mname.equals("hashCode") && args == null)
+                return System.identityHashCode(proxy);
+
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (mname.equals("close") && args == null && target instanceof Statement)
+                connhandler.untrack((Statement)target);
+
+            return connhandler.wrap(connproxy, result, method.getReturnType());
+        }
+    }
+
+
+    /**
+     * The JDBC driver for "jdbc:triplifier:pool:" connection strings.
+     */
+    private static class PoolDriver implements Driver
+    {
+        @Override
+        public java.sql.Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url))
+                return null;
+
+            ConnectionPool pool;
+            synchronized (pools) {
+                pool = poolsbyid.get(url.substring(URL_PREFIX.length()));
+            }
+            if (pool == null)
+                throw new SQLException("No connection pool is open for " + url + ".");
+
+            return pool.borrow();
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
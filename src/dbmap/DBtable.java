@@ -1,6 +1,11 @@
 package dbmap;
 
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
 /**
  * Represents a table in a database schema.
@@ -8,8 +13,20 @@ import java.util.Set;
  */
 public class DBtable implements Comparable<DBtable> {
 	public String name;
+	@JsonDeserialize(as = TreeSet.class)
 	public Set<String> columns;
+	@JsonDeserialize(as = TreeSet.class)
 	public Set<String> pkColumns;
+	// the column statistics, indexed by column name, or null if the table has
+	// no statistics
+	@JsonDeserialize(as = TreeMap.class)
+	public Map<String, ColumnStats> columnStats;
+
+	/**
+	 * For construction from JSON.
+	 */
+	DBtable() {
+	}
 		
 	DBtable(String name, Set<String> columns, Set<String> pkColumns) {
 		this.name = name;
@@ -0,0 +1,202 @@
+package dbmap;
+
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Creates SQLite indexes for the columns that D2RQ queries use when it
+ * triplifies a Mapping: the ID column of each Entity (used in the conditions
+ * and URIs of every ClassMap) and both columns of each Join (used in the
+ * d2rq:join conditions of Relations).  Without these indexes, SQLite has to
+ * scan whole tables or build temporary indexes for every query D2RQ sends.
+ * After creating any new indexes, the database is ANALYZEd so that SQLite's
+ * query planner can make use of them.
+ *
+ * Indexes are only created for SQLite databases, since those are the
+ * Triplifier's own intermediate databases; other database systems are left
+ * alone.  Creating indexes is idempotent: a column is not indexed again if
+ * any index of its table (the Triplifier's own, or one that was already in
+ * the database) starts with the column, and ANALYZE is only run if a new
+ * index was created.
+ */
+public class IndexBuilder
+{
+    private static final String INDEX_PREFIX = "triplifier_idx_";
+
+    private final Mapping mapping;
+    private int createdcnt = 0;
+    private long buildtime = 0;
+
+    public IndexBuilder(Mapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * Get the columns that should be indexed for the Mapping.
+     *
+     * @return The columns, in the form "table.column".
+     */
+    public Set<String> getIndexColumns() {
+        Set<String> columns = new LinkedHashSet<String>();
+
+        if (mapping.entities != null) {
+            for (Entity entity : mapping.entities)
+                addColumn(columns, entity.table, entity.idColumn);
+        }
+        if (mapping.joins != null) {
+            for (Join join : mapping.joins) {
+                addColumn(columns, join.foreignTable, join.foreignColumn);
+                addColumn(columns, join.primaryTable, join.primaryColumn);
+            }
+        }
+
+        return columns;
+    }
+
+    private void addColumn(Set<String> columns, String table, String column) {
+        if (table != null && column != null && !table.isEmpty() && !column.isEmpty())
+            columns.add(table + "." + column);
+    }
+
+    /**
+     * Creates any missing indexes for the Mapping and updates the database
+     * statistics.  Nothing is done if the Mapping's database is not a SQLite
+     * database.
+     *
+     * @return The number of indexes that were created.
+     * @throws SQLException
+     */
+    public int buildIndexes() throws SQLException {
+        createdcnt = 0;
+        buildtime = 0;
+
+        if (mapping.connection == null || mapping.connection.system != DBsystem.sqlite)
+            return 0;
+
+        long start = System.currentTimeMillis();
+        java.sql.Connection conn = DriverManager.getConnection(mapping.connection.getJdbcUrl());
+
+        try {
+            Statement stmt = conn.createStatement();
+
+            for (String column : getIndexColumns()) {
+                // Table names cannot contain periods (see
+                // TabularDataConverter), so the first period separates the
+                // table and column names.
+                String table = column.substring(0, column.indexOf('.'));
+                String colname = column.substring(column.indexOf('.') + 1);
+
+                if (createIndex(stmt, table, colname))
+                    createdcnt++;
+            }
+
+            if (createdcnt > 0)
+                stmt.execute("ANALYZE");
+
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+
+        buildtime = System.currentTimeMillis() - start;
+
+        return createdcnt;
+    }
+
+    /**
+     * Creates an index on a column if the column exists and is not already
+     * the first column of an index.
+     *
+     * @return True if a new index was created.
+     */
+    private boolean createIndex(Statement stmt, String table, String column) throws SQLException {
+        // Make sure the column exists, since the Mapping might not match
+        // the database.
+        boolean hascolumn = false;
+        ResultSet rs = queryPragma(stmt, "table_info(" + quoteIdentifier(table) + ")");
+        while (rs != null && rs.next()) {
+            if (column.equals(rs.getString("name")))
+                hascolumn = true;
+        }
+        if (rs != null)
+            rs.close();
+        if (!hascolumn || isIndexed(stmt, table, column))
+            return false;
+
+        // The length of the table name makes the index name unique: without
+        // it, e.g., "a_b"."c" and "a"."b_c" would get the same name.
+        String indexname = INDEX_PREFIX + table.length() + "_" + table + "_" + column;
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + quoteIdentifier(indexname) + " ON "
+                + quoteIdentifier(table) + " (" + quoteIdentifier(column) + ")");
+
+        return true;
+    }
+
+    /**
+     * Test if a column is the first column of any index of its table.
+     */
+    private boolean isIndexed(Statement stmt, String table, String column) throws SQLException {
+        List<String> indexnames = new ArrayList<String>();
+        ResultSet rs = queryPragma(stmt, "index_list(" + quoteIdentifier(table) + ")");
+        while (rs != null && rs.next())
+            indexnames.add(rs.getString("name"));
+        if (rs != null)
+            rs.close();
+
+        for (String indexname : indexnames) {
+            boolean leading = false;
+            rs = queryPragma(stmt, "index_info(" + quoteIdentifier(indexname) + ")");
+            while (rs != null && rs.next()) {
+                if (rs.getInt("seqno") == 0 && column.equals(rs.getString("name")))
+                    leading = true;
+            }
+            if (rs != null)
+                rs.close();
+            if (leading)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs a PRAGMA that returns rows.  The SQLite driver does not return a
+     * ResultSet if there are no rows (e.g., for the indexes of a table
+     * without indexes), so the result is null in that case.
+     */
+    private static ResultSet queryPragma(Statement stmt, String pragma) throws SQLException {
+        if (stmt.execute("PRAGMA " + pragma))
+            return stmt.getResultSet();
+        else
+            return null;
+    }
+
+    private static String quoteIdentifier(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Get the number of indexes created by the last call to buildIndexes().
+     *
+     * @return The number of new indexes.
+     */
+    public int getCreatedCount() {
+        return createdcnt;
+    }
+
+    /**
+     * Get the time taken by the last call to buildIndexes(), including
+     * ANALYZE.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getBuildTime() {
+        return buildtime;
+    }
+}
@@ -1,14 +1,15 @@
 package dbmap;
 
 import java.io.PrintWriter;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.util.*;
 
-import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
-import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
-import de.fuberlin.wiwiss.d2rq.map.Database;
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
+import reader.ColumnStatistics;
 
 /**
  * Performs two major tasks:
@@ -19,12 +20,20 @@ import de.fuberlin.wiwiss.d2rq.map.Database;
 public class Mapping {
     public String dateTime;
     public Connection connection;
+    @JsonDeserialize(as = TreeSet.class)
     public Set<DBtable> schema;
     public Set<Join> joins;
     public Set<Entity> entities;
     public Set<Relation> relations;
     public Dataseturi dataseturi;
 
+    // the indexes of joins and entities for findJoins() and findEntity(),
+    // which only exist while printD2RQ() runs (see buildIndexes())
+    private HashMap<String, List<Join>> joinindex = null;
+    // the join paths that were found, indexed by getPairKey()
+    private HashMap<String, Join[]> joinpaths = null;
+    private HashMap<String, Entity> entityindex = null;
+
     /**
      * For construction from JSON.
      */
@@ -46,20 +55,74 @@ public class Mapping {
         entities = new HashSet<Entity>();
         relations = new HashSet<Relation>();
 
-        Database database = connection.getD2RQdatabase();
-        DatabaseSchemaInspector schemaInspector = database.connectedDB().schemaInspector();
-//		System.out.println("tables: " + schemaInspector.listTableNames(null));
-        DBtable table;
-        for (RelationName relationName : schemaInspector.listTableNames(null)) {
-            table = new DBtable(relationName.tableName(), new TreeSet<String>(), new HashSet<String>());
-            schema.add(table);
-            for (Attribute attribute : schemaInspector.listColumns(relationName))
-                table.columns.add(attribute.attributeName());
-            for (Attribute attribute : schemaInspector.primaryKeyColumns(relationName))
-                table.pkColumns.add(attribute.attributeName());
+        SchemaCatalog catalog = SchemaCatalog.forConnection(connection);
+        for (String tablename : catalog.getTableNames()) {
+            // The column statistics table is metadata, not data.
+            if (tablename.equals(ColumnStatistics.TABLE_NAME))
+                continue;
+
+            schema.add(new DBtable(tablename,
+                    new TreeSet<String>(catalog.getColumns(tablename)),
+                    new HashSet<String>(catalog.getPrimaryKeyColumns(tablename))));
         }
 
-        database.connectedDB().close();
+        if (connection.system == DBsystem.sqlite)
+            readColumnStats();
+    }
+
+    /**
+     * Adds the column statistics that TabularDataConverter stored in the
+     * database (if any) to the tables of the schema.  A column is marked as
+     * an ID candidate if it has no blank values and (allowing for the error
+     * of the distinct count estimate) every value is unique.
+     */
+    private void readColumnStats() {
+        HashMap<String, DBtable> tables = new HashMap<String, DBtable>();
+        for (DBtable table : schema)
+            tables.put(table.name, table);
+
+        try {
+            java.sql.Connection conn = DriverManager.getConnection(connection.getJdbcUrl());
+            try {
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+                        + "AND name = '" + ColumnStatistics.TABLE_NAME + "'");
+                boolean hasstats = rs.next();
+                rs.close();
+
+                if (hasstats) {
+                    rs = stmt.executeQuery("SELECT * FROM " + ColumnStatistics.TABLE_NAME);
+                    while (rs.next()) {
+                        DBtable table = tables.get(rs.getString("table_name"));
+                        String column = rs.getString("column_name");
+                        if (table == null || !table.columns.contains(column))
+                            continue;
+
+                        ColumnStats stats = new ColumnStats();
+                        stats.valueCount = rs.getLong("value_count");
+                        stats.blankCount = rs.getLong("blank_count");
+                        stats.minLength = rs.getInt("min_length");
+                        stats.maxLength = rs.getInt("max_length");
+                        stats.distinctCount = rs.getLong("distinct_count");
+                        stats.type = rs.getString("value_type");
+                        stats.idCandidate = stats.valueCount > 0 && stats.blankCount == 0
+                                && stats.distinctCount >= 0.95 * stats.valueCount;
+
+                        if (table.columnStats == null)
+                            table.columnStats = new TreeMap<String, ColumnStats>();
+                        table.columnStats.put(column, stats);
+                    }
+                    rs.close();
+                }
+
+                stmt.close();
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            // The statistics are optional, so the schema is still usable
+            // without them.
+        }
     }
 
     /**
@@ -68,57 +131,111 @@ public class Mapping {
      * @param pw PrintWriter used to write output to.
      */
     public void printD2RQ(PrintWriter pw) throws SQLException {
-        printPrefixes(pw);
-        connection.printD2RQ(pw);
-        for (Entity entity : entities)
-            entity.printD2RQ(pw, this);
-        for (Relation relation : relations)
-            relation.printD2RQ(pw, this);
-        if (dataseturi != null)
-            dataseturi.printD2RQ(pw, this);
+        printD2RQ(pw, false);
+    }
+
+    /**
+     * Generate D2RQ Mapping Language representation of this Mapping's connection, entities and relations.
+     *
+     * @param pw PrintWriter used to write output to.
+     * @param pooled Whether D2RQ should use the connection's pool (see Connection.printD2RQ()).
+     */
+    public void printD2RQ(PrintWriter pw, boolean pooled) throws SQLException {
+        buildIndexes();
+        try {
+            printPrefixes(pw);
+            connection.printD2RQ(pw, pooled);
+            for (Entity entity : entities)
+                entity.printD2RQ(pw, this);
+            for (Relation relation : relations)
+                relation.printD2RQ(pw, this);
+            if (dataseturi != null)
+                dataseturi.printD2RQ(pw, this);
+        } finally {
+            clearIndexes();
+        }
     }
 
     /**
-     * Find the database table join(s) that connect table1 and table2.  This
-     * method first checks for a single join that connects table1 and table2.
-     * If such a join is found, it is returned as the result.  If a single join
-     * cannot be found, the method then checks if table1 and table2 can be
-     * connected by two joins to an intermediate table (e.g., many-to-many
-     * relationships are typically set up this way).
+     * Find the database table join(s) that connect table1 and table2, i.e.,
+     * the shortest chain of joins from table1, through any number of
+     * intermediate tables, to table2 (e.g., many-to-many relationships are
+     * typically set up with one intermediate table).  The tables are treated
+     * as the nodes of a graph with the joins as edges, and the graph is
+     * searched breadth-first.  Of several shortest chains, the one that uses
+     * the joins that come first in the joins set is chosen.  While
+     * printD2RQ() runs, chains are cached, so each pair of tables is only
+     * searched once.
      *
      * @param table1 Table name.
      * @param table2 Table name.
-     * @return An array with the joins that connect the two tables; null if no
-     * satisfactory joins could be found.
+     * @return An array with the joins that connect the two tables, in order
+     * from table1 to table2; null if no satisfactory joins could be found.
      */
     Join[] findJoins(String table1, String table2) {
-        Join[] mjoins;
-        Join join1;
+        if (joinindex == null) {
+            // Outside of printD2RQ(), the joins might have changed since the
+            // last call, so only index them for this call.
+            buildIndexes();
+            try {
+                return findJoins(table1, table2);
+            } finally {
+                clearIndexes();
+            }
+        }
 
-        // First check for a single join that connects table1 and table2.
-        join1 = findSingleJoin(table1, table2);
-        if (join1 != null) {
-            mjoins = new Join[1];
-            mjoins[0] = join1;
+        String key = getPairKey(table1, table2);
+        if (joinpaths.containsKey(key))
+            return joinpaths.get(key);
 
-            return mjoins;
-        }
+        Join[] path;
+        if (table1.equals(table2))
+            path = findSelfJoin(joinindex, table1);
+        else
+            path = findJoinPath(joinindex, table1, table2);
+        joinpaths.put(key, path);
 
-        // No single join matched, so see if two joins can connect table1 and
-        // table2 via an intermediate table.
-        join1 = null;
-        for (Join join : joins) {
-            if (table1.equals(join.foreignTable)) {
-                join1 = findSingleJoin(join.primaryTable, table2);
-            } else if (table1.equals(join.primaryTable)) {
-                join1 = findSingleJoin(join.foreignTable, table2);
-            }
+        return path;
+    }
+
+    /**
+     * Searches breadth-first for the shortest chain of joins from table1 to
+     * table2.
+     *
+     * @return The joins, or null if the tables are not connected.
+     */
+    private Join[] findJoinPath(Map<String, List<Join>> index, String table1, String table2) {
+        // the join through which each table was first reached
+        HashMap<String, Join> reachedby = new HashMap<String, Join>();
+        LinkedList<String> queue = new LinkedList<String>();
+        reachedby.put(table1, null);
+        queue.add(table1);
 
-            if (join1 != null) {
-                mjoins = new Join[2];
-                mjoins[0] = join;
-                mjoins[1] = join1;
-                return mjoins;
+        while (!queue.isEmpty()) {
+            String table = queue.removeFirst();
+            List<Join> tablejoins = index.get(table);
+            if (tablejoins == null)
+                continue;
+
+            for (Join join : tablejoins) {
+                String other = getOtherTable(join, table);
+                if (reachedby.containsKey(other))
+                    continue;
+                reachedby.put(other, join);
+
+                if (other.equals(table2)) {
+                    // Follow the joins back to table1.
+                    LinkedList<Join> path = new LinkedList<Join>();
+                    for (String t = table2; !t.equals(table1); ) {
+                        Join step = reachedby.get(t);
+                        path.addFirst(step);
+                        t = getOtherTable(step, t);
+                    }
+
+                    return path.toArray(new Join[path.size()]);
+                }
+
+                queue.add(other);
             }
         }
 
@@ -126,23 +243,74 @@ public class Mapping {
     }
 
     /**
-     * Searches for a single join that connects table1 and table2.
-     * 
-     * @param table1 table name
-     * @param table2 table name
-     * @return The matching join or null if none could be found.
+     * Searches for a join of a table with itself.
+     *
+     * @return An array with the join, or null if there is none.
      */
-    private Join findSingleJoin(String table1, String table2) {
-        for (Join join : joins) {
-            if (table1.equals(join.foreignTable) && table2.equals(join.primaryTable) ||
-                    table1.equals(join.primaryTable) && table2.equals(join.foreignTable)) {
-                return join;
+    private Join[] findSelfJoin(Map<String, List<Join>> index, String table) {
+        List<Join> tablejoins = index.get(table);
+        if (tablejoins != null) {
+            for (Join join : tablejoins) {
+                if (table.equals(join.foreignTable) && table.equals(join.primaryTable))
+                    return new Join[] { join };
             }
         }
-        
+
         return null;
     }
 
+    private static String getOtherTable(Join join, String table) {
+        return table.equals(join.foreignTable) ? join.primaryTable : join.foreignTable;
+    }
+
+    private static String getPairKey(String name1, String name2) {
+        return name1 + "\n" + name2;
+    }
+
+    /**
+     * Builds the indexes of the joins and the entities.  The join index lists
+     * the joins of each table in the order of the joins set.  If several
+     * entities have the same table and idColumn, the first one in the
+     * entities set is indexed.  The simplifiers and the JSON deserializer
+     * assign the joins and entities sets directly, so the indexes are built
+     * again for every call to printD2RQ().
+     */
+    private void buildIndexes() {
+        joinindex = new HashMap<String, List<Join>>();
+        joinpaths = new HashMap<String, Join[]>();
+        if (joins != null) {
+            for (Join join : joins) {
+                addJoin(join.foreignTable, join);
+                if (!join.primaryTable.equals(join.foreignTable))
+                    addJoin(join.primaryTable, join);
+            }
+        }
+
+        entityindex = new HashMap<String, Entity>();
+        if (entities != null) {
+            for (Entity entity : entities) {
+                String key = getPairKey(entity.table, entity.idColumn);
+                if (!entityindex.containsKey(key))
+                    entityindex.put(key, entity);
+            }
+        }
+    }
+
+    private void clearIndexes() {
+        joinindex = null;
+        joinpaths = null;
+        entityindex = null;
+    }
+
+    private void addJoin(String table, Join join) {
+        List<Join> tablejoins = joinindex.get(table);
+        if (tablejoins == null) {
+            tablejoins = new ArrayList<Join>();
+            joinindex.put(table, tablejoins);
+        }
+        tablejoins.add(join);
+    }
+
     /**
      * Find Entity defined by given table and idColumn.
      *
@@ -151,10 +319,17 @@ public class Mapping {
      * @return Matching Entity or null if not found.
      */
     Entity findEntity(String table, String idColumn) {
-        for (Entity entity : entities)
-            if (table.equals(entity.table) && idColumn.equals(entity.idColumn))
-                return entity;
-        return null;
+        if (entityindex == null) {
+            // As in findJoins(), only index the entities for this call.
+            buildIndexes();
+            try {
+                return findEntity(table, idColumn);
+            } finally {
+                clearIndexes();
+            }
+        }
+
+        return entityindex.get(getPairKey(table, idColumn));
     }
 
     /**
@@ -0,0 +1,237 @@
+package dbmap;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
+import de.fuberlin.wiwiss.d2rq.map.Database;
+
+/**
+ * A snapshot of the schema of a database (its tables, and the columns and
+ * primary key columns of each table), as D2RQ's DatabaseSchemaInspector sees
+ * it.  Inspecting a schema takes a query for the table names and two queries
+ * for every table, so Mapping and the simplifiers share the snapshots
+ * instead of asking the inspector again for every entity, join and relation.
+ *
+ * Snapshots are cached per database and user (see forConnection()) and are
+ * taken again when the schema may have changed: for SQLite files, when the
+ * file's modification time or size changes; for in-memory SQLite databases,
+ * when SQLite's schema version changes; and for other database systems,
+ * which have no cheap way of telling, when the snapshot is older than
+ * MAX_REMOTE_AGE or when invalidate() is called.
+ */
+public class SchemaCatalog
+{
+    // the maximum number of cached snapshots
+    private static final int MAX_ENTRIES = 64;
+    // the maximum age of a snapshot of a database that is not a SQLite
+    // database, in milliseconds
+    public static final long MAX_REMOTE_AGE = 5 * 60 * 1000;
+
+    // the cached snapshots, indexed by getKey(), in order of last use
+    private static final LinkedHashMap<String, SchemaCatalog> catalogs =
+            new LinkedHashMap<String, SchemaCatalog>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SchemaCatalog> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private final List<String> tablenames = new ArrayList<String>();
+    private final Map<String, List<String>> columns = new HashMap<String, List<String>>();
+    private final Map<String, Set<String>> columnsets = new HashMap<String, Set<String>>();
+    private final Map<String, List<String>> pkcolumns = new HashMap<String, List<String>>();
+    // what the snapshot was taken of (see getVersion()), and when
+    private final String version;
+    private final long created;
+
+    /**
+     * Takes a snapshot of a database's schema.
+     */
+    private SchemaCatalog(Connection connection, String version) {
+        this.version = version;
+        created = System.currentTimeMillis();
+
+        Database database = connection.getD2RQdatabase();
+        DatabaseSchemaInspector schemaInspector = database.connectedDB().schemaInspector();
+        try {
+            for (RelationName relationName : schemaInspector.listTableNames(null)) {
+                String tablename = relationName.tableName();
+                tablenames.add(tablename);
+                List<String> colnames = getNames(schemaInspector.listColumns(relationName));
+                columns.put(tablename, colnames);
+                columnsets.put(tablename, new HashSet<String>(colnames));
+                pkcolumns.put(tablename, getNames(schemaInspector.primaryKeyColumns(relationName)));
+            }
+        } finally {
+            database.connectedDB().close();
+        }
+    }
+
+    private static List<String> getNames(List<Attribute> attributes) {
+        List<String> names = new ArrayList<String>();
+        for (Attribute attribute : attributes)
+            names.add(attribute.attributeName());
+
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Get the schema of a database.  A cached snapshot is returned if the
+     * schema has not changed since it was taken.
+     *
+     * @param connection The database connection parameters.
+     * @return The schema.
+     */
+    public static SchemaCatalog forConnection(Connection connection) {
+        String key = getKey(connection);
+        String version = getVersion(connection);
+
+        synchronized (catalogs) {
+            SchemaCatalog catalog = catalogs.get(key);
+            if (catalog != null && catalog.isCurrent(version))
+                return catalog;
+        }
+
+        // Inspect the schema without holding the lock, since this can take a
+        // while for remote databases.
+        SchemaCatalog catalog = new SchemaCatalog(connection, version);
+        synchronized (catalogs) {
+            catalogs.put(key, catalog);
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Removes the cached snapshot of a database's schema, if any, so that
+     * the schema is inspected again the next time it is needed.  This is
+     * only needed for databases that are not SQLite databases, after their
+     * schema was changed.
+     *
+     * @param connection The database connection parameters.
+     */
+    public static void invalidate(Connection connection) {
+        synchronized (catalogs) {
+            catalogs.remove(getKey(connection));
+        }
+    }
+
+    // The password is part of the key, so that a request with a wrong
+    // password is not answered from the cache.
+    private static String getKey(Connection connection) {
+        return connection.getJdbcUrl() + "\n" + connection.username + "\n" + connection.password;
+    }
+
+    /**
+     * Gets a string that changes whenever the schema of a SQLite database may
+     * have changed: the modification time and size of a SQLite file, or the
+     * schema version of an in-memory SQLite database.
+     *
+     * @return The version, or null if the database is not a SQLite database
+     * or its version cannot be read.
+     */
+    private static String getVersion(Connection connection) {
+        if (connection.system != DBsystem.sqlite)
+            return null;
+
+        File file = connection.getSQLiteFile();
+        if (file != null)
+            return file.lastModified() + ":" + file.length();
+
+        try {
+            java.sql.Connection conn = DriverManager.getConnection(connection.getJdbcUrl());
+            try {
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA schema_version");
+                String version = rs.next() ? rs.getString(1) : null;
+                stmt.close();
+
+                return version;
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private boolean isCurrent(String currentversion) {
+        if (version == null || currentversion == null)
+            return version == null && currentversion == null
+                    && System.currentTimeMillis() - created < MAX_REMOTE_AGE;
+
+        return version.equals(currentversion);
+    }
+
+    /**
+     * Get the names of the database's tables.
+     *
+     * @return The table names, in the order in which D2RQ lists them.
+     */
+    public List<String> getTableNames() {
+        return Collections.unmodifiableList(tablenames);
+    }
+
+    /**
+     * Test if the database has a table.
+     *
+     * @param tablename The table name.
+     * @return True if the table exists.
+     */
+    public boolean hasTable(String tablename) {
+        return columns.containsKey(tablename);
+    }
+
+    /**
+     * Get the names of the columns of a table.
+     *
+     * @param tablename The table name.
+     * @return The column names, in table order, or an empty list if there is
+     * no such table.
+     */
+    public List<String> getColumns(String tablename) {
+        List<String> names = columns.get(tablename);
+
+        return names == null ? Collections.<String>emptyList() : names;
+    }
+
+    /**
+     * Test if a table has a column.
+     *
+     * @param tablename The table name.
+     * @param colname The column name.
+     * @return True if the table exists and has the column.
+     */
+    public boolean hasColumn(String tablename, String colname) {
+        Set<String> colnames = columnsets.get(tablename);
+
+        return colnames != null && colnames.contains(colname);
+    }
+
+    /**
+     * Get the names of the primary key columns of a table.
+     *
+     * @param tablename The table name.
+     * @return The primary key column names, or an empty list if there is no
+     * such table or it has no primary key.
+     */
+    public List<String> getPrimaryKeyColumns(String tablename) {
+        List<String> names = pkcolumns.get(tablename);
+
+        return names == null ? Collections.<String>emptyList() : names;
+    }
+}
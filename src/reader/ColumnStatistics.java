@@ -0,0 +1,359 @@
+package reader;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Statistics about the values of one column of a table, collected by
+ * TabularDataConverter while the table is loaded: the number of values and
+ * of blank values, the minimum and maximum value lengths, an estimate of the
+ * number of distinct values, and the type of the values (integer, real, date,
+ * or text).  Because every value is seen exactly once during loading, the
+ * statistics are available afterwards without scanning the table again.
+ *
+ * The number of distinct values is estimated with a HyperLogLog sketch, which
+ * uses a fixed amount of memory (4 KB per column) no matter how many distinct
+ * values there are, with a typical error of about 1.6%.  Sources that use a
+ * ColumnDictionary pass repeated values as the same String instance, so a
+ * value that is identical to the previous value of the column is counted
+ * without being examined again.
+ *
+ * The statistics of a converted database are stored in its
+ * "triplifier_column_stats" table (see write()).
+ */
+public class ColumnStatistics
+{
+    // the name of the table that holds the statistics in a converted database
+    public static final String TABLE_NAME = "triplifier_column_stats";
+
+    // The possible value types.  A column has the most specific type that
+    // all of its non-blank values match.
+    public static final String TYPE_EMPTY = "empty";
+    public static final String TYPE_INTEGER = "integer";
+    public static final String TYPE_REAL = "real";
+    public static final String TYPE_DATE = "date";
+    public static final String TYPE_TEXT = "text";
+
+    // the number of bits of the hash that select a HyperLogLog register
+    private static final int HLL_BITS = 12;
+    private static final int HLL_REGISTERS = 1 << HLL_BITS;
+
+    private long count = 0;
+    private long blanks = 0;
+    private int minlength = Integer.MAX_VALUE;
+    private int maxlength = 0;
+    private final byte[] registers = new byte[HLL_REGISTERS];
+
+    // whether all non-blank values so far could be of each type
+    private boolean isinteger = true, isreal = true, isdate = true;
+
+    // the previous value, and whether it was blank
+    private String last = null;
+    private boolean lastblank = false;
+
+    /**
+     * Adds a value of the column to the statistics.
+     *
+     * @param value The value.  Null values are counted as blank.
+     */
+    public void add(String value) {
+        count++;
+
+        // A repeated value changes nothing but the counts.
+        if (value == last && value != null) {
+            if (lastblank)
+                blanks++;
+            return;
+        }
+        last = value;
+
+        lastblank = isBlank(value);
+        if (lastblank) {
+            blanks++;
+            return;
+        }
+
+        int len = value.length();
+        if (len < minlength)
+            minlength = len;
+        if (len > maxlength)
+            maxlength = len;
+
+        addHash(value.hashCode(), len);
+
+        if (isinteger || isreal || isdate)
+            checkType(value);
+    }
+
+    private static boolean isBlank(String value) {
+        if (value == null)
+            return true;
+
+        for (int cnt = 0; cnt < value.length(); cnt++) {
+            if (!Character.isWhitespace(value.charAt(cnt)))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a value's hash to the HyperLogLog sketch.  String hash codes are
+     * cached by the String, but they are only 32 bits and not well
+     * distributed, so they are mixed with the value length into a 64-bit hash
+     * first (using the finalizer of MurmurHash3).
+     */
+    private void addHash(int hashcode, int len) {
+        long hash = ((long)len << 32) ^ (hashcode & 0xffffffffL);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        int register = (int)(hash >>> (64 - HLL_BITS));
+        // the position of the first 1 bit in the remaining bits
+        byte rank = (byte)(Long.numberOfLeadingZeros((hash << HLL_BITS) | (1L << (HLL_BITS - 1))) + 1);
+        if (rank > registers[register])
+            registers[register] = rank;
+    }
+
+    /**
+     * Rules out the types that a non-blank value does not match.
+     */
+    private void checkType(String value) {
+        String trimmed = value.trim();
+
+        if (isinteger || isreal) {
+            int pos = 0;
+            int len = trimmed.length();
+            if (trimmed.charAt(0) == '-' || trimmed.charAt(0) == '+')
+                pos++;
+
+            int digits = 0;
+            while (pos < len && Character.isDigit(trimmed.charAt(pos))) {
+                pos++;
+                digits++;
+            }
+            boolean integer = digits > 0 && pos == len;
+
+            // Check for a fraction and an exponent.
+            if (pos < len && trimmed.charAt(pos) == '.') {
+                pos++;
+                while (pos < len && Character.isDigit(trimmed.charAt(pos))) {
+                    pos++;
+                    digits++;
+                }
+            }
+            if (digits > 0 && pos < len && (trimmed.charAt(pos) == 'e' || trimmed.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < len && (trimmed.charAt(pos) == '-' || trimmed.charAt(pos) == '+'))
+                    pos++;
+                int expdigits = 0;
+                while (pos < len && Character.isDigit(trimmed.charAt(pos))) {
+                    pos++;
+                    expdigits++;
+                }
+                if (expdigits == 0)
+                    digits = 0;
+            }
+            boolean real = digits > 0 && pos == len;
+
+            isinteger = isinteger && integer;
+            isreal = isreal && real;
+        }
+
+        // Dates must be ISO 8601 dates (e.g., "2013-05-21"), optionally
+        // followed by a time.
+        if (isdate) {
+            isdate = trimmed.length() >= 10 && trimmed.charAt(4) == '-' && trimmed.charAt(7) == '-'
+                    && (trimmed.length() == 10 || trimmed.charAt(10) == 'T' || trimmed.charAt(10) == ' ');
+            for (int pos = 0; isdate && pos < 10; pos++) {
+                if (pos != 4 && pos != 7)
+                    isdate = Character.isDigit(trimmed.charAt(pos));
+            }
+        }
+    }
+
+    /**
+     * Get the number of values in the column.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of values that are blank (empty, null, or only
+     * whitespace).
+     *
+     * @return The number of blank values.
+     */
+    public long getBlankCount() {
+        return blanks;
+    }
+
+    /**
+     * Get the fraction of the values that are blank.
+     *
+     * @return The fraction of blank values, between 0 and 1.
+     */
+    public double getBlankRatio() {
+        return count == 0 ? 0 : (double)blanks / count;
+    }
+
+    /**
+     * Get the length of the shortest non-blank value.
+     *
+     * @return The minimum length, or 0 if there are no non-blank values.
+     */
+    public int getMinLength() {
+        return count == blanks ? 0 : minlength;
+    }
+
+    /**
+     * Get the length of the longest non-blank value.
+     *
+     * @return The maximum length.
+     */
+    public int getMaxLength() {
+        return maxlength;
+    }
+
+    /**
+     * Get an estimate of the number of distinct non-blank values, which is
+     * never more than the number of non-blank values.
+     *
+     * @return The estimated number of distinct values.
+     */
+    public long getDistinctEstimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte rank : registers) {
+            sum += 1.0 / (1L << rank);
+            if (rank == 0)
+                zeros++;
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / HLL_REGISTERS);
+        double estimate = alpha * HLL_REGISTERS * HLL_REGISTERS / sum;
+
+        // Use linear counting for small cardinalities.
+        if (estimate <= 2.5 * HLL_REGISTERS && zeros > 0)
+            estimate = HLL_REGISTERS * Math.log((double)HLL_REGISTERS / zeros);
+
+        return Math.min(Math.round(estimate), count - blanks);
+    }
+
+    /**
+     * Get the type of the column's values: TYPE_INTEGER, TYPE_REAL, or
+     * TYPE_DATE if all non-blank values are of that type, TYPE_EMPTY if all
+     * values are blank, and TYPE_TEXT otherwise.
+     *
+     * @return The value type.
+     */
+    public String getType() {
+        if (count == blanks)
+            return TYPE_EMPTY;
+        else if (isinteger)
+            return TYPE_INTEGER;
+        else if (isreal)
+            return TYPE_REAL;
+        else if (isdate)
+            return TYPE_DATE;
+        else
+            return TYPE_TEXT;
+    }
+
+    @Override
+    public String toString() {
+        return count + " values, " + blanks + " blank, length " + getMinLength() + "-" + maxlength
+                + ", ~" + getDistinctEstimate() + " distinct, " + getType();
+    }
+
+    /**
+     * Writes column statistics to the statistics table of a database,
+     * replacing any statistics that are already stored for the same tables.
+     * Statistics for tables or columns that do not exist in the database are
+     * not written.
+     *
+     * @param conn A connection to the database.
+     * @param stats The statistics, indexed by "table.column" names.
+     * @throws SQLException
+     */
+    public static void write(Connection conn, Map<String, ColumnStatistics> stats)
+            throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        try {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (table_name TEXT, "
+                    + "column_name TEXT, value_count INTEGER, blank_count INTEGER, min_length INTEGER, "
+                    + "max_length INTEGER, distinct_count INTEGER, value_type TEXT, "
+                    + "PRIMARY KEY (table_name, column_name))");
+
+            stmt.execute("BEGIN TRANSACTION");
+            try {
+                PreparedStatement delete = conn.prepareStatement("DELETE FROM " + TABLE_NAME
+                        + " WHERE table_name = ?");
+                PreparedStatement insert = conn.prepareStatement("INSERT INTO " + TABLE_NAME
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+                Set<String> tables = new HashSet<String>();
+
+                for (Map.Entry<String, ColumnStatistics> entry : stats.entrySet()) {
+                    // Table names cannot contain periods (see
+                    // TabularDataConverter).
+                    String key = entry.getKey();
+                    String table = key.substring(0, key.indexOf('.'));
+                    String column = key.substring(key.indexOf('.') + 1);
+                    ColumnStatistics colstats = entry.getValue();
+
+                    if (tables.add(table)) {
+                        delete.setString(1, table);
+                        delete.executeUpdate();
+                    }
+                    if (!hasColumn(stmt, table, column))
+                        continue;
+
+                    insert.setString(1, table);
+                    insert.setString(2, column);
+                    insert.setLong(3, colstats.getCount());
+                    insert.setLong(4, colstats.getBlankCount());
+                    insert.setInt(5, colstats.getMinLength());
+                    insert.setInt(6, colstats.getMaxLength());
+                    insert.setLong(7, colstats.getDistinctEstimate());
+                    insert.setString(8, colstats.getType());
+                    insert.executeUpdate();
+                }
+
+                delete.close();
+                insert.close();
+                stmt.execute("COMMIT");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static boolean hasColumn(Statement stmt, String table, String column) throws SQLException {
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info([" + table + "])");
+        boolean found = false;
+
+        while (rs.next() && !found)
+            found = column.equals(rs.getString("name"));
+        rs.close();
+
+        return found;
+    }
+}
@@ -0,0 +1,823 @@
+package reader;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Normalizes the DwC concepts of the main table of a DwC archive for
+ * DwCAFixer.  For each concept, every distinct combination of the values of
+ * the concept's terms (an "instance") becomes a row of a new table for the
+ * concept, and the concept's ID column in the main table is set to the ID of
+ * each row's instance.
+ *
+ * All concepts are normalized with a single scan of the main table.  The
+ * instances of each concept are kept in an open-addressing hash table, which
+ * gives each row a provisional instance number for each concept.  The numbers
+ * are written to a temporary table as the rows are scanned.  The instance
+ * tables are then filled by a SELECT DISTINCT over the instances, so the
+ * instances get exactly the same IDs as when the SELECT DISTINCT ran over the
+ * main table, and the ID columns of the main table are set by a single UPDATE
+ * that looks up each row's instance numbers by row ID.  Before, each concept
+ * took an UPDATE with a correlated subquery that compared every row of the
+ * main table with every instance, which took hours for large archives.
+ *
+ * The rows are read in batches.  Each concept only uses its own instances,
+ * so the rows of a batch are numbered for all of the concepts in parallel
+ * (see setParallelism()) while the next batch is read from the database.  The
+ * rows are numbered in the same order either way, so the result does not
+ * depend on the number of threads.
+ *
+ * The instances are held in memory.  If they become larger than the memory
+ * budget, the concept with the largest instances is "spilled": its instances
+ * are dropped, and the concept is normalized in the database instead, with an
+ * index on the instance table to find the ID of each row's instance.
+ */
+class ConceptNormalizer
+{
+    // the number of rows of the main table in each batch
+    private static final int BATCH_ROWS = 10000;
+    // the temporary tables for the provisional instance numbers of the rows,
+    // the instances of a concept, and the IDs of the instance numbers
+    private static final String ROWS_TABLE = "triplifier_instance_rows";
+    private static final String INSTANCES_TABLE = "triplifier_instances";
+    private static final String IDS_TABLE = "triplifier_instance_ids";
+    // the temporary index for normalizing spilled concepts
+    private static final String INSTANCE_INDEX = "triplifier_instance_idx";
+
+    private final Connection conn;
+    private final String tablename;
+    private final Map<String, String> coltypes;
+    private final ArrayList<Concept> concepts = new ArrayList<Concept>();
+    private long budget = Runtime.getRuntime().maxMemory() / 4;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates a new ConceptNormalizer for the main table of an archive.
+     *
+     * @param conn A connection to the archive's database.
+     * @param tablename The name of the main table.
+     * @param coltypes The declared types of the columns of the main table.
+     */
+    public ConceptNormalizer(Connection conn, String tablename, Map<String, String> coltypes) {
+        this.conn = conn;
+        this.tablename = tablename;
+        this.coltypes = coltypes;
+    }
+
+    /**
+     * Adds a concept to normalize.  The main table must already have the
+     * concept's ID column.
+     *
+     * @param conceptID The name of the concept's ID column.
+     * @param terms The concept's terms that are columns of the main table.
+     */
+    public void addConcept(String conceptID, List<String> terms) {
+        concepts.add(new Concept(conceptID, terms.toArray(new String[terms.size()])));
+    }
+
+    /**
+     * Adds a concept whose instances were numbered while the main table was
+     * loaded (see NormalizingInserter).  The concept's ID column must hold
+     * the instance number of each row.  Concepts that are added this way are
+     * normalized by setLoadedIDs(), not by normalize().
+     *
+     * @param conceptID The name of the concept's ID column.
+     * @param terms The concept's terms.
+     * @param instances The concept's instances.
+     */
+    public void addLoadedConcept(String conceptID, List<String> terms, InstanceTable instances) {
+        Concept concept = new Concept(conceptID, terms.toArray(new String[terms.size()]));
+        concept.instances = instances;
+        concepts.add(concept);
+    }
+
+    /**
+     * Get the approximate amount of memory that the instances of all
+     * concepts can use before a concept is spilled.
+     *
+     * @return The memory budget, in bytes.
+     */
+    public long getMemoryBudget() {
+        return budget;
+    }
+
+    /**
+     * Set the approximate amount of memory that the instances of all
+     * concepts can use before a concept is spilled.  By default, this is a
+     * quarter of the JVM's maximum heap size.
+     *
+     * @param budget The memory budget, in bytes.
+     */
+    public void setMemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get the number of threads used to number the instances of the
+     * concepts.
+     *
+     * @return The number of threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads to use for numbering the instances of the
+     * concepts.  No more threads than there are concepts are used.  A value
+     * of 1 (or less) numbers all instances on the calling thread.  By
+     * default, this is the number of available processors.
+     *
+     * @param parallelism The number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get the names of the concepts that were spilled by the most recent call
+     * to normalize().
+     *
+     * @return The ID column names of the spilled concepts.
+     */
+    public List<String> getSpilledConcepts() {
+        ArrayList<String> spilled = new ArrayList<String>();
+        for (Concept concept : concepts) {
+            if (concept.spilled)
+                spilled.add(concept.conceptID);
+        }
+
+        return spilled;
+    }
+
+    /**
+     * Normalizes all of the concepts, creating a table for each concept named
+     * after its ID column without the "ID" (e.g., "taxon" for "taxonID") and
+     * setting the ID columns of the main table.
+     *
+     * @throws SQLException
+     */
+    public void normalize() throws SQLException {
+        if (concepts.isEmpty())
+            return;
+
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("BEGIN TRANSACTION");
+            try {
+                for (Concept concept : concepts)
+                    concept.reset();
+
+                scanMainTable(stmt);
+
+                for (Concept concept : concepts) {
+                    if (!concept.spilled)
+                        createInstanceTable(stmt, concept);
+                }
+                setIDColumns(stmt, false);
+
+                for (Concept concept : concepts) {
+                    if (concept.spilled)
+                        normalizeInDatabase(stmt, concept);
+                }
+
+                stmt.execute("COMMIT");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Creates the tables for the concepts that were added with
+     * addLoadedConcept() and replaces the instance numbers in their ID
+     * columns with the IDs of the instances.  The instances get the same IDs
+     * as when the concepts are normalized by normalize().  The caller is
+     * responsible for the transaction.
+     *
+     * @throws SQLException
+     */
+    public void setLoadedIDs() throws SQLException {
+        if (concepts.isEmpty())
+            return;
+
+        Statement stmt = conn.createStatement();
+        try {
+            for (Concept concept : concepts)
+                createInstanceTable(stmt, concept);
+            setIDColumns(stmt, true);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Reads the term values of all concepts from the main table, finds the
+     * instance of each row for each concept, and writes the instance numbers
+     * to the temporary rows table.
+     */
+    private void scanMainTable(Statement stmt) throws SQLException {
+        StringBuilder select = new StringBuilder("SELECT rowid");
+        StringBuilder create = new StringBuilder("CREATE TEMP TABLE " + ROWS_TABLE
+                + " (mainrow INTEGER PRIMARY KEY");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + ROWS_TABLE + " VALUES (?");
+        int width = 0;
+        for (int cnt = 0; cnt < concepts.size(); cnt++) {
+            for (String term : concepts.get(cnt).terms)
+                select.append(", ").append(quote(term));
+            width += concepts.get(cnt).terms.length;
+            create.append(", c").append(cnt).append(" INTEGER");
+            insert.append(", ?");
+        }
+        select.append(" FROM ").append(quote(tablename));
+        create.append(")");
+        insert.append(")");
+
+        stmt.executeUpdate("DROP TABLE IF EXISTS temp." + ROWS_TABLE);
+        stmt.executeUpdate(create.toString());
+
+        ForkJoinPool pool = null;
+        if (parallelism > 1 && concepts.size() > 1)
+            pool = new ForkJoinPool(Math.min(parallelism, concepts.size()));
+
+        PreparedStatement pstmt = conn.prepareStatement(insert.toString());
+        try {
+            ResultSet rs = stmt.executeQuery(select.toString());
+            RowBatch batch = readBatch(rs, width);
+
+            while (batch.size > 0) {
+                // Start numbering the batch for each concept, and read the
+                // next batch in the meantime.
+                // Spilled concepts have no numberer.
+                ArrayList<InstanceNumberer> numberers = new ArrayList<InstanceNumberer>();
+                ArrayList<ForkJoinTask<int[]>> tasks = new ArrayList<ForkJoinTask<int[]>>();
+                int offset = 0;
+                for (Concept concept : concepts) {
+                    InstanceNumberer numberer = null;
+                    if (!concept.spilled)
+                        numberer = new InstanceNumberer(concept, batch, offset);
+                    numberers.add(numberer);
+                    tasks.add(pool == null || numberer == null ? null : pool.submit(numberer));
+                    offset += concept.terms.length;
+                }
+                RowBatch next = readBatch(rs, width);
+
+                int[][] numbers = new int[concepts.size()][];
+                for (int cnt = 0; cnt < concepts.size(); cnt++) {
+                    if (tasks.get(cnt) != null)
+                        numbers[cnt] = getNumbers(tasks, cnt);
+                    else if (numberers.get(cnt) != null)
+                        numbers[cnt] = numberers.get(cnt).call();
+                }
+
+                writeNumbers(pstmt, batch, numbers);
+
+                long memory = 0;
+                for (Concept concept : concepts) {
+                    if (!concept.spilled)
+                        memory += concept.instances.getMemory();
+                }
+                while (memory > budget && memory > 0)
+                    memory -= spillLargest();
+
+                batch = next;
+            }
+            rs.close();
+        } finally {
+            pstmt.close();
+            if (pool != null)
+                pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads the next batch of rows from the main table.
+     *
+     * @return The batch, which is empty if there are no more rows.
+     */
+    private static RowBatch readBatch(ResultSet rs, int width) throws SQLException {
+        RowBatch batch = new RowBatch();
+        while (batch.size < BATCH_ROWS && rs.next()) {
+            String[] values = new String[width];
+            for (int col = 0; col < width; col++)
+                values[col] = rs.getString(col + 2);
+
+            batch.rowids[batch.size] = rs.getLong(1);
+            batch.rows[batch.size++] = values;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Waits for a concept's instance numbers for a batch of rows.
+     */
+    private static int[] getNumbers(List<ForkJoinTask<int[]>> tasks, int task) throws SQLException {
+        try {
+            return tasks.get(task).get();
+        } catch (ExecutionException e) {
+            cancelAll(tasks);
+            throw new SQLException("Could not number the concept instances.", e.getCause());
+        } catch (InterruptedException e) {
+            cancelAll(tasks);
+            Thread.currentThread().interrupt();
+            throw new SQLException("The normalization was interrupted.", e);
+        }
+    }
+
+    private static void cancelAll(List<ForkJoinTask<int[]>> tasks) {
+        for (ForkJoinTask<int[]> task : tasks) {
+            if (task != null)
+                task.cancel(true);
+        }
+    }
+
+    /**
+     * Writes the instance numbers of a batch of rows to the rows table.
+     * Spilled concepts have no numbers.
+     */
+    private static void writeNumbers(PreparedStatement pstmt, RowBatch batch, int[][] numbers)
+            throws SQLException {
+        for (int row = 0; row < batch.size; row++) {
+            pstmt.setLong(1, batch.rowids[row]);
+            for (int cnt = 0; cnt < numbers.length; cnt++) {
+                if (numbers[cnt] == null)
+                    pstmt.setNull(cnt + 2, Types.INTEGER);
+                else
+                    pstmt.setInt(cnt + 2, numbers[cnt][row]);
+            }
+            pstmt.addBatch();
+        }
+
+        pstmt.executeBatch();
+    }
+
+    /**
+     * Drops the instances of the concept whose instances use the most memory.
+     *
+     * @return The approximate amount of memory that was freed, in bytes.
+     */
+    private long spillLargest() {
+        Concept largest = null;
+        for (Concept concept : concepts) {
+            if (!concept.spilled && (largest == null
+                    || concept.instances.getMemory() > largest.instances.getMemory()))
+                largest = concept;
+        }
+
+        long freed = largest.instances.getMemory();
+        largest.instances = null;
+        largest.spilled = true;
+
+        return freed;
+    }
+
+    /**
+     * Creates the table for a concept's instances and the temporary table of
+     * the IDs of its instance numbers.
+     */
+    private void createInstanceTable(Statement stmt, Concept concept) throws SQLException {
+        String newtablename = concept.getTableName();
+        createTable(stmt, concept);
+
+        // Copy the instances to a temporary table with the same column types
+        // as the main table, and let SQLite choose the order of the instance
+        // IDs just as it would for the main table.
+        stmt.executeUpdate("DROP TABLE IF EXISTS temp." + INSTANCES_TABLE);
+        StringBuilder create = new StringBuilder("CREATE TEMP TABLE " + INSTANCES_TABLE + " (");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + INSTANCES_TABLE + " VALUES (");
+        for (int cnt = 0; cnt < concept.terms.length; cnt++) {
+            String term = concept.terms[cnt];
+            if (cnt > 0) {
+                create.append(", ");
+                insert.append(", ");
+            }
+            create.append(quote(term)).append(DwCAFixer.getTypeDeclaration(coltypes, term));
+            insert.append("?");
+        }
+        create.append(")");
+        insert.append(")");
+        stmt.executeUpdate(create.toString());
+
+        InstanceTable instances = concept.instances;
+        PreparedStatement pstmt = conn.prepareStatement(insert.toString());
+        try {
+            for (int number = 0; number < instances.size(); number++) {
+                String[] values = instances.get(number);
+                for (int cnt = 0; cnt < values.length; cnt++)
+                    pstmt.setString(cnt + 1, values[cnt]);
+                pstmt.addBatch();
+                if ((number + 1) % BATCH_ROWS == 0)
+                    pstmt.executeBatch();
+            }
+            pstmt.executeBatch();
+        } finally {
+            pstmt.close();
+        }
+
+        fillTable(stmt, concept, "temp." + INSTANCES_TABLE);
+        stmt.executeUpdate("DROP TABLE temp." + INSTANCES_TABLE);
+
+        // Match the instances in the new table with the instance numbers.
+        // As in an SQL comparison, instances with null values do not match,
+        // so the rows of those instances get null IDs.
+        String idstable = IDS_TABLE + concepts.indexOf(concept);
+        stmt.executeUpdate("DROP TABLE IF EXISTS temp." + idstable);
+        stmt.executeUpdate("CREATE TEMP TABLE " + idstable
+                + " (number INTEGER PRIMARY KEY, id INTEGER)");
+
+        StringBuilder select = new StringBuilder("SELECT id");
+        for (String term : concept.terms)
+            select.append(", ").append(quote(term));
+        select.append(" FROM ").append(quote(newtablename));
+
+        pstmt = conn.prepareStatement("INSERT INTO " + idstable + " VALUES (?, ?)");
+        try {
+            ResultSet rs = stmt.executeQuery(select.toString());
+            String[] values = concept.values;
+            int rows = 0;
+
+            while (rs.next()) {
+                boolean hasnull = false;
+                for (int cnt = 0; cnt < values.length; cnt++) {
+                    values[cnt] = rs.getString(cnt + 2);
+                    hasnull = hasnull || values[cnt] == null;
+                }
+
+                int number = instances.find(values);
+                if (hasnull || number < 0)
+                    continue;
+
+                pstmt.setInt(1, number);
+                pstmt.setLong(2, rs.getLong(1));
+                pstmt.addBatch();
+                if (++rows % BATCH_ROWS == 0)
+                    pstmt.executeBatch();
+            }
+            rs.close();
+            pstmt.executeBatch();
+        } finally {
+            pstmt.close();
+        }
+
+        // The instances are no longer needed.
+        concept.instances = null;
+    }
+
+    /**
+     * Sets the ID columns of all concepts that were not spilled with a single
+     * UPDATE of the main table, and drops the temporary tables.  The instance
+     * number of each row is either in the rows table or, for loaded concepts,
+     * in the ID column itself.
+     */
+    private void setIDColumns(Statement stmt, boolean loaded) throws SQLException {
+        StringBuilder update = new StringBuilder("UPDATE " + quote(tablename) + " SET ");
+        boolean first = true;
+
+        for (int cnt = 0; cnt < concepts.size(); cnt++) {
+            Concept concept = concepts.get(cnt);
+            if (concept.spilled)
+                continue;
+
+            if (!first)
+                update.append(", ");
+            first = false;
+
+            update.append(quote(concept.conceptID)).append(" = (SELECT id FROM temp.")
+                    .append(IDS_TABLE).append(cnt).append(" WHERE number = ");
+            if (loaded)
+                update.append(quote(tablename)).append(".").append(quote(concept.conceptID));
+            else
+                update.append("(SELECT c").append(cnt).append(" FROM temp.").append(ROWS_TABLE)
+                        .append(" WHERE mainrow = ").append(quote(tablename)).append(".rowid)");
+            update.append(")");
+        }
+
+        if (!first)
+            stmt.executeUpdate(update.toString());
+
+        if (!loaded)
+            stmt.executeUpdate("DROP TABLE temp." + ROWS_TABLE);
+        for (int cnt = 0; cnt < concepts.size(); cnt++) {
+            if (!concepts.get(cnt).spilled)
+                stmt.executeUpdate("DROP TABLE temp." + IDS_TABLE + cnt);
+        }
+    }
+
+    /**
+     * Normalizes a spilled concept in the database: the instances are
+     * selected from the main table, and the ID of each row's instance is
+     * looked up with a temporary index on the instance table.
+     */
+    private void normalizeInDatabase(Statement stmt, Concept concept) throws SQLException {
+        String newtablename = concept.getTableName();
+        createTable(stmt, concept);
+        fillTable(stmt, concept, quote(tablename));
+
+        String collist = "";
+        String subquery = "SELECT id FROM " + quote(newtablename) + " WHERE ";
+        for (int cnt = 0; cnt < concept.terms.length; cnt++) {
+            String term = concept.terms[cnt];
+            if (cnt > 0) {
+                collist += ", ";
+                subquery += " AND ";
+            }
+            collist += quote(term);
+            subquery += quote(newtablename) + "." + quote(term) + "="
+                    + quote(tablename) + "." + quote(term);
+        }
+
+        stmt.executeUpdate("CREATE INDEX " + INSTANCE_INDEX + " ON " + quote(newtablename)
+                + " (" + collist + ")");
+        stmt.executeUpdate("UPDATE " + quote(tablename) + " SET " + quote(concept.conceptID)
+                + " = (" + subquery + ")");
+        stmt.executeUpdate("DROP INDEX " + INSTANCE_INDEX);
+    }
+
+    /**
+     * Creates the (empty) table for a concept's instances.
+     */
+    private void createTable(Statement stmt, Concept concept) throws SQLException {
+        String query = "CREATE TABLE '" + concept.getTableName() + "' (id INTEGER PRIMARY KEY";
+        for (String term : concept.terms)
+            query += ", '" + term + "'" + DwCAFixer.getTypeDeclaration(coltypes, term);
+        query += ")";
+
+        stmt.executeUpdate(query);
+    }
+
+    /**
+     * Fills the table for a concept's instances with the distinct
+     * combinations of the term values in another table, which generates
+     * integer IDs for the instances, and deletes the empty instance.
+     */
+    private void fillTable(Statement stmt, Concept concept, String source) throws SQLException {
+        // The IDs depend on the order of the distinct values, so values of
+        // typed columns are selected as text to get the same order (and IDs)
+        // as for untyped columns.  The new table's column types convert them
+        // back.
+        String collist = "";
+        String selectlist = "";
+        String blank = "";
+        for (int cnt = 0; cnt < concept.terms.length; cnt++) {
+            String term = concept.terms[cnt];
+            if (cnt > 0) {
+                collist += ", ";
+                selectlist += ", ";
+                blank += " AND ";
+            }
+            collist += quote(term);
+            if (DwCAFixer.getTypeDeclaration(coltypes, term).equals(""))
+                selectlist += quote(term);
+            else
+                selectlist += "CAST(" + quote(term) + " AS TEXT)";
+            blank += quote(term) + "=''";
+        }
+
+        String newtablename = quote(concept.getTableName());
+        stmt.executeUpdate("INSERT INTO " + newtablename + " (" + collist + ") SELECT DISTINCT "
+                + selectlist + " FROM " + source);
+
+        // If one or more of the original data records contained all blank
+        // values for the concept attributes, there is an empty instance.
+        // Delete it to ensure that an empty instance is not created during
+        // the translation to RDF.
+        stmt.executeUpdate("DELETE FROM " + newtablename + " WHERE " + blank);
+    }
+
+    private static String quote(String name) {
+        return "\"" + name + "\"";
+    }
+
+
+    /**
+     * A batch of rows of the main table, with the term values of all concepts
+     * for each row.
+     */
+    private static class RowBatch
+    {
+        final long[] rowids = new long[BATCH_ROWS];
+        final String[][] rows = new String[BATCH_ROWS][];
+        int size = 0;
+    }
+
+
+    /**
+     * Numbers the instances of one concept for a batch of rows.  Each
+     * concept's instances are only used by one numberer at a time.
+     */
+    private static class InstanceNumberer implements Callable<int[]>
+    {
+        private final Concept concept;
+        private final RowBatch batch;
+        // the position of the concept's first term in the rows of the batch
+        private final int offset;
+
+        InstanceNumberer(Concept concept, RowBatch batch, int offset) {
+            this.concept = concept;
+            this.batch = batch;
+            this.offset = offset;
+        }
+
+        @Override
+        public int[] call() {
+            int[] numbers = new int[batch.size];
+            String[] values = concept.values;
+
+            for (int row = 0; row < batch.size; row++) {
+                System.arraycopy(batch.rows[row], offset, values, 0, values.length);
+                numbers[row] = concept.instances.getNumber(values);
+            }
+
+            return numbers;
+        }
+    }
+
+
+    /**
+     * A concept to normalize.
+     */
+    private static class Concept
+    {
+        final String conceptID;
+        final String[] terms;
+        // a reusable array for the term values of one row
+        final String[] values;
+        InstanceTable instances;
+        boolean spilled;
+
+        Concept(String conceptID, String[] terms) {
+            this.conceptID = conceptID;
+            this.terms = terms;
+            values = new String[terms.length];
+        }
+
+        void reset() {
+            instances = new InstanceTable();
+            spilled = false;
+        }
+
+        String getTableName() {
+            return conceptID.replace("ID", "");
+        }
+    }
+
+
+    /**
+     * The instances of a concept, numbered in the order they were added.  The
+     * instances are found with an open-addressing hash table (with linear
+     * probing) that is kept in two int arrays, one for the instance numbers
+     * and one for the hash codes, so that finding an instance does not
+     * allocate any objects.
+     */
+    static class InstanceTable
+    {
+        private static final int INITIAL_SLOTS = 64;
+
+        // the number of each slot's instance plus 1, or 0 if the slot is empty
+        private int[] slots = new int[INITIAL_SLOTS];
+        private int[] hashes = new int[INITIAL_SLOTS];
+        private final ArrayList<String[]> instances = new ArrayList<String[]>();
+        // the estimated memory used by the instances, not counting the slots
+        private long memory = 0;
+
+        /**
+         * Get the number of an instance, adding the instance if it is new.
+         *
+         * @param values The term values of the instance.  The array is copied
+         * if the instance is added.
+         * @return The instance number.
+         */
+        public int getNumber(String[] values) {
+            int hash = hash(values);
+            int slot = findSlot(values, hash);
+            if (slots[slot] != 0)
+                return slots[slot] - 1;
+
+            int number = instances.size();
+            String[] copy = values.clone();
+            instances.add(copy);
+            slots[slot] = number + 1;
+            hashes[slot] = hash;
+
+            // Estimate the memory used by the instance.
+            memory += 16 + 4 * copy.length;
+            for (String value : copy) {
+                if (value != null)
+                    memory += 40 + 2 * value.length();
+            }
+
+            if (instances.size() * 2 > slots.length)
+                grow();
+
+            return number;
+        }
+
+        /**
+         * Get the number of an instance without adding it.
+         *
+         * @param values The term values of the instance.
+         * @return The instance number, or -1 if there is no such instance.
+         */
+        public int find(String[] values) {
+            return slots[findSlot(values, hash(values))] - 1;
+        }
+
+        /**
+         * Get the term values of an instance.
+         *
+         * @param number The instance number.
+         * @return The term values.
+         */
+        public String[] get(int number) {
+            return instances.get(number);
+        }
+
+        /**
+         * Get the number of instances.
+         *
+         * @return The number of instances.
+         */
+        public int size() {
+            return instances.size();
+        }
+
+        /**
+         * Get an estimate of the memory used by the instances.
+         *
+         * @return The estimated memory, in bytes.
+         */
+        public long getMemory() {
+            return memory + 8L * slots.length;
+        }
+
+        /**
+         * Finds the slot of an instance, or the empty slot where it belongs.
+         */
+        private int findSlot(String[] values, int hash) {
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+
+            while (slots[slot] != 0) {
+                if (hashes[slot] == hash && Arrays.equals(instances.get(slots[slot] - 1), values))
+                    break;
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldslots = slots, oldhashes = hashes;
+            slots = new int[oldslots.length * 2];
+            hashes = new int[oldslots.length * 2];
+
+            int mask = slots.length - 1;
+            for (int cnt = 0; cnt < oldslots.length; cnt++) {
+                if (oldslots[cnt] != 0) {
+                    int slot = oldhashes[cnt] & mask;
+                    while (slots[slot] != 0)
+                        slot = (slot + 1) & mask;
+                    slots[slot] = oldslots[cnt];
+                    hashes[slot] = oldhashes[cnt];
+                }
+            }
+        }
+
+        /**
+         * Hashes the term values of an instance.  The String hash codes are
+         * combined and then mixed (with the finalizer of MurmurHash3) so that
+         * similar instances do not end up in neighboring slots.
+         */
+        private static int hash(String[] values) {
+            int hash = 1;
+            for (String value : values)
+                hash = 31 * hash + (value == null ? 0 : value.hashCode());
+
+            hash ^= hash >>> 16;
+            hash *= 0x85ebca6b;
+            hash ^= hash >>> 13;
+            hash *= 0xc2b2ae35;
+            hash ^= hash >>> 16;
+
+            return hash;
+        }
+    }
+}
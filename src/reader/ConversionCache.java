@@ -0,0 +1,440 @@
+package reader;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import settings.SettingsManager;
+
+
+/**
+ * A cache of the SQLite databases created by TabularDataConverter, so that a
+ * data source that has already been converted (e.g., a spreadsheet that is
+ * uploaded again while its mapping is being worked on) does not need to be
+ * read and converted again.  Entries are keyed by a hash of the contents of
+ * the data source and of the conversion settings that affect the resulting
+ * database, so a changed data source is always converted again.  Each entry
+ * is a SQLite file, optionally with a string of metadata (e.g., the JSON of
+ * the data source's Mapping), stored in the cache directory.
+ *
+ * The cache is bounded by the total size of its entries.  When a new entry
+ * makes the cache too large, the least recently used entries are removed.
+ * The cache directory can be shared by several processes, since entries are
+ * only ever added by renaming complete files, and a failure to read an entry
+ * is treated as a cache miss.
+ *
+ * The cache directory and maximum size are set with the
+ * "conversionCacheDirectory" and "conversionCacheMaxSize" settings in
+ * triplifiersettings.props.  The cache is off unless a maximum size is set,
+ * since it keeps copies of the converted data.  For the same reason, the
+ * cache directory and its entries are only readable by their owner.
+ */
+public class ConversionCache {
+    public static final String DIRECTORY_KEY = "conversionCacheDirectory";
+    public static final String MAX_SIZE_KEY = "conversionCacheMaxSize";
+    // the default maximum total size of the cache entries, in bytes (i.e.,
+    // the cache is off by default)
+    public static final long DEFAULT_MAX_SIZE = 0;
+
+    // Identifies the layout of the converted databases.  This must be changed
+    // whenever a change to TabularDataConverter or the readers changes the
+    // database that is created from a data source, so that old entries are
+    // not used.
+    private static final String FORMAT_VERSION = "2";
+
+    private static final String DATABASE_EXT = ".sqlite";
+    private static final String METADATA_EXT = ".meta";
+
+    // Serializes changes to the cache within this JVM.
+    private static final Object lock = new Object();
+
+    private final File directory;
+    private final long maxsize;
+
+    /**
+     * Creates a new ConversionCache.
+     *
+     * @param directory The cache directory, which is created if needed.
+     * @param maxsize The maximum total size of the cache entries, in bytes.
+     */
+    public ConversionCache(File directory, long maxsize) {
+        this.directory = directory;
+        this.maxsize = maxsize;
+    }
+
+    /**
+     * Get the cache configured in triplifiersettings.props.  If no directory
+     * is configured, the "triplifier-cache" directory in the system's
+     * temporary directory is used.
+     *
+     * @return The configured cache, or null if the cache is turned off (the
+     * maximum size is 0) or the cache directory cannot be used.
+     */
+    public static ConversionCache getConfiguredCache() {
+        String dirname = "";
+        long maxsize = DEFAULT_MAX_SIZE;
+
+        try {
+            SettingsManager sm = SettingsManager.getInstance();
+            sm.loadProperties();
+
+            dirname = sm.retrieveValue(DIRECTORY_KEY).trim();
+            String value = sm.retrieveValue(MAX_SIZE_KEY);
+            if (!value.equals(""))
+                maxsize = Long.parseLong(value.trim());
+        } catch (Exception e) {
+            // The settings file is not available or a value is invalid, so
+            // use the defaults.
+        }
+
+        if (maxsize <= 0)
+            return null;
+
+        File directory;
+        if (dirname.equals(""))
+            directory = new File(System.getProperty("java.io.tmpdir"), "triplifier-cache");
+        else
+            directory = new File(dirname);
+
+        if (directory.mkdirs())
+            restrictToOwner(directory);
+        if (!directory.isDirectory() || !directory.canWrite())
+            return null;
+
+        return new ConversionCache(directory, maxsize);
+    }
+
+    /**
+     * Get the cache key for a data source.  Readers are chosen partly by
+     * file extension, so the key includes the extension of the data source
+     * as well as its contents.  Directories are hashed by the names and
+     * contents of all of the files they contain.
+     *
+     * @param source A data source file or directory.
+     * @param fixdwca Whether the database will be fixed with DwCAFixer.
+     * @param normalizingloader Whether DwC archives will be normalized while
+     * they are loaded (see TabularDataConverter.setNormalizingLoader()).
+     * @param typedcolumns Whether column types will be inferred (see
+     * TabularDataConverter.setTypedColumns()).
+     * @return The cache key, as a hexadecimal string.
+     * @throws IOException
+     */
+    public String getKey(File source, boolean fixdwca, boolean normalizingloader,
+            boolean typedcolumns) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        String name = source.getName();
+        String ext = name.lastIndexOf('.') < 0 ? "" : name.substring(name.lastIndexOf('.')).toLowerCase();
+        update(digest, "format=" + FORMAT_VERSION + "\next=" + ext + "\ndwcFixer=" + fixdwca
+                + "\nnormalizingLoader=" + normalizingloader + "\ntypedColumns=" + typedcolumns + "\n");
+        hashContents(digest, source, "");
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b & 0xff));
+
+        return key.toString();
+    }
+
+    private void hashContents(MessageDigest digest, File source, String path) throws IOException {
+        if (source.isDirectory()) {
+            File[] files = source.listFiles();
+            if (files == null)
+                throw new IOException("Could not list the contents of " + source.getPath() + ".");
+
+            Arrays.sort(files);
+            for (File file : files)
+                hashContents(digest, file, path + "/" + file.getName());
+        } else {
+            update(digest, path + "\n" + source.length() + "\n");
+
+            InputStream in = new FileInputStream(source);
+            try {
+                byte[] buffer = new byte[65536];
+                int cnt;
+                while ((cnt = in.read(buffer)) != -1)
+                    digest.update(buffer, 0, cnt);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String str) {
+        try {
+            digest.update(str.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies a cached database to a file, if the cache has an entry for the
+     * key.  The entry becomes the most recently used entry.
+     *
+     * @param key A cache key from getKey().
+     * @param dest The file to copy the database to.  If it exists, it is
+     * overwritten.
+     * @return True if the database was copied, false if there is no entry
+     * for the key or it could not be read.
+     */
+    public boolean fetch(String key, File dest) {
+        File dbfile = getDatabaseFile(key);
+
+        synchronized (lock) {
+            if (!dbfile.exists())
+                return false;
+            dbfile.setLastModified(System.currentTimeMillis());
+        }
+
+        try {
+            copyFile(dbfile, dest);
+        } catch (IOException e) {
+            // The entry was probably removed by another process.
+            dest.delete();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the metadata stored with a cache entry.
+     *
+     * @param key A cache key from getKey().
+     * @return The metadata, or null if the entry has no metadata or there is
+     * no entry for the key.
+     */
+    public String getMetadata(String key) {
+        File metafile = getMetadataFile(key);
+        if (!metafile.exists())
+            return null;
+
+        try {
+            InputStream in = new FileInputStream(metafile);
+            try {
+                byte[] contents = new byte[(int)metafile.length()];
+                int pos = 0, cnt;
+                while (pos < contents.length && (cnt = in.read(contents, pos, contents.length - pos)) != -1)
+                    pos += cnt;
+
+                return new String(contents, 0, pos, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a converted database to the cache, replacing any existing entry
+     * for the key, and removes the least recently used entries if the cache
+     * has become too large.  Databases that are larger than the cache are not
+     * stored.
+     *
+     * @param key A cache key from getKey().
+     * @param database The SQLite file to store.  The file is copied.
+     * @param metadata A string to store with the database, or null.
+     * @throws IOException
+     */
+    public void store(String key, File database, String metadata) throws IOException {
+        if (database.length() > maxsize)
+            return;
+
+        File tmpfile = createEntryFile();
+        try {
+            copyFile(database, tmpfile);
+            addEntry(key, tmpfile, metadata);
+        } finally {
+            tmpfile.delete();
+        }
+    }
+
+    /**
+     * Adds an in-memory database to the cache, replacing any existing entry
+     * for the key, and removes the least recently used entries if the cache
+     * has become too large.  Databases that are larger than the cache are not
+     * stored.
+     *
+     * @param key A cache key from getKey().
+     * @param database The database to store.
+     * @param metadata A string to store with the database, or null.
+     * @throws IOException
+     * @throws SQLException
+     */
+    public void store(String key, InMemoryDatabase database, String metadata)
+            throws IOException, SQLException {
+        File tmpfile = createEntryFile();
+        try {
+            database.backup(tmpfile);
+            if (tmpfile.length() <= maxsize)
+                addEntry(key, tmpfile, metadata);
+        } finally {
+            tmpfile.delete();
+        }
+    }
+
+    /**
+     * Moves a complete database file from the cache directory into place as
+     * the entry for a key.
+     */
+    private void addEntry(String key, File tmpfile, String metadata) throws IOException {
+        File dbfile = getDatabaseFile(key);
+        File metafile = getMetadataFile(key);
+
+        synchronized (lock) {
+            // Write the metadata first, since an entry is only used once its
+            // database file exists.
+            dbfile.delete();
+            metafile.delete();
+            if (metadata != null) {
+                File tmpmeta = createEntryFile();
+                Writer writer = new OutputStreamWriter(new FileOutputStream(tmpmeta), "UTF-8");
+                try {
+                    writer.write(metadata);
+                } finally {
+                    writer.close();
+                }
+                if (!tmpmeta.renameTo(metafile)) {
+                    tmpmeta.delete();
+                    throw new IOException("Could not create the cache file " + metafile.getPath() + ".");
+                }
+            }
+
+            if (!tmpfile.renameTo(dbfile)) {
+                metafile.delete();
+                throw new IOException("Could not create the cache file " + dbfile.getPath() + ".");
+            }
+
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is no larger
+     * than its maximum size.
+     */
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // Take the times of last use before sorting, since they can be
+        // changed by other threads or processes.
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        long total = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(DATABASE_EXT)) {
+                Entry entry = new Entry(file, getMetadataFile(file));
+                entries.add(entry);
+                total += entry.size;
+            }
+        }
+
+        Collections.sort(entries);
+        for (int i = 0; i < entries.size() && total > maxsize; i++) {
+            Entry entry = entries.get(i);
+            if (entry.dbfile.delete()) {
+                entry.metafile.delete();
+                total -= entry.size;
+            }
+        }
+    }
+
+    private File getDatabaseFile(String key) {
+        return new File(directory, key + DATABASE_EXT);
+    }
+
+    private File getMetadataFile(String key) {
+        return new File(directory, key + METADATA_EXT);
+    }
+
+    private File getMetadataFile(File dbfile) {
+        String name = dbfile.getName();
+        return getMetadataFile(name.substring(0, name.length() - DATABASE_EXT.length()));
+    }
+
+    /**
+     * Creates a new, empty file in the cache directory that only its owner
+     * can read, for an entry that is being written.
+     */
+    private File createEntryFile() throws IOException {
+        File tmpfile = File.createTempFile("entry", ".tmp", directory);
+        restrictToOwner(tmpfile);
+
+        return tmpfile;
+    }
+
+    /**
+     * Takes away all permissions of users other than the owner of a file or
+     * directory, as far as the file system supports it.
+     */
+    private static void restrictToOwner(File file) {
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(false, false);
+        file.setWritable(true, true);
+        file.setExecutable(false, false);
+        if (file.isDirectory())
+            file.setExecutable(true, true);
+    }
+
+    private static void copyFile(File source, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(dest);
+            try {
+                FileChannel inchannel = in.getChannel();
+                long size = inchannel.size(), pos = 0;
+                while (pos < size)
+                    pos += inchannel.transferTo(pos, size - pos, out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * A cache entry, ordered from least to most recently used.
+     */
+    private static class Entry implements Comparable<Entry>
+    {
+        final File dbfile, metafile;
+        final long lastused, size;
+
+        Entry(File dbfile, File metafile) {
+            this.dbfile = dbfile;
+            this.metafile = metafile;
+            lastused = dbfile.lastModified();
+            size = dbfile.length() + metafile.length();
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return lastused < other.lastused ? -1 : (lastused == other.lastused ? 0 : 1);
+        }
+    }
+}
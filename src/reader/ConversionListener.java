@@ -0,0 +1,63 @@
+package reader;
+
+
+/**
+ * Receives progress reports from a TabularDataConverter while it converts a
+ * data source, including the phases of the DwCAFixer, if it runs.  Row
+ * counts are only reported every so many rows (see
+ * TabularDataConverter.setProgressInterval()), so reports are cheap enough to
+ * leave on for large conversions.
+ *
+ * The tables of some data sources are converted concurrently, so the methods
+ * of a listener can be called from several threads at once, and the reports
+ * for different tables can be interleaved.  Listeners should return quickly,
+ * since they are called from the threads that load the data.
+ *
+ * Byte counts are approximate: they count one byte for each character of the
+ * values that were loaded.
+ */
+public interface ConversionListener
+{
+    /**
+     * Called when the converter starts to load a table.
+     *
+     * @param tname The name of the table in the destination database.
+     */
+    public void tableStarted(String tname);
+
+    /**
+     * Called periodically while the rows of a table are loaded.
+     *
+     * @param tname The name of the table.
+     * @param rows The number of rows loaded so far.
+     * @param bytes The approximate number of bytes loaded so far.
+     * @param millis The time since the table was started, in milliseconds.
+     */
+    public void rowsLoaded(String tname, long rows, long bytes, long millis);
+
+    /**
+     * Called when all rows of a table have been loaded.
+     *
+     * @param tname The name of the table.
+     * @param rows The number of rows in the table.
+     * @param bytes The approximate number of bytes loaded.
+     * @param millis The time taken to load the table, in milliseconds.
+     */
+    public void tableFinished(String tname, long rows, long bytes, long millis);
+
+    /**
+     * Called when the DwCAFixer starts a phase of fixing a Darwin Core
+     * archive.
+     *
+     * @param phase A description of the phase.
+     */
+    public void fixerPhase(String phase);
+
+    /**
+     * Called when the conversion is complete.
+     *
+     * @param rows The total number of rows loaded.
+     * @param millis The time taken by the conversion, in milliseconds.
+     */
+    public void conversionFinished(long rows, long millis);
+}
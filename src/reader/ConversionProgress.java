@@ -0,0 +1,172 @@
+package reader;
+
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A ConversionListener that keeps track of the overall progress of a
+ * conversion, so that it can be polled from another thread (e.g., by the REST
+ * service, which returns a ConversionProgress as JSON while an upload is
+ * converted).  It can also print the progress as it happens, which is used by
+ * the command-line Triplifier.  When printing, row counts are printed at most
+ * once per second.
+ *
+ * The progress is kept in lock-free counters and maps, so the reports from
+ * concurrently converted tables do not block each other.
+ */
+public class ConversionProgress implements ConversionListener
+{
+    // the minimum time between printed row counts, in milliseconds
+    private static final long PRINT_INTERVAL = 1000;
+
+    private final PrintStream out;
+    private final long starttime = System.currentTimeMillis();
+    private final AtomicLong lastprint = new AtomicLong(0);
+
+    // the latest row and byte counts of each table
+    private final ConcurrentHashMap<String, long[]> tablecounts =
+            new ConcurrentHashMap<String, long[]>();
+    // the row and byte counts of the finished tables
+    private final AtomicLong finishedrows = new AtomicLong(0);
+    private final AtomicLong finishedbytes = new AtomicLong(0);
+
+    private volatile String phase = "starting";
+    private volatile boolean finished = false;
+    private volatile long totaltime = -1;
+
+    /**
+     * Creates a new ConversionProgress that does not print anything.
+     */
+    public ConversionProgress() {
+        this(null);
+    }
+
+    /**
+     * Creates a new ConversionProgress that prints the progress as it
+     * happens.
+     *
+     * @param out Where to print the progress, or null to not print it.
+     */
+    public ConversionProgress(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void tableStarted(String tname) {
+        tablecounts.put(tname, new long[] { 0, 0 });
+        phase = "loading table " + tname;
+        print(phase);
+    }
+
+    @Override
+    public void rowsLoaded(String tname, long rows, long bytes, long millis) {
+        tablecounts.put(tname, new long[] { rows, bytes });
+
+        if (out != null) {
+            long now = System.currentTimeMillis();
+            long last = lastprint.get();
+            if (now - last >= PRINT_INTERVAL && lastprint.compareAndSet(last, now))
+                print(tname + ": " + rows + " rows (" + getRate(rows, millis) + " rows/s)");
+        }
+    }
+
+    @Override
+    public void tableFinished(String tname, long rows, long bytes, long millis) {
+        // Move the table's counts to the totals of the finished tables.
+        if (tablecounts.remove(tname) != null) {
+            finishedrows.addAndGet(rows);
+            finishedbytes.addAndGet(bytes);
+        }
+        print(tname + ": " + rows + " rows loaded in " + millis + " ms (" + getRate(rows, millis)
+                + " rows/s)");
+    }
+
+    @Override
+    public void fixerPhase(String phase) {
+        this.phase = phase;
+        print(phase);
+    }
+
+    @Override
+    public void conversionFinished(long rows, long millis) {
+        phase = "finished";
+        totaltime = millis;
+        finished = true;
+        print("Converted " + rows + " rows in " + millis + " ms");
+    }
+
+    private void print(String message) {
+        if (out != null)
+            out.println(message);
+    }
+
+    private static long getRate(long rows, long millis) {
+        return millis > 0 ? rows * 1000 / millis : 0;
+    }
+
+    /**
+     * Get a description of what the conversion is currently doing.
+     *
+     * @return The current phase.
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get the number of rows loaded so far, in all tables.
+     *
+     * @return The number of rows.
+     */
+    public long getRows() {
+        long rows = finishedrows.get();
+        for (long[] counts : tablecounts.values())
+            rows += counts[0];
+
+        return rows;
+    }
+
+    /**
+     * Get the approximate number of bytes loaded so far, in all tables.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+        long bytes = finishedbytes.get();
+        for (long[] counts : tablecounts.values())
+            bytes += counts[1];
+
+        return bytes;
+    }
+
+    /**
+     * Get the time since the conversion started, or, once it is finished, the
+     * time the conversion took.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getElapsedTime() {
+        return finished ? totaltime : System.currentTimeMillis() - starttime;
+    }
+
+    /**
+     * Get the average number of rows loaded per second so far.
+     *
+     * @return The number of rows per second.
+     */
+    public long getRowsPerSecond() {
+        return getRate(getRows(), getElapsedTime());
+    }
+
+    /**
+     * Test if the conversion is finished.
+     *
+     * @return True if the conversion is finished.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
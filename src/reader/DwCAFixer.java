@@ -5,7 +5,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -21,6 +25,15 @@ public class DwCAFixer
     // A map for representing which DwC terms match with each conceptID name.
     private static HashMap<String, String[]> dwcterms = initializeTerms();
     
+    // The name of the main table of a fixed archive.
+    static final String MAIN_TABLE = "maintable";
+    
+    // The listener to report the phases of fixing an archive to, if any.
+    private ConversionListener listener = null;
+    
+    // The number of threads to use for normalizing the concepts.
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    
     /**
      * Initializes the map of DwC terms to class ID names.
      */
@@ -74,6 +87,83 @@ public class DwCAFixer
         return terms;
     }
     
+    /**
+     * Gets the ID column names of the DwC concepts, in the order in which
+     * fixArchive() processes the concepts.
+     */
+    static Set<String> getConceptIDs() {
+        return Collections.unmodifiableSet(dwcterms.keySet());
+    }
+    
+    /**
+     * Gets the terms of a DwC concept that are columns of a table, in the
+     * order of the concept's terms.
+     * 
+     * @param conceptID The name of the concept's ID column.
+     * @param colnames The column names of the table.
+     * @return The concept's terms that are in the table.
+     */
+    static ArrayList<String> getIncludedTerms(String conceptID, List<String> colnames) {
+        ArrayList<String> includedterms = new ArrayList<String>();
+        for (String term : dwcterms.get(conceptID)) {
+            if (colnames.contains(term))
+                includedterms.add(term);
+        }
+        
+        return includedterms;
+    }
+    
+    /**
+     * Sets a listener to report each phase of fixing an archive to.
+     * 
+     * @param listener The listener, or null for no progress reports.
+     */
+    public void setConversionListener(ConversionListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Get the number of threads used to normalize the concepts of an archive.
+     * 
+     * @return The number of threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Set the number of threads to use for normalizing the concepts of an
+     * archive.  The concepts read disjoint columns of the main table, so
+     * their instances are found in parallel while the table is scanned (see
+     * ConceptNormalizer).  The archive is the same for any number of
+     * threads.  A value of 1 (or less) normalizes the concepts on the
+     * calling thread.  By default, this is the number of available
+     * processors.
+     * 
+     * @param parallelism The number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * Reports the start of a phase to the listener, if there is one.
+     */
+    private void startPhase(String phase) {
+        if (listener != null)
+            listener.fixerPhase(phase);
+    }
+    
+    /**
+     * Gets the type declaration to use for a column in a new table, which is
+     * the column's type in the original table (if it has one).
+     */
+    static String getTypeDeclaration(Map<String, String> coltypes, String colname) {
+        String type = coltypes.get(colname);
+        
+        return type == null || type.equals("") ? "" : " " + type;
+    }
+    
     /**
      * Attempts to "fix" Darwin Core archive data.  This method expects to get
      * an active connection to a SQLite database that contains the data for a
@@ -86,9 +176,11 @@ public class DwCAFixer
      * single-table archives are currently supported by fixArchive().
      * 
      * @param dbconn A connection to a SQLite database for a DwC archive.
+     * @return The original name of the archive table, which is renamed to
+     * "maintable", or null if the database does not have exactly one table.
      * @throws SQLException 
      */
-    public void fixArchive(Connection dbconn) throws SQLException {
+    public String fixArchive(Connection dbconn) throws SQLException {
         Statement stmt = dbconn.createStatement();
         // A list for tracking which terms are present in the source data.
         ArrayList<String> includedterms = new ArrayList<String>();
@@ -109,35 +201,35 @@ public class DwCAFixer
             tablecnt++;
         }
         if (tablecnt != 1)
-            return;
+            return null;
         //System.out.println(tablename);
         
-        // Get the column names and store them in a list.
+        // Get the column names and store them in a list.  Also get the
+        // declared column types (see TabularDataConverter.setTypedColumns()),
+        // which are kept when columns are moved to new tables.
         ArrayList<String> colnames = new ArrayList<String>();
+        HashMap<String, String> coltypes = new HashMap<String, String>();
         rs = stmt.executeQuery("PRAGMA table_info('" + tablename + "')");
         while (rs.next()) {
             colnames.add(rs.getString("name"));
+            coltypes.put(rs.getString("name"), rs.getString("type"));
         }
         //for (String colname : colnames)
         //    System.out.println(colname);
         
         // Now work through each DwC concept.  See if the concept is represented
         // in the data source, verify if the appropriate ID column is present,
-        // and if not, try to create it.
+        // and if not, try to create it.  The concepts are then normalized all
+        // at once by a ConceptNormalizer.
+        ConceptNormalizer normalizer = new ConceptNormalizer(dbconn, tablename, coltypes);
+        normalizer.setParallelism(parallelism);
         boolean hasIDcolumn, IDcolpopulated;
         for (String conceptID : dwcterms.keySet()) {
             //System.out.println(conceptID);
             
             // Go through all terms for the current conceptID and see which, if
             // any, are present in the source data.
-            includedterms.clear();
-            for (String term : dwcterms.get(conceptID)) {
-                //System.out.println("  " + term);
-                if (colnames.contains(term)) {
-                    //System.out.println("  " + term);
-                    includedterms.add(term);
-                }
-            }
+            includedterms = getIncludedTerms(conceptID, colnames);
             
             // Check if an ID column already exists for this concept.
             hasIDcolumn = colnames.contains(conceptID);
@@ -154,6 +246,7 @@ public class DwCAFixer
             // already a populated ID column for it, process this concept.
             if (!includedterms.isEmpty() && !(hasIDcolumn && IDcolpopulated)) {
                // System.out.println("Fixing missing or empty \"" + conceptID + "\" column.");
+                startPhase("Fixing missing or empty " + conceptID + " column");
                 
                 stmt.execute("BEGIN TRANSACTION");
                 
@@ -170,16 +263,22 @@ public class DwCAFixer
                 // concepts.  Each Occurrence gets its own Identification
                 // instance, so we don't normalize the Identification data.
                 // For all other concepts, we create a new, normalized table.
+                // Keep track of the columns we are relocating so that they
+                // can be deleted from the main table later.
                 if (conceptID.equals("identificationID")) {
                     createIdentificationIDs(stmt, tablename, includedterms);
                 } else {
-                    createConceptTable(stmt, conceptID, tablename, includedterms, deletecolumns);
+                    normalizer.addConcept(conceptID, includedterms);
+                    deletecolumns.addAll(includedterms);
                 }
                 
                 stmt.execute("COMMIT");
             }
         }
         
+        startPhase("Normalizing the concept data");
+        normalizer.normalize();
+        
         // Check if the occurrenceID column is already populated.  If not, add
         // it to the list of columns to delete so that we can re-create it as
         // an autoincrement column.
@@ -207,15 +306,17 @@ public class DwCAFixer
         // Build a formatted list of the column names to use in subsequent
         // queries.
         String savedcollist = "";
+        String newcollist = "";
         int cnt = 0;
         for (String colname : keepcolumns) {
             if (cnt > 0) {
                 savedcollist += ", ";
+                newcollist += ", ";
             }
             savedcollist += "\"" + colname + "\"";
+            newcollist += "\"" + colname + "\"" + getTypeDeclaration(coltypes, colname);
             cnt++;
         }
-        String newcollist = savedcollist;
         if (!occurrenceIDpopltd) {
             // If occurrenceID was not populated, create a new auto-increment
             // column for it.
@@ -224,6 +325,7 @@ public class DwCAFixer
         
         // Run the queries.
         //System.out.println("Removing unneeded columns from the main table.");
+        startPhase("Removing unneeded columns from the main table");
         stmt.execute("BEGIN TRANSACTION");
         
         query = "CREATE TABLE \"" + tablename + "_tmp\"(" + newcollist + ")";
@@ -237,98 +339,15 @@ public class DwCAFixer
         stmt.executeUpdate(query);
         
         query = "ALTER TABLE \"" + tablename + "_tmp\" RENAME TO " +
-                "\"" + "maintable" + "\"";
+                "\"" + MAIN_TABLE + "\"";
         //System.out.println(query);
         stmt.executeUpdate(query);
         
         stmt.execute("COMMIT");
         
         stmt.close();
-    }
-    
-    /**
-     * Creates a normalized table for the attribute data for a DwC concept.
-     * 
-     * @param stmt The Statement object to use for running the SQL statements.
-     * @param conceptID The name of the conceptID for the DwC concept.
-     * @param tablename The name of the DB table for the original data.
-     * @param includedterms The DwC terms for this concept that are in the data.
-     * @param deletecolumns A list of columns to delete from the original table.
-     * @throws SQLException 
-     */
-    private void createConceptTable(Statement stmt, String conceptID,
-            String tablename, ArrayList<String> includedterms,
-            ArrayList<String> deletecolumns) throws SQLException {
-        // The name of the newly-created table.
-        String newtablename;
-
-        // Create a new table to select all distinct values into.
-        //System.out.println("USING TEMPORARY TABLE!!!!!!");
-        //System.out.println("NOT USING TEMPORARY TABLE!!!!!!");
-        newtablename = conceptID.replace("ID", "");
-        String query = "CREATE TABLE '" + newtablename + "' "
-                + "(id INTEGER PRIMARY KEY";
-        for (String term : includedterms) {
-            query += ", '" + term + "'";
-            // Keep track of the columns we are relocating so that they
-            // can be deleted from the main table later.
-            deletecolumns.add(term);
-        }
-        query += ")";
-        //System.out.println(query);
-        stmt.executeUpdate(query);
-
-        // Populate the new table with all distinct combinations
-        // of the concept term values and generate integer IDs for each
-        // distinct "instance."
-        int cnt = 0;
-        String collist = "";
-        for (String term : includedterms) {
-            if (cnt > 0) {
-                collist += ", ";
-            }
-            collist += "\"" + term + "\"";
-            cnt++;
-        }
-        query = "INSERT INTO \"" + newtablename + "\" (" + collist
-                + ") SELECT DISTINCT " + collist
-                + " FROM \"" + tablename + "\"";
-        //System.out.println(query);
-        stmt.executeUpdate(query);
-
-        // Check if there is an empty row in the new table (this will
-        // happen if one or more of the original data records contained
-        // all blank values for the concept attributes).  If so, delete
-        // it from the table to ensure that an empty instance is not
-        // created during the translation to RDF.
-        query = "DELETE FROM \"" + newtablename + "\" WHERE ";
-        cnt = 0;
-        for (String term : includedterms) {
-            if (cnt > 0) {
-                query += " AND ";
-            }
-            query += "\"" + term + "\"=''";
-            cnt++;
-        }
-        //System.out.println(query);
-        stmt.executeUpdate(query);
-
-        // Finally, copy the ID numbers to the appropriate ID column of
-        // the matching rows in the source data table.
-        String subquery = "SELECT id FROM \"" + newtablename + "\" WHERE ";
-        cnt = 0;
-        for (String term : includedterms) {
-            if (cnt > 0) {
-                subquery += " AND ";
-            }
-            subquery += "\"" + newtablename + "\".\"" + term + "\"="
-                    + "\"" + tablename + "\".\"" + term + "\"";
-            cnt++;
-        }
-        query = "UPDATE \"" + tablename + "\" SET \""
-                + conceptID + "\" = (" + subquery + ")";
-        //System.out.println(query);
-        stmt.executeUpdate(query);
+        
+        return tablename;
     }
     
     /**
@@ -0,0 +1,193 @@
+package reader;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+
+
+/**
+ * Identifies the general type of a data file from its first few bytes (its
+ * "magic number").  ReaderManager uses the signature of a file to decide which
+ * reader plugins should be asked to open the file, so that, for example, an
+ * Excel file is never handed to a reader that would try to decompress it.
+ * Each signature lists the format strings of the readers that can read files
+ * with that signature, in the order in which they should be tried.
+ */
+public enum FileSignature {
+    /** An OpenDocument file (a zip archive with an OpenDocument mimetype). */
+    ODF ("ODF"),
+    /** An Office Open XML file (a zip archive with OOXML parts). */
+    OOXML ("EXCEL"),
+    /** Any other zip archive. */
+    ZIP ("EXCEL", "ODF", "DwCA"),
+    /** An OLE2 compound document, such as an Excel 97-2003 workbook. */
+    OLE2 ("EXCEL"),
+    /** A plain text file. */
+    TEXT ("CSV", "DwCA"),
+    /** A directory (e.g., an unzipped Darwin Core Archive). */
+    DIRECTORY ("DwCA"),
+    /** A file that could not be read or that has an unrecognized signature. */
+    UNKNOWN ();
+
+    // The number of bytes at the start of a file that are examined.
+    private static final int HEADER_SIZE = 512;
+
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+    private static final byte[] OLE2_MAGIC = {
+        (byte)0xD0, (byte)0xCF, 0x11, (byte)0xE0, (byte)0xA1, (byte)0xB1, 0x1A, (byte)0xE1
+    };
+
+    // the format strings that appear in any signature's list of formats
+    private static HashSet<String> knownformats;
+
+    private final String[] formats;
+
+    FileSignature(String... formats) {
+        this.formats = formats;
+    }
+
+    /**
+     * Get the format strings of the readers that can read files with this
+     * signature, in the order in which the readers should be tried.
+     *
+     * @return An array of reader format strings.
+     */
+    public String[] getFormats() {
+        return formats.clone();
+    }
+
+    /**
+     * Test if a reader format is associated with any file signature.  Readers
+     * with unknown formats (e.g., third-party plugins) cannot be routed by
+     * signature.
+     *
+     * @param formatstring A reader format string.
+     * @return True if at least one signature lists the format.
+     */
+    public static synchronized boolean isKnownFormat(String formatstring) {
+        if (knownformats == null) {
+            knownformats = new HashSet<String>();
+            for (FileSignature sig : values()) {
+                for (String format : sig.formats)
+                    knownformats.add(format);
+            }
+        }
+
+        return knownformats.contains(formatstring);
+    }
+
+    /**
+     * Determines the signature of a file.  Only the first few hundred bytes of
+     * the file are read.
+     *
+     * @param filepath The path of a data file or directory.
+     * @return The signature of the file.
+     */
+    public static FileSignature detect(String filepath) {
+        File file = new File(filepath);
+
+        if (file.isDirectory())
+            return DIRECTORY;
+
+        byte[] header = new byte[HEADER_SIZE];
+        int len = 0;
+
+        try {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                int cnt;
+                while (len < header.length && (cnt = is.read(header, len, header.length - len)) > 0)
+                    len += cnt;
+            }
+            finally {
+                is.close();
+            }
+        }
+        catch (IOException e) {
+            return UNKNOWN;
+        }
+
+        if (startsWith(header, len, ZIP_MAGIC))
+            return detectZipType(header, len);
+        else if (startsWith(header, len, OLE2_MAGIC))
+            return OLE2;
+        else if (isText(header, len))
+            return TEXT;
+        else
+            return UNKNOWN;
+    }
+
+    /**
+     * Examines the first local file header of a zip archive to see if the
+     * archive is an OpenDocument or Office Open XML file.  OpenDocument files
+     * must begin with an uncompressed "mimetype" entry.  OOXML files do not
+     * require a particular first entry, but the writers in common use put one
+     * of the package parts (usually "[Content_Types].xml") first.
+     */
+    private static FileSignature detectZipType(byte[] header, int len) {
+        if (len < 30)
+            return ZIP;
+
+        int namelen = (header[26] & 0xff) | ((header[27] & 0xff) << 8);
+        int extralen = (header[28] & 0xff) | ((header[29] & 0xff) << 8);
+        if (30 + namelen > len)
+            return ZIP;
+
+        String name = asciiString(header, 30, namelen);
+
+        if (name.equals("mimetype")) {
+            int start = 30 + namelen + extralen;
+            if (start < len && asciiString(header, start, len - start).startsWith("application/vnd.oasis.opendocument"))
+                return ODF;
+        }
+        else if (name.equals("[Content_Types].xml") || name.startsWith("_rels/")
+                || name.startsWith("docProps/") || name.startsWith("xl/")) {
+            return OOXML;
+        }
+
+        return ZIP;
+    }
+
+    /**
+     * Checks if a file header looks like text.  Byte order marks are accepted,
+     * and any other header that does not contain a NUL byte is assumed to be
+     * text.  Empty files are also treated as text.
+     */
+    private static boolean isText(byte[] header, int len) {
+        // UTF-16 text contains NUL bytes, so check for its byte order marks
+        // first.
+        if (len >= 2 && ((header[0] == (byte)0xFE && header[1] == (byte)0xFF)
+                || (header[0] == (byte)0xFF && header[1] == (byte)0xFE)))
+            return true;
+
+        for (int cnt = 0; cnt < len; cnt++) {
+            if (header[cnt] == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean startsWith(byte[] header, int len, byte[] magic) {
+        if (len < magic.length)
+            return false;
+
+        for (int cnt = 0; cnt < magic.length; cnt++) {
+            if (header[cnt] != magic[cnt])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static String asciiString(byte[] bytes, int start, int len) {
+        try {
+            return new String(bytes, start, len, "US-ASCII");
+        }
+        catch (IOException e) {
+            return "";
+        }
+    }
+}
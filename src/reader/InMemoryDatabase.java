@@ -0,0 +1,336 @@
+package reader;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import settings.SettingsManager;
+
+
+/**
+ * A SQLite database that is held in memory and shared by all stages of
+ * processing a data source in this JVM: conversion by TabularDataConverter,
+ * inspection by dbmap.Mapping, and triplification by D2RQ.  Each of these
+ * stages opens its own JDBC connection from a connection string, but every
+ * connection to SQLite's ":memory:" database is a separate, empty database.
+ * InMemoryDatabase therefore registers a small JDBC driver for connection
+ * strings of the form "jdbc:triplifier:memory:NAME", and all connections to
+ * such a string share the single SQLite connection of the named database.
+ * Closing a shared connection has no effect; the database only goes away when
+ * close() is called on the InMemoryDatabase itself.  The name of each database
+ * ends with a generation number that is never reused, so a connection string
+ * never refers to a different database after the database it named was
+ * closed (dbmap.SchemaCatalog caches schemas by connection string).
+ *
+ * If the data need to be kept, they can be written to a SQLite file with
+ * backup().  Whether a data source is small enough to convert in memory is
+ * decided by fitsInMemory(), using the "inMemoryMaxSourceSize" setting in
+ * triplifiersettings.props.
+ */
+public class InMemoryDatabase {
+    public static final String URL_PREFIX = "jdbc:triplifier:memory:";
+    public static final String MAX_SOURCE_SIZE_KEY = "inMemoryMaxSourceSize";
+    // the default maximum source data size for in-memory conversion, in bytes
+    public static final long DEFAULT_MAX_SOURCE_SIZE = 256L * 1024 * 1024;
+
+    // all open in-memory databases, indexed by name
+    private static final HashMap<String, InMemoryDatabase> databases =
+            new HashMap<String, InMemoryDatabase>();
+    // the generation number of the most recently created database
+    private static long generation = 0;
+
+    static {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            DriverManager.registerDriver(new SharedDriver());
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String name;
+    private final Connection conn;
+
+    private InMemoryDatabase(String name, Connection conn) {
+        this.name = name;
+        this.conn = conn;
+    }
+
+    /**
+     * Creates a new, empty in-memory database.  The database's name is the
+     * requested name followed by a new generation number, which makes it
+     * different from the names of all other databases, including those that
+     * have been closed.
+     *
+     * @param name A name for the database, e.g., the name of the source file.
+     * @return The new database.
+     * @throws SQLException
+     */
+    public static InMemoryDatabase create(String name) throws SQLException {
+        name = name.replaceAll("[^-_.a-zA-Z0-9]", "_");
+
+        synchronized (databases) {
+            String uniquename = name + "_" + ++generation;
+
+            InMemoryDatabase db = new InMemoryDatabase(uniquename,
+                    DriverManager.getConnection("jdbc:sqlite::memory:"));
+            databases.put(uniquename, db);
+
+            return db;
+        }
+    }
+
+    /**
+     * Get the name of this database.
+     *
+     * @return The database name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the JDBC connection string for this database.
+     *
+     * @return The connection string.
+     */
+    public String getUrl() {
+        return URL_PREFIX + name;
+    }
+
+    /**
+     * Get a connection to this database.  Closing the connection does not
+     * close the database.
+     *
+     * @return A connection to the database.
+     * @throws SQLException
+     */
+    public Connection getConnection() throws SQLException {
+        if (conn.isClosed())
+            throw new SQLException("The in-memory database " + name + " is closed.");
+
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new SharedConnectionHandler(conn));
+    }
+
+    /**
+     * Writes the contents of this database to a SQLite file.  If the file
+     * exists, it is overwritten.
+     *
+     * @param file The destination file.
+     * @throws SQLException
+     */
+    public void backup(File file) throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        try {
+            // This is a command of the SQLite JDBC driver, not of SQLite, and
+            // uses SQLite's online backup API.  The file name can be quoted
+            // with either double or single quotes.
+            String path = file.getAbsolutePath();
+            String quote = path.contains("\"") ? "'" : "\"";
+            stmt.executeUpdate("backup to " + quote + path + quote);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Closes this database and frees its memory.  Any remaining connections
+     * to the database can no longer be used.
+     *
+     * @throws SQLException
+     */
+    public void close() throws SQLException {
+        synchronized (databases) {
+            databases.remove(name);
+        }
+
+        conn.close();
+    }
+
+    /**
+     * Tests if a data source is small enough to convert in memory, according
+     * to the "inMemoryMaxSourceSize" setting in triplifiersettings.props.
+     * Compressed files (e.g., zipped Darwin Core archives) are judged by the
+     * uncompressed size of their contents, and directories by the total size
+     * of the files they contain.
+     *
+     * @param source A data source file or directory.
+     * @return True if the data source should be converted in memory.
+     */
+    public static boolean fitsInMemory(File source) {
+        long maxsize = getMaxSourceSize();
+
+        return maxsize > 0 && getDataSize(source) <= maxsize;
+    }
+
+    /**
+     * Get the maximum size of a data source that is converted in memory.
+     *
+     * @return The maximum size, in bytes, or 0 if in-memory conversion is
+     * turned off.
+     */
+    public static long getMaxSourceSize() {
+        try {
+            SettingsManager sm = SettingsManager.getInstance();
+            sm.loadProperties();
+
+            String value = sm.retrieveValue(MAX_SOURCE_SIZE_KEY);
+            if (!value.equals(""))
+                return Long.parseLong(value.trim());
+        } catch (Exception e) {
+            // The settings file is not available or the value is invalid, so
+            // use the default.
+        }
+
+        return DEFAULT_MAX_SOURCE_SIZE;
+    }
+
+    /**
+     * Get the approximate size of the data in a data source.
+     */
+    private static long getDataSize(File source) {
+        if (source.isDirectory()) {
+            long size = 0;
+            File[] files = source.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    size += getDataSize(file);
+            }
+
+            return size;
+        }
+
+        // For zip files, use the uncompressed size of the contents.
+        if (FileSignature.detect(source.getPath()) == FileSignature.ZIP) {
+            try {
+                ZipFile zip = new ZipFile(source);
+                long size = 0;
+
+                try {
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        // If the size is unknown, assume the worst.
+                        if (entry.getSize() < 0)
+                            return Long.MAX_VALUE;
+                        size += entry.getSize();
+                    }
+                } finally {
+                    zip.close();
+                }
+
+                return size;
+            } catch (IOException e) {
+                return source.length();
+            }
+        }
+
+        return source.length();
+    }
+
+
+    /**
+     * Passes all calls on a shared connection to the database's connection,
+     * except close(), which only marks the shared connection as closed.
+     */
+    private static class SharedConnectionHandler implements InvocationHandler
+    {
+        private final Connection conn;
+        private boolean closed = false;
+
+        SharedConnectionHandler(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String mname = method.getName();
+
+            if (mname.equals("close") && method.getParameterTypes().length == 0) {
+                closed = true;
+                return null;
+            } else if (mname.equals("isClosed") && method.getParameterTypes().length == 0)
+                return closed || conn.isClosed();
+            else if (mname.equals("equals") && args != null && args.length == 1)
+                return proxy == args[0];
+            else if (mname.equals("hashCode") && args == null)
+                return System.identityHashCode(proxy);
+
+            try {
+                return method.invoke(conn, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+
+    /**
+     * The JDBC driver for "jdbc:triplifier:memory:" connection strings.
+     */
+    private static class SharedDriver implements Driver
+    {
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url))
+                return null;
+
+            InMemoryDatabase db;
+            synchronized (databases) {
+                db = databases.get(url.substring(URL_PREFIX.length()));
+            }
+            if (db == null)
+                throw new SQLException("No in-memory database is open for " + url + ".");
+
+            return db.getConnection();
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
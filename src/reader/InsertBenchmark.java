@@ -0,0 +1,123 @@
+package reader;
+
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+
+/**
+ * Compares the rows/second that each RowInserter mode achieves when loading
+ * synthetic tables of different widths into SQLite.  The tables imitate
+ * Darwin Core data: an ID column, a few columns with many distinct values,
+ * and many columns that are mostly blank or that repeat a small set of
+ * values.  Run it with the column counts to test as arguments, e.g.:
+ *
+ *     java -cp ... reader.InsertBenchmark 6 20 40 150
+ *
+ * Each table has about three million values, and each mode is run three times
+ * per table; the best time is reported.
+ */
+public class InsertBenchmark {
+    private static final int TOTAL_VALUES = 3000000;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+
+        int[] colcnts = {6, 20, 40, 150};
+        if (args.length > 0) {
+            colcnts = new int[args.length];
+            for (int cnt = 0; cnt < args.length; cnt++)
+                colcnts[cnt] = Integer.parseInt(args[cnt]);
+        }
+
+        File dbfile = File.createTempFile("insertbenchmark", ".sqlite");
+        dbfile.deleteOnExit();
+
+        System.out.println("columns  rows      mode         rows/sec");
+        for (int colcnt : colcnts) {
+            String[][] rows = generateRows(colcnt, TOTAL_VALUES / colcnt);
+
+            for (RowInserter.Mode mode : RowInserter.Mode.values()) {
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++)
+                    best = Math.min(best, timeInsert(dbfile, rows, colcnt, mode));
+
+                System.out.println(String.format("%-8d %-9d %-12s %d%s", colcnt, rows.length,
+                        mode, rows.length * 1000000000L / best,
+                        mode == RowInserter.chooseMode(colcnt) ? "  (default)" : ""));
+            }
+        }
+
+        dbfile.delete();
+    }
+
+    /**
+     * Inserts all rows into a new table with the specified mode.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private static long timeInsert(File dbfile, String[][] rows, int colcnt,
+            RowInserter.Mode mode) throws Exception {
+        dbfile.delete();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbfile.getPath());
+        Statement stmt = conn.createStatement();
+
+        StringBuilder query = new StringBuilder("CREATE TABLE [bench] (");
+        for (int col = 0; col < colcnt; col++)
+            query.append(col > 0 ? ", " : "").append("\"col").append(col).append("\"");
+        stmt.executeUpdate(query.append(")").toString());
+
+        long start = System.nanoTime();
+
+        stmt.execute("BEGIN TRANSACTION");
+        RowInserter inserter = new RowInserter(conn, "bench", colcnt, mode);
+        for (String[] row : rows)
+            inserter.insert(row);
+        inserter.finish();
+        stmt.execute("COMMIT");
+
+        long time = System.nanoTime() - start;
+
+        ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM [bench]");
+        rs.next();
+        if (rs.getInt(1) != rows.length)
+            throw new IllegalStateException("Expected " + rows.length + " rows, found " + rs.getInt(1));
+
+        stmt.close();
+        conn.close();
+
+        return time;
+    }
+
+    /**
+     * Generates rows of Darwin Core-like data.  Repeated values are shared
+     * String instances, as they would be with a ColumnDictionary.
+     */
+    private static String[][] generateRows(int colcnt, int rowcnt) {
+        Random rand = new Random(1);
+        String[] common = new String[50];
+        for (int cnt = 0; cnt < common.length; cnt++)
+            common[cnt] = "value " + cnt;
+
+        String[][] rows = new String[rowcnt][colcnt];
+        for (int row = 0; row < rowcnt; row++) {
+            for (int col = 0; col < colcnt; col++) {
+                if (col == 0)
+                    rows[row][col] = "urn:catalog:" + row;
+                else if (col % 10 == 1)
+                    rows[row][col] = Double.toString(rand.nextDouble() * 180 - 90);
+                else if (col % 10 < 7)
+                    rows[row][col] = "";
+                else
+                    rows[row][col] = common[rand.nextInt(common.length)];
+            }
+        }
+
+        return rows;
+    }
+}
@@ -0,0 +1,336 @@
+package reader;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import reader.plugins.RowBatch;
+
+
+/**
+ * Loads a single-table Darwin Core archive and normalizes it at the same
+ * time, as an alternative to loading the archive's table as it is and fixing
+ * it afterwards with DwCAFixer (see TabularDataConverter.setNormalizingLoader()).
+ * Each row is split as it is inserted: the values of each normalized
+ * concept's terms are looked up in the concept's instances, and the rest of
+ * the row is inserted into the main table together with the instance
+ * numbers.  When the archive is loaded, the concept tables are created and
+ * the instance numbers are replaced by the instance IDs just as
+ * ConceptNormalizer does it for DwCAFixer (see
+ * ConceptNormalizer.setLoadedIDs()).  The term values are therefore written
+ * to the main table only once, while DwCAFixer adds columns to the loaded
+ * table, updates them, and copies the table again to remove the normalized
+ * columns.
+ *
+ * The tables are the same as the tables of an archive that is fixed by
+ * DwCAFixer: the same concepts are normalized, the main table has the same
+ * columns in the same order, and the instances have the same IDs.  Since
+ * DwCAFixer decides from the data whether an existing ID column needs to be
+ * filled, the loader must be told which columns have any values.  Column
+ * types are not inferred for the tables (see setTypedColumns()).
+ *
+ * The instances of all concepts are kept in memory until the archive is
+ * loaded.
+ */
+class NormalizingInserter extends RowInserter
+{
+    // the number of columns of the archive's table
+    private final int sourcecnt;
+    // for each column of the main table, the column of the archive that it
+    // is copied from, or -1 for the columns that are set by the loader
+    private final int[] copied;
+    private final List<LoadedConcept> concepts;
+    // sets the concept IDs when the archive is loaded
+    private final ConceptNormalizer normalizer;
+    // the columns of the archive with the identification terms and the
+    // column of the main table for the identification IDs, or -1 if
+    // identification IDs are not set
+    private final int[] identificationcols;
+    private final int identificationcol;
+
+    // the statistics of the columns of the archive, if any
+    private ColumnStatistics[] sourcestats = null;
+
+    // the values of the row of the main table that is being inserted
+    private final String[] mainrow;
+
+    private NormalizingInserter(Connection conn, int sourcecnt, int[] copied,
+            List<LoadedConcept> concepts, ConceptNormalizer normalizer, int[] identificationcols,
+            int identificationcol) throws SQLException {
+        super(conn, DwCAFixer.MAIN_TABLE, copied.length);
+
+        this.sourcecnt = sourcecnt;
+        this.copied = copied;
+        this.concepts = concepts;
+        this.normalizer = normalizer;
+        this.identificationcols = identificationcols;
+        this.identificationcol = identificationcol;
+        mainrow = new String[copied.length];
+    }
+
+    /**
+     * Creates the main table for an archive, dropping any existing tables
+     * with the same names as the main table and the concept tables, and
+     * creates a NormalizingInserter that loads the archive's rows.  The
+     * concepts to normalize and the columns of the main table are chosen just
+     * as DwCAFixer.fixArchive() chooses them.
+     *
+     * @param conn A connection with an open transaction.
+     * @param colnames The column names of the archive's table.
+     * @param populated The names of the archive's columns that have at least
+     * one non-blank value.  Only the concept ID columns and "occurrenceID"
+     * need to be included.
+     * @return The new NormalizingInserter.
+     * @throws SQLException
+     */
+    public static NormalizingInserter create(Connection conn, List<String> colnames,
+            Set<String> populated) throws SQLException {
+        ArrayList<String> maincols = new ArrayList<String>(colnames);
+        ArrayList<String> deletecols = new ArrayList<String>();
+        ArrayList<String> identificationterms = null;
+        ArrayList<String> conceptIDs = new ArrayList<String>();
+        ArrayList<ArrayList<String>> conceptterms = new ArrayList<ArrayList<String>>();
+
+        // Choose the concepts to normalize.  A concept is normalized if it
+        // has terms in the archive and no ID column with values.
+        for (String conceptID : DwCAFixer.getConceptIDs()) {
+            ArrayList<String> includedterms = DwCAFixer.getIncludedTerms(conceptID, colnames);
+            if (includedterms.isEmpty()
+                    || (colnames.contains(conceptID) && populated.contains(conceptID)))
+                continue;
+
+            if (!maincols.contains(conceptID))
+                maincols.add(conceptID);
+
+            if (conceptID.equals("identificationID"))
+                identificationterms = includedterms;
+            else {
+                conceptIDs.add(conceptID);
+                conceptterms.add(includedterms);
+                deletecols.addAll(includedterms);
+            }
+        }
+
+        // An occurrenceID column without values is replaced by an
+        // auto-increment column.
+        boolean newoccurrenceIDs = colnames.contains("occurrenceID")
+                && !populated.contains("occurrenceID");
+        if (newoccurrenceIDs)
+            deletecols.add("occurrenceID");
+
+        ArrayList<String> keepcols = new ArrayList<String>();
+        for (String colname : maincols) {
+            if (!deletecols.contains(colname))
+                keepcols.add(colname);
+        }
+        if (newoccurrenceIDs)
+            keepcols.add(0, "occurrenceID");
+
+        Statement stmt = conn.createStatement();
+        try {
+            // Create the main table.
+            String query = "";
+            for (int col = 0; col < keepcols.size(); col++) {
+                if (col > 0)
+                    query += ", ";
+                query += "\"" + keepcols.get(col) + "\"";
+                if (col == 0 && newoccurrenceIDs)
+                    query += " INTEGER PRIMARY KEY";
+            }
+            stmt.executeUpdate("DROP TABLE IF EXISTS \"" + DwCAFixer.MAIN_TABLE + "\"");
+            stmt.executeUpdate("CREATE TABLE \"" + DwCAFixer.MAIN_TABLE + "\"(" + query + ")");
+
+            // The concept tables are created when the archive is loaded.
+            ConceptNormalizer normalizer = new ConceptNormalizer(conn, DwCAFixer.MAIN_TABLE,
+                    new HashMap<String, String>());
+            ArrayList<LoadedConcept> concepts = new ArrayList<LoadedConcept>();
+            for (int cnt = 0; cnt < conceptIDs.size(); cnt++) {
+                String conceptID = conceptIDs.get(cnt);
+                ArrayList<String> terms = conceptterms.get(cnt);
+                stmt.executeUpdate("DROP TABLE IF EXISTS '" + conceptID.replace("ID", "") + "'");
+
+                LoadedConcept concept = new LoadedConcept(getIndexes(colnames, terms),
+                        keepcols.indexOf(conceptID));
+                normalizer.addLoadedConcept(conceptID, terms, concept.instances);
+                concepts.add(concept);
+            }
+
+            int[] copied = new int[keepcols.size()];
+            for (int col = 0; col < copied.length; col++)
+                copied[col] = colnames.indexOf(keepcols.get(col));
+            if (newoccurrenceIDs)
+                copied[0] = -1;
+            for (LoadedConcept concept : concepts)
+                copied[concept.maincol] = -1;
+
+            int[] identificationcols = null;
+            int identificationcol = -1;
+            if (identificationterms != null) {
+                identificationcols = getIndexes(colnames, identificationterms);
+                identificationcol = keepcols.indexOf("identificationID");
+                copied[identificationcol] = -1;
+            }
+
+            return new NormalizingInserter(conn, colnames.size(), copied, concepts, normalizer,
+                    identificationcols, identificationcol);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static int[] getIndexes(List<String> colnames, List<String> names) {
+        int[] indexes = new int[names.size()];
+        for (int cnt = 0; cnt < indexes.length; cnt++)
+            indexes[cnt] = colnames.indexOf(names.get(cnt));
+
+        return indexes;
+    }
+
+    /**
+     * Sets the statistics objects for the columns of the archive (not the
+     * columns of the main table).  The values of the normalized columns are
+     * included.
+     *
+     * @param stats The statistics for each column of the archive, or null to
+     * not collect statistics.
+     */
+    @Override
+    public void setStatistics(ColumnStatistics[] stats) {
+        sourcestats = stats;
+    }
+
+    /**
+     * Column types are not inferred for normalized archives, so this does
+     * nothing.  The ID columns must keep the types that DwCAFixer gives them,
+     * and the main table has an INTEGER PRIMARY KEY column if new occurrence
+     * IDs are created, which RowInserter cannot keep when it changes the
+     * column types.
+     *
+     * @param colnames The names of the archive's columns.
+     */
+    @Override
+    public void setTypedColumns(List<String> colnames) {
+    }
+
+    /**
+     * Get which of the archive's columns are INTEGER columns, which is none
+     * of them.
+     *
+     * @return An array with a false element for each column of the archive.
+     */
+    @Override
+    public boolean[] getIntegerColumns() {
+        return new boolean[sourcecnt];
+    }
+
+    /**
+     * Inserts a row of the archive.  Missing values at the end of the row
+     * are treated as blank Strings, and extra values are ignored.
+     *
+     * @param row The row values.
+     * @throws SQLException
+     */
+    @Override
+    public void insert(String[] row) throws SQLException {
+        if (sourcestats != null) {
+            for (int col = 0; col < sourcecnt; col++)
+                sourcestats[col].add(getValue(row, col));
+        }
+
+        for (int col = 0; col < mainrow.length; col++)
+            mainrow[col] = copied[col] < 0 ? null : getValue(row, copied[col]);
+
+        for (LoadedConcept concept : concepts)
+            mainrow[concept.maincol] = concept.getID(row);
+
+        // Like DwCAFixer, use the row number as the identification ID of
+        // each row that has identification data.
+        if (identificationcols != null) {
+            String id = "";
+            for (int col : identificationcols) {
+                String value = getValue(row, col);
+                if (value != null && !value.equals(""))
+                    id = Long.toString(getRowCount() + 1);
+            }
+            mainrow[identificationcol] = id;
+        }
+
+        super.insert(mainrow);
+    }
+
+    /**
+     * Inserts all rows of a batch.  The batch must have one column for each
+     * column of the archive.
+     *
+     * @param batch The rows to insert.
+     * @throws SQLException
+     */
+    @Override
+    public void insert(RowBatch batch) throws SQLException {
+        String[] row = new String[sourcecnt];
+
+        for (int cnt = 0; cnt < batch.size(); cnt++) {
+            for (int col = 0; col < sourcecnt; col++)
+                row[col] = batch.get(cnt, col);
+            insert(row);
+        }
+    }
+
+    private static String getValue(String[] row, int col) {
+        return col < row.length ? row[col] : "";
+    }
+
+    /**
+     * Inserts any rows that are still waiting into the main table, closes the
+     * statement, and creates the concept tables and sets the concept IDs.
+     * The caller is responsible for committing the last transaction.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void finish() throws SQLException {
+        super.finish();
+        normalizer.setLoadedIDs();
+    }
+
+
+    /**
+     * A concept that is normalized while the archive is loaded.
+     */
+    private static class LoadedConcept
+    {
+        // the columns of the archive with the concept's terms
+        final int[] termcols;
+        // the column of the main table with the concept's IDs
+        final int maincol;
+        final ConceptNormalizer.InstanceTable instances = new ConceptNormalizer.InstanceTable();
+        // a reusable array for the term values of one row
+        private final String[] values;
+
+        LoadedConcept(int[] termcols, int maincol) {
+            this.termcols = termcols;
+            this.maincol = maincol;
+            values = new String[termcols.length];
+        }
+
+        /**
+         * Get the number of a row's instance of the concept, adding the
+         * instance if it is new.  Like DwCAFixer, the empty instance and the
+         * instances with null values are numbered like any other instance;
+         * they are left out when the instance numbers are replaced by IDs.
+         *
+         * @return The instance number.
+         */
+        String getID(String[] row) {
+            for (int cnt = 0; cnt < termcols.length; cnt++)
+                values[cnt] = getValue(row, termcols[cnt]);
+
+            return Integer.toString(instances.getNumber(values));
+        }
+    }
+}
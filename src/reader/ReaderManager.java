@@ -5,9 +5,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 
 import reader.plugins.TabularDataReader;
 
@@ -19,10 +23,20 @@ import reader.plugins.TabularDataReader;
  * need to manually instantiate plugin classes.  Using the methods in
  * ReaderManager is much simpler, less error-prone, and recommended whenever
  * possible.
+ *
+ * The available plugins are found only once per JVM and are then shared by
+ * all ReaderManagers, so creating a ReaderManager and loading its readers is
+ * cheap.  When opening a file without a specified format, the file's signature
+ * (see FileSignature) is used to decide which plugins are asked to test the
+ * file, and in which order.
  */
 public class ReaderManager implements Iterable<TabularDataReader> {
     private LinkedList<TabularDataReader> readers;
 
+    // The reader plugins that are shared by all ReaderManagers.  This list is
+    // built the first time that loadReaders() is called.
+    private static List<TabularDataReader> registry = null;
+
     /**
      * Initializes a new ReaderManager.  No plugins are loaded by default.  The
      * LoadReaders() method must be called to find and load reader plugins.
@@ -32,15 +46,52 @@ public class ReaderManager implements Iterable<TabularDataReader> {
     }
 
     /**
-     * Load all reader plugins.  All compiled class files in the
-     * reader/plugins directory will be examined to see if they implement the
-     * TabularDataReader interface.  If so, they will be loaded as valid reader
-     * plugins for use by the ReaderManager.
+     * Load all reader plugins.  Plugins are registered by listing their class
+     * names in the file META-INF/services/reader.plugins.TabularDataReader (the
+     * standard ServiceLoader index), which also works when the plugins are
+     * packaged in a jar file.  If no plugins are registered this way, all
+     * compiled class files in the reader/plugins directory will be examined to
+     * see if they implement the TabularDataReader interface.  If so, they will
+     * be loaded as valid reader plugins for use by the ReaderManager.
      *
      * @throws FileNotFoundException
      */
     public void loadReaders() throws FileNotFoundException {
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        readers.clear();
+        readers.addAll(getRegistry());
+    }
+
+    /**
+     * Gets the shared list of reader plugins, finding the plugins if this has
+     * not already been done.
+     */
+    private static synchronized List<TabularDataReader> getRegistry() throws FileNotFoundException {
+        if (registry == null) {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+            LinkedList<TabularDataReader> found = new LinkedList<TabularDataReader>();
+            try {
+                for (TabularDataReader reader : ServiceLoader.load(TabularDataReader.class, cl))
+                    found.add(reader);
+            } catch (ServiceConfigurationError e) {
+                System.out.println(e);
+            }
+
+            if (found.isEmpty())
+                found = scanPluginsDir(cl);
+
+            registry = Collections.unmodifiableList(found);
+        }
+
+        return registry;
+    }
+
+    /**
+     * Finds reader plugins by examining all compiled class files in the
+     * reader/plugins directory.
+     */
+    private static LinkedList<TabularDataReader> scanPluginsDir(ClassLoader cl) throws FileNotFoundException {
+        LinkedList<TabularDataReader> found = new LinkedList<TabularDataReader>();
 
         // get location of the plugins package
         URL rsc = cl.getResource("reader/plugins");
@@ -74,19 +125,23 @@ public class ReaderManager implements Iterable<TabularDataReader> {
             //System.out.println(classname);
 
             try {
-                // load the class file and instantiate the class
+                // Load the class file and make sure it implements the reader
+                // interface before instantiating it.  This allows the plugins
+                // package to also contain helper classes that are not plugins
+                // themselves.
                 newclass = cl.loadClass("reader.plugins." + classname);
-                newreader = newclass.newInstance();
+                if (!TabularDataReader.class.isAssignableFrom(newclass))
+                    continue;
 
-                // make sure this class implements the reader interface
-                if (newreader instanceof TabularDataReader) {
-                    // add it to the list of valid readers
-                    readers.add((TabularDataReader) newreader);
-                }
+                // add it to the list of valid readers
+                newreader = newclass.newInstance();
+                found.add((TabularDataReader) newreader);
             } catch (Exception e) {
                 System.out.println(e);
             }
         }
+
+        return found;
     }
 
     /**
@@ -144,29 +199,35 @@ public class ReaderManager implements Iterable<TabularDataReader> {
 
     /**
      * Attempts to open the specified file with an appropriate reader plugin.
-     * The testFile() method of the readers is used to find a reader that can
-     * open the file.  If a reader for the file type is found, a new instance
-     * of the reader is created and returned after opening the file.
+     * The signature of the file is read first to decide which readers can
+     * possibly read the file (see getCandidateReaders()), and the testFile()
+     * method of each of these readers is then used to find a reader that can
+     * open the file.  If a reader for the file type is found, a new instance of
+     * the reader is created and returned after opening the file.
      *
      * @param filepath The path of the data file to open.
      * @return A new instance of a reader if an appropriate reader is found that
      *         opens the file successfully. Otherwise, returns null.
      */
     public TabularDataReader openFile(String filepath) {
-        // Check all readers to see if we have one that can read the
+        FileSignature sig = FileSignature.detect(filepath);
+
+        // Check the candidate readers to see if we have one that can read the
         // specified file.
-        for (TabularDataReader reader : readers) {
-            if (reader.testFile(filepath)) {
-                try {
-                    // A matching reader was found, so create a new instance of
-                    // the reader, open the file with it, and return it.
-                    TabularDataReader newreader = reader.getClass().newInstance();
+        for (TabularDataReader reader : getCandidateReaders(sig)) {
+            try {
+                // The loaded readers are shared, so test the file with a new
+                // instance of the reader.  If it can read the file, open the
+                // file with the same instance and return it.
+                TabularDataReader newreader = reader.getClass().newInstance();
+
+                if (newreader.testFile(filepath)) {
                     newreader.openFile(filepath);
 
                     return newreader;
-                } catch (Exception e) {
-                    return null;
                 }
+            } catch (Exception e) {
+                return null;
             }
         }
 
@@ -174,6 +235,38 @@ public class ReaderManager implements Iterable<TabularDataReader> {
         return null;
     }
 
+    /**
+     * Gets the readers that should be asked to test a file with the specified
+     * signature.  The readers for the formats listed by the signature come
+     * first, in the signature's order, followed by any loaded readers whose
+     * formats are not associated with a signature.  If the signature does not
+     * list any formats, all loaded readers are returned.
+     *
+     * @param sig The signature of a data file.
+     * @return The readers to try, in the order in which they should be tried.
+     */
+    private List<TabularDataReader> getCandidateReaders(FileSignature sig) {
+        String[] formats = sig.getFormats();
+        if (formats.length == 0)
+            return readers;
+
+        LinkedList<TabularDataReader> candidates = new LinkedList<TabularDataReader>();
+
+        for (String format : formats) {
+            for (TabularDataReader reader : readers) {
+                if (reader.getFormatString().equals(format))
+                    candidates.add(reader);
+            }
+        }
+
+        for (TabularDataReader reader : readers) {
+            if (!FileSignature.isKnownFormat(reader.getFormatString()))
+                candidates.add(reader);
+        }
+
+        return candidates;
+    }
+
     /**
      * Attempts to open a data file with a specified format.  If a reader
      * supporting the format is found, a new instance of the reader is created
@@ -0,0 +1,738 @@
+package reader;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import reader.plugins.RowBatch;
+
+
+/**
+ * Inserts rows into one table of a SQLite database for TabularDataConverter.
+ * Because the SQLite JDBC driver binds every parameter value and steps every
+ * statement with a separate native call, the cost of loading a table depends
+ * mostly on how many statements are executed and how many values are bound.
+ * RowInserter chooses one of the following ways of inserting rows, depending
+ * on the number of columns in the table:
+ *
+ * MULTI_ROW: Several rows are inserted by a single statement of the form
+ * "INSERT INTO t SELECT ?, ? UNION ALL SELECT ?, ? ...".  (The version of
+ * SQLite used by the driver does not support multi-row VALUES clauses.)  The
+ * number of rows per statement is limited by SQLite's maximum number of bind
+ * parameters (999) and of compound SELECT terms (500).  Since the driver
+ * keeps parameter values between executions, a value is only bound again if
+ * it changed.  This is only used for tables with at most 10 columns; with
+ * more columns, it was no faster than JDBC_BATCH in InsertBenchmark.
+ *
+ * JDBC_BATCH: Rows are added to a JDBC batch with addBatch() and executed
+ * with executeBatch().  The number of rows in each batch is chosen so that
+ * each batch holds about the same number of values, no matter how wide the
+ * table is.
+ *
+ * SINGLE_ROW: Each row is inserted by its own statement execution.  This is
+ * how rows were always inserted before and is only used for comparison (see
+ * InsertBenchmark).
+ *
+ * None of these modes makes wide tables (e.g., Darwin Core archives with 150
+ * or more columns) load faster with this driver.  Almost all of the time is
+ * spent binding the values, one native call per value, and in
+ * InsertBenchmark neither JDBC_BATCH nor MULTI_ROW was faster than
+ * inserting single rows for such tables.
+ *
+ * The caller must begin a transaction before inserting rows and commit it
+ * after calling finish().  To keep the journal from growing without limit,
+ * RowInserter commits the transaction and begins a new one after every few
+ * million values.
+ *
+ * If a ConversionListener is set, RowInserter reports the number of rows
+ * inserted so far after every few thousand rows.  Between reports, the only
+ * extra work is counting the characters of the inserted values.
+ *
+ * If column types are inferred (see setTypedColumns()), the first few
+ * hundred rows are held back and examined before anything is inserted.  Each
+ * column whose sampled values are canonical integers (e.g., "42" or "-7", but
+ * not "007", "+7" or "7.0") or values without digits (e.g., blanks or "NA")
+ * is declared as an INTEGER column, and the canonical integers in it are
+ * bound as integers rather than as strings.  This makes the database smaller and lets SQLite compare integer
+ * keys as integers.  Since SQLite turns a canonical integer back into exactly
+ * the same text, the values read from the database do not change.  If a later
+ * value would not come back unchanged from an INTEGER column (e.g., "007"),
+ * that row and all following rows are inserted as text into a second,
+ * untyped table, and the column is no longer treated as an INTEGER column.
+ * When the load is finished, both tables are copied into a table with the
+ * final column types, so each row is copied at most once, no matter how many
+ * columns lose their type along the way.
+ */
+class RowInserter {
+    enum Mode { SINGLE_ROW, JDBC_BATCH, MULTI_ROW }
+
+    // SQLite's default maximum number of bind parameters per statement
+    private static final int MAX_BIND_PARAMS = 999;
+    // SQLite's default maximum number of terms in a compound SELECT
+    private static final int MAX_COMPOUND_SELECT = 500;
+    // multi-row statements are only used for tables with at most this many
+    // columns
+    private static final int MULTI_ROW_MAX_COLUMNS = 10;
+    // the approximate number of values in each JDBC batch
+    private static final int BATCH_VALUES = 50000;
+    // the approximate number of values inserted in each transaction
+    private static final long COMMIT_VALUES = 5000000;
+    // the number of leading rows that are examined to choose column types
+    private static final int TYPE_SAMPLE_ROWS = 500;
+
+    private final Connection conn;
+    private final String tname;
+    private final int colcnt;
+    private final Mode mode;
+
+    private PreparedStatement rowstmt;
+    private PreparedStatement multistmt;
+
+    // the number of rows inserted by each multi-row statement or JDBC batch
+    private final int rowsperexec;
+    // the values of the rows waiting to be inserted by a multi-row statement
+    private String[] pendingvals;
+    // the values that are currently bound to the multi-row statement
+    private Object[] bound;
+    // the number of rows waiting to be inserted
+    private int pending;
+
+    // the number of rows in each transaction, and the number of rows that
+    // have been inserted in the current transaction
+    private final long commitrows;
+    private long txrows;
+
+    private long rowcnt;
+
+    // the listener for progress reports, the number of rows between reports,
+    // and the row count of the next report
+    private ConversionListener listener = null;
+    private long reportinterval;
+    private long nextreport = Long.MAX_VALUE;
+    // the number of characters in the values inserted so far, which is only
+    // counted if there is a listener
+    private long charcnt = 0;
+    private long starttime;
+
+    // the statistics to collect for each column, if any
+    private ColumnStatistics[] stats = null;
+
+    // If column types are inferred, the names of the columns, the rows that
+    // are held back until the types are chosen, whether each column is
+    // declared as an INTEGER column of the table (null if none are), and
+    // whether each column will be an INTEGER column once the load is
+    // finished (null if none will be).
+    private List<String> colnames = null;
+    private List<String[]> sample = null;
+    private boolean[] declaredcols = null;
+    private boolean[] integercols = null;
+
+    // the untyped table that rows are inserted into after a value that did
+    // not fit in an INTEGER column, or null if there was no such value
+    private String resttable = null;
+
+    /**
+     * Creates a new RowInserter for a table, choosing the insert mode from
+     * the number of columns.
+     *
+     * @param conn A connection with an open transaction.
+     * @param tname The name of an existing table.
+     * @param colcnt The number of columns in the table.
+     * @throws SQLException
+     */
+    public RowInserter(Connection conn, String tname, int colcnt) throws SQLException {
+        this(conn, tname, colcnt, chooseMode(colcnt));
+    }
+
+    /**
+     * Creates a new RowInserter for a table that uses a specific insert mode.
+     *
+     * @param conn A connection with an open transaction.
+     * @param tname The name of an existing table.
+     * @param colcnt The number of columns in the table.
+     * @param mode The way to insert rows.
+     * @throws SQLException
+     */
+    public RowInserter(Connection conn, String tname, int colcnt, Mode mode) throws SQLException {
+        if (mode == Mode.MULTI_ROW && rowsPerStatement(colcnt) < 2)
+            mode = Mode.JDBC_BATCH;
+
+        this.conn = conn;
+        this.tname = tname;
+        this.colcnt = colcnt;
+        this.mode = mode;
+
+        if (mode == Mode.MULTI_ROW) {
+            rowsperexec = rowsPerStatement(colcnt);
+            pendingvals = new String[rowsperexec * colcnt];
+            bound = new Object[rowsperexec * colcnt];
+        } else if (mode == Mode.JDBC_BATCH)
+            rowsperexec = Math.max(1, BATCH_VALUES / Math.max(1, colcnt));
+        else
+            rowsperexec = 1;
+
+        prepareStatements();
+
+        commitrows = Math.max(1, COMMIT_VALUES / Math.max(1, colcnt));
+        txrows = 0;
+        pending = 0;
+        rowcnt = 0;
+    }
+
+    /**
+     * Prepares the INSERT statements for the table.
+     */
+    private void prepareStatements() throws SQLException {
+        String target = resttable == null ? tname : resttable;
+        rowstmt = conn.prepareStatement(buildInsert(target, 1));
+
+        if (mode == Mode.MULTI_ROW) {
+            multistmt = conn.prepareStatement(buildInsert(target, rowsperexec));
+            // Nothing is bound to the new statement yet.
+            Arrays.fill(bound, new Object());
+        }
+    }
+
+    private void closeStatements() throws SQLException {
+        rowstmt.close();
+        if (multistmt != null)
+            multistmt.close();
+    }
+
+    /**
+     * Chooses the fastest insert mode for a table.
+     *
+     * @param colcnt The number of columns in the table.
+     * @return The insert mode to use.
+     */
+    public static Mode chooseMode(int colcnt) {
+        if (colcnt <= MULTI_ROW_MAX_COLUMNS)
+            return Mode.MULTI_ROW;
+        else
+            return Mode.JDBC_BATCH;
+    }
+
+    /**
+     * Get the number of rows that fit in one multi-row INSERT statement.
+     */
+    private static int rowsPerStatement(int colcnt) {
+        return Math.min(MAX_COMPOUND_SELECT, MAX_BIND_PARAMS / Math.max(1, colcnt));
+    }
+
+    /**
+     * Builds an INSERT statement for the specified number of rows.
+     */
+    private String buildInsert(String tname, int rows) {
+        StringBuilder select = new StringBuilder();
+        for (int cnt = 0; cnt < colcnt; cnt++) {
+            if (cnt > 0)
+                select.append(", ");
+            select.append("?");
+        }
+
+        StringBuilder query = new StringBuilder("INSERT INTO [" + tname + "] ");
+        if (rows == 1)
+            query.append("VALUES (").append(select).append(")");
+        else {
+            for (int cnt = 0; cnt < rows; cnt++) {
+                if (cnt > 0)
+                    query.append(" UNION ALL ");
+                query.append("SELECT ").append(select);
+            }
+        }
+
+        return query.toString();
+    }
+
+    /**
+     * Get the insert mode used by this RowInserter.
+     *
+     * @return The insert mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets a listener to report the progress of inserting rows to.  The
+     * listener's rowsLoaded() method is called after every interval rows, on
+     * the thread that inserts the rows.
+     *
+     * @param listener The listener, or null for no progress reports.
+     * @param interval The number of rows between progress reports.
+     */
+    public void setListener(ConversionListener listener, long interval) {
+        this.listener = listener;
+        reportinterval = Math.max(1, interval);
+        nextreport = listener == null ? Long.MAX_VALUE : rowcnt + reportinterval;
+        starttime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the statistics objects that every inserted value is added to.
+     *
+     * @param stats The statistics for each column of the table, or null to
+     * not collect statistics.
+     */
+    public void setStatistics(ColumnStatistics[] stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Turns on type inference for the table's columns (see the class
+     * description).  This must be called before any rows are inserted, and
+     * the table must have been created with untyped columns.
+     *
+     * @param colnames The names of the table's columns.
+     */
+    public void setTypedColumns(List<String> colnames) {
+        this.colnames = new ArrayList<String>(colnames);
+        sample = new ArrayList<String[]>(TYPE_SAMPLE_ROWS);
+    }
+
+    /**
+     * Get which of the table's columns are INTEGER columns.  Until the
+     * column types have been chosen, no columns are.
+     *
+     * @return An array with an element for each column that is true if the
+     * column is an INTEGER column.
+     */
+    public boolean[] getIntegerColumns() {
+        return integercols == null ? new boolean[colcnt] : integercols.clone();
+    }
+
+    /**
+     * Get the number of characters in the values that have been inserted.
+     * Characters are only counted while a listener is set.
+     *
+     * @return The number of characters.
+     */
+    public long getCharCount() {
+        return charcnt;
+    }
+
+    /**
+     * Get the number of rows that have been inserted (or that are waiting to
+     * be inserted).
+     *
+     * @return The number of rows.
+     */
+    public long getRowCount() {
+        return rowcnt;
+    }
+
+    /**
+     * Inserts a row.  Missing values at the end of the row are inserted as
+     * blank Strings, and extra values are ignored.
+     *
+     * @param row The row values.
+     * @throws SQLException
+     */
+    public void insert(String[] row) throws SQLException {
+        int len = Math.min(row.length, colcnt);
+        int col;
+
+        if (sample != null) {
+            // Some sources reuse their row arrays.
+            addToSample(row.clone());
+            return;
+        }
+
+        if (integercols != null) {
+            boolean fits = true;
+            for (col = 0; col < colcnt; col++) {
+                if (integercols[col] && !fitsIntegerColumn(col < len ? row[col] : "")) {
+                    integercols[col] = false;
+                    fits = false;
+                }
+            }
+            if (!fits)
+                columnsUntyped();
+        }
+
+        for (col = 0; col < len; col++)
+            setValue(col, row[col]);
+        for (; col < colcnt; col++)
+            setValue(col, "");
+
+        endRow();
+    }
+
+    /**
+     * Inserts all rows of a batch.  The batch must have one column for each
+     * column of the table.
+     *
+     * @param batch The rows to insert.
+     * @throws SQLException
+     */
+    public void insert(RowBatch batch) throws SQLException {
+        int size = batch.size();
+
+        for (int row = 0; row < size; row++) {
+            if (sample != null) {
+                // The batch is reused by the caller, so sampled rows are
+                // copied.
+                String[] values = new String[colcnt];
+                for (int col = 0; col < colcnt; col++)
+                    values[col] = batch.get(row, col);
+                addToSample(values);
+                continue;
+            }
+
+            if (integercols != null) {
+                boolean fits = true;
+                for (int col = 0; col < colcnt; col++) {
+                    if (integercols[col] && !fitsIntegerColumn(batch.get(row, col))) {
+                        integercols[col] = false;
+                        fits = false;
+                    }
+                }
+                if (!fits)
+                    columnsUntyped();
+            }
+
+            for (int col = 0; col < colcnt; col++)
+                setValue(col, batch.get(row, col));
+
+            endRow();
+        }
+    }
+
+    /**
+     * Sets one value of the current row.
+     */
+    private void setValue(int col, String value) throws SQLException {
+        if (listener != null && value != null)
+            charcnt += value.length();
+        if (stats != null)
+            stats[col].add(value);
+
+        if (mode == Mode.MULTI_ROW)
+            pendingvals[pending * colcnt + col] = value;
+        else
+            bindValue(rowstmt, col + 1, col, value);
+    }
+
+    /**
+     * Binds a value of a column to a statement parameter, as an integer if
+     * the rows are inserted into the table, the column is declared as an
+     * INTEGER column, and the value is a canonical integer.
+     */
+    private void bindValue(PreparedStatement stmt, int param, int col, String value)
+            throws SQLException {
+        if (resttable == null && declaredcols != null && declaredcols[col]
+                && isCanonicalInteger(value))
+            stmt.setLong(param, Long.parseLong(value));
+        else
+            stmt.setString(param, value);
+    }
+
+    /**
+     * Tests if a value is the canonical text of a 64-bit integer, i.e., the
+     * text that SQLite returns for the integer: an optional minus sign and
+     * digits without leading zeros.
+     */
+    static boolean isCanonicalInteger(String value) {
+        if (value == null)
+            return false;
+
+        int len = value.length();
+        int start = len > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (len == start || len - start > 19)
+            return false;
+        if (value.charAt(start) == '0')
+            return len == 1;
+
+        for (int pos = start; pos < len; pos++) {
+            char c = value.charAt(pos);
+            if (c < '0' || c > '9')
+                return false;
+        }
+
+        if (len - start < 19)
+            return true;
+
+        // Values with 19 digits might not fit in 64 bits.
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tests if a value can be inserted into an INTEGER column without
+     * changing the text that is read back from the column.  Besides canonical
+     * integers, this is true for nulls and for values without digits (e.g.,
+     * blanks or "NA"), which SQLite stores as they are.  Values with periods
+     * are not allowed, since D2RQ drops trailing zeros and periods from the
+     * values of numeric columns.
+     */
+    private static boolean fitsIntegerColumn(String value) {
+        if (value == null || isCanonicalInteger(value))
+            return true;
+
+        for (int pos = 0; pos < value.length(); pos++) {
+            char c = value.charAt(pos);
+            if ((c >= '0' && c <= '9') || c == '.')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Switches to inserting rows into the untyped rest table after one or more
+     * columns stopped being INTEGER columns, if that has not happened yet.
+     * The table is not retyped until the load is finished.
+     */
+    private void columnsUntyped() throws SQLException {
+        if (resttable == null) {
+            executePending();
+            closeStatements();
+
+            resttable = "triplifier_rest_" + tname;
+            StringBuilder create = new StringBuilder("CREATE TABLE [" + resttable + "] (");
+            for (int col = 0; col < colcnt; col++) {
+                if (col > 0)
+                    create.append(", ");
+                create.append("\"").append(colnames.get(col)).append("\"");
+            }
+            create.append(")");
+
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate("DROP TABLE IF EXISTS [" + resttable + "]");
+                stmt.executeUpdate(create.toString());
+            } finally {
+                stmt.close();
+            }
+
+            prepareStatements();
+        }
+
+        // If no INTEGER columns are left, stop checking values.
+        for (boolean integer : integercols) {
+            if (integer)
+                return;
+        }
+        integercols = null;
+    }
+
+    /**
+     * Adds a row to the sample for choosing column types, and chooses the
+     * types once the sample is complete.
+     */
+    private void addToSample(String[] row) throws SQLException {
+        sample.add(row);
+        if (sample.size() == TYPE_SAMPLE_ROWS)
+            chooseColumnTypes();
+    }
+
+    /**
+     * Chooses the column types from the sampled rows and inserts the sampled
+     * rows.  A column becomes an INTEGER column if the sample has at least
+     * one integer value in the column and all of its values fit in an
+     * INTEGER column.
+     */
+    private void chooseColumnTypes() throws SQLException {
+        boolean[] integer = new boolean[colcnt];
+        boolean anyinteger = false;
+
+        for (int col = 0; col < colcnt; col++) {
+            boolean hasinteger = false;
+            boolean fits = true;
+
+            for (int row = 0; row < sample.size() && fits; row++) {
+                String[] values = sample.get(row);
+                String value = col < values.length ? values[col] : "";
+                hasinteger = hasinteger || isCanonicalInteger(value);
+                fits = fitsIntegerColumn(value);
+            }
+
+            integer[col] = hasinteger && fits;
+            anyinteger = anyinteger || integer[col];
+        }
+
+        List<String[]> rows = sample;
+        sample = null;
+        if (anyinteger) {
+            closeStatements();
+            changeColumnTypes(integer);
+            integercols = integer.clone();
+            prepareStatements();
+        }
+
+        for (String[] row : rows)
+            insert(row);
+    }
+
+    /**
+     * Re-creates the table with new column types, keeping the rows that have
+     * been inserted so far, followed by the rows of the rest table, if there
+     * is one.  The values of columns that are no longer INTEGER columns are
+     * converted back to text.  The statements must be closed first.
+     */
+    private void changeColumnTypes(boolean[] newtypes) throws SQLException {
+        // Like the other tables that the Triplifier adds (e.g.,
+        // ColumnStatistics.TABLE_NAME), the temporary table's name starts with
+        // "triplifier_" so that it does not clash with a source table.
+        String tmpname = "triplifier_retype_" + tname;
+        StringBuilder create = new StringBuilder("CREATE TABLE [" + tmpname + "] (");
+        StringBuilder select = new StringBuilder();
+        for (int col = 0; col < colcnt; col++) {
+            String colname = "\"" + colnames.get(col) + "\"";
+            if (col > 0) {
+                create.append(", ");
+                select.append(", ");
+            }
+
+            create.append(colname);
+            if (newtypes[col])
+                create.append(" INTEGER");
+
+            if (declaredcols != null && declaredcols[col] && !newtypes[col])
+                select.append("CAST(").append(colname).append(" AS TEXT)");
+            else
+                select.append(colname);
+        }
+        create.append(")");
+
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.executeUpdate("DROP TABLE IF EXISTS [" + tmpname + "]");
+            stmt.executeUpdate(create.toString());
+            stmt.executeUpdate("INSERT INTO [" + tmpname + "] SELECT " + select + " FROM [" + tname + "]");
+            stmt.executeUpdate("DROP TABLE [" + tname + "]");
+            if (resttable != null) {
+                // The rest table's values are all text, which SQLite turns
+                // into integers in the INTEGER columns.
+                stmt.executeUpdate("INSERT INTO [" + tmpname + "] SELECT * FROM ["
+                        + resttable + "]");
+                stmt.executeUpdate("DROP TABLE [" + resttable + "]");
+            }
+            stmt.executeUpdate("ALTER TABLE [" + tmpname + "] RENAME TO [" + tname + "]");
+        } finally {
+            stmt.close();
+        }
+
+        declaredcols = newtypes;
+        resttable = null;
+    }
+
+    /**
+     * Finishes the current row, executing the statement or batch if it is
+     * full.
+     */
+    private void endRow() throws SQLException {
+        if (++rowcnt == nextreport) {
+            listener.rowsLoaded(tname, rowcnt, charcnt, System.currentTimeMillis() - starttime);
+            nextreport += reportinterval;
+        }
+
+        if (mode == Mode.SINGLE_ROW) {
+            rowstmt.executeUpdate();
+            rowsExecuted(1);
+        } else if (mode == Mode.JDBC_BATCH) {
+            rowstmt.addBatch();
+            if (++pending == rowsperexec)
+                executePending();
+        } else {
+            if (++pending == rowsperexec)
+                executePending();
+        }
+    }
+
+    /**
+     * Inserts any rows that are waiting to be inserted.
+     */
+    private void executePending() throws SQLException {
+        if (pending == 0)
+            return;
+
+        if (mode == Mode.JDBC_BATCH)
+            rowstmt.executeBatch();
+        else if (pending == rowsperexec) {
+            // A full multi-row statement.  Only bind the values that are not
+            // already bound from the previous execution.
+            for (int cnt = 0; cnt < pendingvals.length; cnt++) {
+                if (pendingvals[cnt] != bound[cnt]) {
+                    bindValue(multistmt, cnt + 1, cnt % colcnt, pendingvals[cnt]);
+                    bound[cnt] = pendingvals[cnt];
+                }
+            }
+            multistmt.executeUpdate();
+        } else {
+            // Not enough rows are left for a multi-row statement, so insert
+            // them one at a time.
+            for (int row = 0; row < pending; row++) {
+                for (int col = 0; col < colcnt; col++)
+                    bindValue(rowstmt, col + 1, col, pendingvals[row * colcnt + col]);
+                rowstmt.executeUpdate();
+            }
+        }
+
+        rowsExecuted(pending);
+        pending = 0;
+    }
+
+    /**
+     * Keeps track of the number of rows in the current transaction, and
+     * commits the transaction and begins a new one if it is large enough.
+     */
+    private void rowsExecuted(int rows) throws SQLException {
+        txrows += rows;
+
+        if (txrows >= commitrows) {
+            Statement stmt = conn.createStatement();
+            stmt.execute("COMMIT");
+            stmt.execute("BEGIN TRANSACTION");
+            stmt.close();
+
+            txrows = 0;
+        }
+    }
+
+    /**
+     * Inserts any rows that are still waiting and closes the statements.  If
+     * any columns stopped being INTEGER columns during the load, the table is
+     * re-created with the final column types.  The caller is responsible for
+     * committing the last transaction.
+     *
+     * @throws SQLException
+     */
+    public void finish() throws SQLException {
+        try {
+            // Tables with fewer rows than the sample get their column types
+            // now.
+            if (sample != null)
+                chooseColumnTypes();
+            executePending();
+        } finally {
+            closeStatements();
+        }
+
+        if (resttable != null)
+            changeColumnTypes(integercols == null ? new boolean[colcnt] : integercols);
+    }
+
+    /**
+     * Discards any rows that are still waiting and closes the statements,
+     * after loading the table failed.  Errors while closing the statements
+     * are ignored, so that they do not hide the error that ended the load.
+     * The caller is responsible for rolling back the last transaction.
+     */
+    public void abort() {
+        try {
+            closeStatements();
+        } catch (SQLException e) {
+            // The statements are not used again.
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package reader;
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import settings.SettingsManager;
+
+
+/**
+ * The SQLite PRAGMA settings that TabularDataConverter uses for the databases
+ * it creates.  These databases are scratch copies of the source data, so while
+ * they are loaded, durability does not matter: if the conversion fails, the
+ * database is simply thrown away.  The "bulk load" settings are applied when
+ * the converter opens its connection (e.g., no synchronous writes, an
+ * in-memory rollback journal, a large page cache, and temporary tables in
+ * memory).  The "final" settings are applied after all data have been loaded,
+ * before the database is handed on (e.g., to D2RQ), to put the database back
+ * into a safe, ordinary state.
+ *
+ * Both sets of settings can be configured in triplifiersettings.props with
+ * the keys "sqliteBulkLoadPragmas" and "sqliteFinalPragmas".  Each is a JSON
+ * object of PRAGMA names and values.  If the settings file or the keys are not
+ * available, the defaults defined here are used.
+ */
+public class SQLiteLoadProfile {
+    public static final String BULK_LOAD_KEY = "sqliteBulkLoadPragmas";
+    public static final String FINAL_KEY = "sqliteFinalPragmas";
+
+    private final LinkedHashMap<String, String> bulkpragmas;
+    private final LinkedHashMap<String, String> finalpragmas;
+
+    /**
+     * Creates a new SQLiteLoadProfile with the default settings.
+     */
+    public SQLiteLoadProfile() {
+        bulkpragmas = new LinkedHashMap<String, String>();
+        // page_size only has an effect if it is set before the database file
+        // is first written.
+        bulkpragmas.put("page_size", "8192");
+        bulkpragmas.put("cache_size", "8192");
+        bulkpragmas.put("journal_mode", "MEMORY");
+        bulkpragmas.put("synchronous", "OFF");
+        bulkpragmas.put("temp_store", "MEMORY");
+
+        finalpragmas = new LinkedHashMap<String, String>();
+        finalpragmas.put("journal_mode", "DELETE");
+        finalpragmas.put("synchronous", "FULL");
+    }
+
+    /**
+     * Creates a new SQLiteLoadProfile with the specified settings.
+     *
+     * @param bulkpragmas The PRAGMA names and values for loading data.
+     * @param finalpragmas The PRAGMA names and values to apply when loading is
+     * done.
+     */
+    public SQLiteLoadProfile(Map<String, String> bulkpragmas, Map<String, String> finalpragmas) {
+        this.bulkpragmas = new LinkedHashMap<String, String>(bulkpragmas);
+        this.finalpragmas = new LinkedHashMap<String, String>(finalpragmas);
+    }
+
+    /**
+     * Gets the profile defined in triplifiersettings.props.  The default
+     * settings are used for any keys that are not defined, or if the settings
+     * file cannot be read.
+     *
+     * @return The configured profile.
+     */
+    public static SQLiteLoadProfile getConfiguredProfile() {
+        SQLiteLoadProfile defaults = new SQLiteLoadProfile();
+        Map<String, String> bulk = defaults.bulkpragmas;
+        Map<String, String> fin = defaults.finalpragmas;
+
+        try {
+            SettingsManager sm = SettingsManager.getInstance();
+            sm.loadProperties();
+
+            if (!sm.retrieveValue(BULK_LOAD_KEY).equals(""))
+                bulk = sm.retrieveJsonMap(BULK_LOAD_KEY);
+            if (!sm.retrieveValue(FINAL_KEY).equals(""))
+                fin = sm.retrieveJsonMap(FINAL_KEY);
+        } catch (Exception e) {
+            // The settings file is not available, so use the defaults.
+        }
+
+        return new SQLiteLoadProfile(bulk, fin);
+    }
+
+    /**
+     * Get the PRAGMA settings for loading data.
+     *
+     * @return The PRAGMA names and values, in the order they are applied.
+     */
+    public Map<String, String> getBulkLoadPragmas() {
+        return Collections.unmodifiableMap(bulkpragmas);
+    }
+
+    /**
+     * Get the PRAGMA settings that are applied after loading.
+     *
+     * @return The PRAGMA names and values, in the order they are applied.
+     */
+    public Map<String, String> getFinalPragmas() {
+        return Collections.unmodifiableMap(finalpragmas);
+    }
+
+    /**
+     * Applies the bulk load settings to a connection.
+     *
+     * @param conn A SQLite connection with no open transaction.
+     * @throws SQLException
+     */
+    public void applyBulkLoad(Connection conn) throws SQLException {
+        apply(conn, bulkpragmas);
+    }
+
+    /**
+     * Applies the final settings to a connection.
+     *
+     * @param conn A SQLite connection with no open transaction.
+     * @throws SQLException
+     */
+    public void applyFinal(Connection conn) throws SQLException {
+        apply(conn, finalpragmas);
+    }
+
+    private void apply(Connection conn, Map<String, String> pragmas) throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        try {
+            for (Map.Entry<String, String> pragma : pragmas.entrySet()) {
+                // PRAGMA statements cannot use bound parameters, so make sure
+                // that the names and values are simple identifiers or numbers.
+                if (!pragma.getKey().matches("[A-Za-z_]+") || !pragma.getValue().matches("[A-Za-z0-9_-]+"))
+                    throw new SQLException("Invalid SQLite PRAGMA setting: " + pragma.getKey() + " = " + pragma.getValue());
+
+                stmt.execute("PRAGMA " + pragma.getKey() + " = " + pragma.getValue());
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+}
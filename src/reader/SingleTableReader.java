@@ -0,0 +1,123 @@
+package reader;
+
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import reader.plugins.BatchTabularDataReader;
+import reader.plugins.RowBatch;
+import reader.plugins.TabularDataReader;
+
+
+/**
+ * Presents the active table of another reader as a data source with only that
+ * one table.  TabularDataConverter uses this to convert the tables of a
+ * MultiTableReader concurrently, each with its own converter.  Reading from a
+ * SingleTableReader throws a CancellationException once the shared
+ * cancellation flag is set, which stops a table's conversion quickly if the
+ * conversion of another table failed.
+ */
+class SingleTableReader implements BatchTabularDataReader
+{
+    private final TabularDataReader reader;
+    private final AtomicBoolean cancelled;
+    private boolean moved = false;
+
+    /**
+     * Creates a new SingleTableReader.
+     *
+     * @param reader A reader whose active table is the table to read.
+     * @param cancelled A flag that is set if the conversion is cancelled.
+     */
+    public SingleTableReader(TabularDataReader reader, AtomicBoolean cancelled) {
+        this.reader = reader;
+        this.cancelled = cancelled;
+    }
+
+    private void checkCancelled() {
+        if (cancelled.get())
+            throw new CancellationException("The conversion was cancelled.");
+    }
+
+    @Override
+    public String getFormatString() {
+        return reader.getFormatString();
+    }
+
+    @Override
+    public String getShortFormatDesc() {
+        return reader.getShortFormatDesc();
+    }
+
+    @Override
+    public String getFormatDescription() {
+        return reader.getFormatDescription();
+    }
+
+    @Override
+    public String[] getFileExtensions() {
+        return reader.getFileExtensions();
+    }
+
+    @Override
+    public boolean testFile(String filepath) {
+        return false;
+    }
+
+    @Override
+    public boolean openFile(String filepath) {
+        return false;
+    }
+
+    @Override
+    public boolean hasNextTable() {
+        return !moved;
+    }
+
+    @Override
+    public void moveToNextTable() {
+        if (moved)
+            throw new NoSuchElementException();
+
+        moved = true;
+    }
+
+    @Override
+    public String getCurrentTableName() {
+        return reader.getCurrentTableName();
+    }
+
+    @Override
+    public boolean tableHasNextRow() {
+        checkCancelled();
+
+        return reader.tableHasNextRow();
+    }
+
+    @Override
+    public String[] tableGetNextRow() {
+        checkCancelled();
+
+        return reader.tableGetNextRow();
+    }
+
+    @Override
+    public int readBatch(RowBatch batch) {
+        checkCancelled();
+
+        if (reader instanceof BatchTabularDataReader)
+            return ((BatchTabularDataReader)reader).readBatch(batch);
+
+        batch.clear();
+        while (reader.tableHasNextRow() && !batch.isFull())
+            batch.setRow(batch.addRow(), reader.tableGetNextRow());
+
+        return batch.size();
+    }
+
+    @Override
+    public void closeFile() {
+        reader.closeFile();
+    }
+}
@@ -1,15 +1,39 @@
 package reader;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import reader.plugins.BatchTabularDataReader;
+import reader.plugins.CSVParser;
+import reader.plugins.CSVReader;
+import reader.plugins.ColumnDictionary;
+import reader.plugins.MultiTableReader;
+import reader.plugins.RowBatch;
 import reader.plugins.TabularDataReader;
 
 
@@ -19,10 +43,69 @@ import reader.plugins.TabularDataReader;
  * table in the SQLite database.
  */
 public final class TabularDataConverter {
+    // CSV sources with at least this many bytes of data are loaded in parallel
+    private static final long PARALLEL_MIN_BYTES = 32 * 1024 * 1024;
+    // the approximate size of each chunk of a CSV file for parallel loading
+    private static final long PARALLEL_CHUNK_SIZE = 8 * 1024 * 1024;
+    // the number of rows to read at a time from readers that support batches
+    private static final int ROW_BATCH_SIZE = 1024;
+    // the maximum number of distinct values in a column dictionary
+    private static final int DICTIONARY_MAX_SIZE = 4096;
+    // the number of row batches shared by the reader and writer threads
+    private static final int PIPELINE_BATCHES = 8;
+    // the default number of rows between progress reports
+    private static final long PROGRESS_INTERVAL = 10000;
+
     TabularDataReader source;
     String dest;
     String tablename;
     Boolean dwcFixer = true;
+    private boolean normalizingloader = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean dictionaries = false;
+    private boolean pipelined = Runtime.getRuntime().availableProcessors() > 1;
+    private boolean concurrenttables = Runtime.getRuntime().availableProcessors() > 1;
+
+    // the column dictionaries used for the converted tables, indexed by
+    // "table.column" names
+    private LinkedHashMap<String, ColumnDictionary> coldictionaries =
+            new LinkedHashMap<String, ColumnDictionary>();
+
+    // the SQLite settings to use while loading data, or null to use SQLite's
+    // defaults
+    private SQLiteLoadProfile loadprofile = SQLiteLoadProfile.getConfiguredProfile();
+
+    // the time taken by each stage of the most recent conversion, in
+    // milliseconds
+    private LinkedHashMap<String, Long> stagetimes = new LinkedHashMap<String, Long>();
+
+    // the listener for progress reports, if any, and the number of rows
+    // between reports
+    private ConversionListener listener = null;
+    private long progressinterval = PROGRESS_INTERVAL;
+    // whether this converter converts a whole data source, rather than a
+    // single table of a concurrent conversion; only converters of whole data
+    // sources report the end of the conversion to the listener and write
+    // column statistics
+    private boolean wholesource = true;
+
+    // whether column statistics are collected, and the statistics of the
+    // converted tables, indexed by "table.column" names
+    private boolean statistics = true;
+    private LinkedHashMap<String, ColumnStatistics> colstatistics =
+            new LinkedHashMap<String, ColumnStatistics>();
+    // whether column types are inferred, and the names of the columns that
+    // were made INTEGER columns, as "table.column"
+    private boolean typedcolumns = false;
+    private List<String> integercolumns = new ArrayList<String>();
+    // the number of rows loaded by the most recent conversion
+    private long rowcnt = 0;
+    // If the DwC archive being converted is normalized while it is loaded,
+    // the names of its columns that have values (see
+    // NormalizingInserter.create()), and the name of its table once it has
+    // been loaded.
+    private Set<String> populatedcolumns = null;
+    private String normalizedtable = null;
 
     /**
      * Constructs a new TabularDataConverter for the specified source.
@@ -42,6 +125,290 @@ public final class TabularDataConverter {
         this.dwcFixer = dwcFixer;
     }
 
+    /**
+     * Test if single-table Darwin Core archives are normalized while they
+     * are loaded.
+     *
+     * @return True if the normalizing loader is used.
+     */
+    public boolean getNormalizingLoader() {
+        return normalizingloader;
+    }
+
+    /**
+     * Set whether single-table Darwin Core archives should be normalized
+     * while they are loaded (see NormalizingInserter), instead of being loaded
+     * as they are and then fixed by DwCAFixer, which rewrites the whole table
+     * several times.  This only has an effect if the DwCAFixer is turned on
+     * (see setDwcFixer()).  The resulting tables are the same, including the
+     * IDs of the concept instances.  Before the archive is loaded, its ID
+     * columns are read to find out which of them have values; this usually
+     * ends after the first row.
+     * By default, archives are fixed by DwCAFixer.
+     *
+     * @param normalizingloader Whether to use the normalizing loader.
+     */
+    public void setNormalizingLoader(boolean normalizingloader) {
+        this.normalizingloader = normalizingloader;
+    }
+
+    /**
+     * Get the number of threads used to parse large CSV sources, to convert
+     * the tables of multi-table sources concurrently, and to normalize the
+     * concepts of Darwin Core archives.
+     *
+     * @return The number of threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads to use for parsing large CSV sources, for
+     * converting the tables of multi-table sources concurrently (see
+     * setConcurrentTables()), and for normalizing the concepts of Darwin Core
+     * archives (see DwCAFixer.setParallelism()).  A value of 1 (or less)
+     * turns off parallel loading of CSV sources, so that all rows are read
+     * and inserted by a single thread.
+     *
+     * @param parallelism The number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Test if reading the source and writing to the database are done by
+     * separate threads.
+     *
+     * @return True if conversion is pipelined.
+     */
+    public boolean getPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Set whether the source should be read by a separate thread while the
+     * rows are written to the database, so that parsing and writing overlap.
+     * This is on by default if more than one processor is available.  Large
+     * CSV sources that are loaded in parallel (see setParallelism()) are not
+     * affected by this setting.
+     *
+     * @param pipelined Whether to pipeline the conversion.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Test if the tables of sources with several independent tables are
+     * converted concurrently.
+     *
+     * @return True if tables are converted concurrently.
+     */
+    public boolean getConcurrentTables() {
+        return concurrenttables;
+    }
+
+    /**
+     * Set whether the tables of sources that implement MultiTableReader
+     * (e.g., Darwin Core archives) should be converted
+     * concurrently, using up to getParallelism() threads.  Each table is then
+     * read by its own reader and loaded into its own temporary SQLite
+     * database, and the temporary databases are merged into the destination
+     * database in source order, so the result is the same as for sequential
+     * conversion.  If the conversion of any table fails, the conversion of
+     * the other tables is cancelled.  This is on by default if more than one
+     * processor is available.
+     *
+     * @param concurrenttables Whether to convert tables concurrently.
+     */
+    public void setConcurrentTables(boolean concurrenttables) {
+        this.concurrenttables = concurrenttables;
+    }
+
+    /**
+     * Test if repeated values in each column are interned with a
+     * ColumnDictionary while the data are loaded.
+     *
+     * @return True if column dictionaries are used.
+     */
+    public boolean getDictionaryEncoding() {
+        return dictionaries;
+    }
+
+    /**
+     * Set whether repeated values in each column should be interned with a
+     * ColumnDictionary while the data are loaded.  This only applies to
+     * sources that support reading rows in batches.  Interned values do not
+     * need to be decoded again (for CSV sources), and, when rows are inserted
+     * with multi-row statements (see RowInserter), a value that is the same
+     * object as the one already bound in its place does not need to be bound
+     * again.  Dictionaries are abandoned for columns with many distinct values.
+     * This is off by default, since it did not make loading measurably faster.
+     *
+     * @param dictionaries Whether to use column dictionaries.
+     */
+    public void setDictionaryEncoding(boolean dictionaries) {
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Get the column dictionaries that were used by the most recent call to
+     * convert(), which can be used to report how effective they were.  The
+     * keys are of the form "table.column".
+     *
+     * @return The column dictionaries, in table and column order.
+     */
+    public Map<String, ColumnDictionary> getColumnDictionaries() {
+        return Collections.unmodifiableMap(coldictionaries);
+    }
+
+    /**
+     * Get whether statistics are collected for each column while the data
+     * are loaded.
+     *
+     * @return True if column statistics are collected.
+     */
+    public boolean getColumnStatisticsEnabled() {
+        return statistics;
+    }
+
+    /**
+     * Set whether statistics (see ColumnStatistics) are collected for each
+     * column while the data are loaded.  The statistics are stored in the
+     * destination database, in the table named by
+     * ColumnStatistics.TABLE_NAME.
+     *
+     * @param statistics Whether to collect column statistics.
+     */
+    public void setColumnStatisticsEnabled(boolean statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Get the column statistics that were collected by the most recent call
+     * to convert().  The keys are of the form "table.column".
+     *
+     * @return The column statistics, in table and column order.
+     */
+    public Map<String, ColumnStatistics> getColumnStatistics() {
+        return Collections.unmodifiableMap(colstatistics);
+    }
+
+    /**
+     * Get whether column types are inferred from the data.
+     *
+     * @return True if column types are inferred.
+     */
+    public boolean getTypedColumns() {
+        return typedcolumns;
+    }
+
+    /**
+     * Set whether column types are inferred from the data.  If they are,
+     * columns whose values are all canonical integers are created as INTEGER
+     * columns and their values are stored as integers (see RowInserter).  The
+     * text of the values read from the database is the same either way.  By
+     * default, all columns are untyped and all values are stored as text.
+     *
+     * @param typedcolumns Whether to infer column types.
+     */
+    public void setTypedColumns(boolean typedcolumns) {
+        this.typedcolumns = typedcolumns;
+    }
+
+    /**
+     * Get the columns that were created as INTEGER columns by the most recent
+     * call to convert().
+     *
+     * @return The INTEGER columns, as "table.column" names.
+     */
+    public List<String> getIntegerColumns() {
+        return Collections.unmodifiableList(integercolumns);
+    }
+
+    /**
+     * Get the SQLite settings that are used while loading data.  By default,
+     * this is the profile configured in triplifiersettings.props.
+     *
+     * @return The load profile, or null if SQLite's default settings are used.
+     */
+    public SQLiteLoadProfile getLoadProfile() {
+        return loadprofile;
+    }
+
+    /**
+     * Set the SQLite settings to use while loading data.
+     *
+     * @param loadprofile The load profile, or null to use SQLite's default
+     * settings.
+     */
+    public void setLoadProfile(SQLiteLoadProfile loadprofile) {
+        this.loadprofile = loadprofile;
+    }
+
+    /**
+     * Get the time taken by each stage of the most recent call to convert():
+     * opening the database, loading each table, running the DwCAFixer, and
+     * finalizing the database.
+     *
+     * @return The stage names and times in milliseconds, in the order the
+     * stages ran.
+     */
+    public Map<String, Long> getStageTimes() {
+        return Collections.unmodifiableMap(stagetimes);
+    }
+
+    /**
+     * Get the listener that progress reports are sent to.
+     *
+     * @return The listener, or null if there is none.
+     */
+    public ConversionListener getConversionListener() {
+        return listener;
+    }
+
+    /**
+     * Set a listener to send progress reports to while converting: the start
+     * and end of each table, the number of rows loaded so far (after every
+     * progressinterval rows), the phases of the DwCAFixer, and the end of the
+     * conversion.
+     *
+     * @param listener The listener, or null for no progress reports.
+     */
+    public void setConversionListener(ConversionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the number of rows that are loaded between progress reports.
+     *
+     * @return The number of rows.
+     */
+    public long getProgressInterval() {
+        return progressinterval;
+    }
+
+    /**
+     * Set the number of rows that are loaded between progress reports.
+     *
+     * @param progressinterval The number of rows.
+     */
+    public void setProgressInterval(long progressinterval) {
+        this.progressinterval = Math.max(1, progressinterval);
+    }
+
+    /**
+     * Get the number of rows that were loaded by the most recent call to
+     * convert(), in all tables.
+     *
+     * @return The number of rows.
+     */
+    public long getRowCount() {
+        return rowcnt;
+    }
+
     /**
      * Constructs a new TabularDataConverter for the specified source and
      * destination database connection.
@@ -58,6 +425,33 @@ public final class TabularDataConverter {
         setDestination(dest);
     }
 
+    /**
+     * Constructs a new TabularDataConverter for converting a single table
+     * during a concurrent conversion (see convertTablesConcurrently()).  The
+     * new converter uses the settings of the parent converter, except that it
+     * does not run the DwCAFixer and does not start any threads other than
+     * its pipeline thread.  The source is set by the task that runs it.
+     *
+     * @param parent The converter of the whole data source.
+     * @param dest A valid SQLite JDBC connection string.
+     */
+    private TabularDataConverter(TabularDataConverter parent, String dest) {
+        setSource(null);
+        setDestination(dest);
+
+        dwcFixer = false;
+        parallelism = 1;
+        pipelined = parent.pipelined;
+        dictionaries = parent.dictionaries;
+        concurrenttables = false;
+        loadprofile = parent.loadprofile;
+        listener = parent.listener;
+        progressinterval = parent.progressinterval;
+        statistics = parent.statistics;
+        typedcolumns = parent.typedcolumns;
+        wholesource = false;
+    }
+
     /**
      * Set the source data for this TabularDataConverter.  The source
      * TabularDataReader must have a data source open and ready to access.
@@ -70,7 +464,9 @@ public final class TabularDataConverter {
     }
 
     /**
-     * The SQLite JDBC connection string to use for the destination.
+     * The SQLite JDBC connection string to use for the destination.  To
+     * convert the data into memory, use the connection string of an
+     * InMemoryDatabase.
      *
      * @param dest A valid JDBC SQLite connection string.
      */
@@ -149,46 +545,419 @@ public final class TabularDataConverter {
      * All rows from the source are copied to the new table.
      * If the input data source is a Darwin Core archive, convert() will also
      * attempt to "re-normalize" the archive data.  This task is handed off to
-     * an instance of DwCAFixer.
+     * an instance of DwCAFixer, or to a NormalizingInserter while the archive
+     * is loaded (see setNormalizingLoader()).
      *
      * @throws SQLException
      */
     public void convert() throws SQLException {
         int tablecnt = 0;
         String tname;
+
+        coldictionaries.clear();
+        colstatistics.clear();
+        integercolumns.clear();
+        stagetimes.clear();
+        rowcnt = 0;
+
+        long start = System.currentTimeMillis();
+        long convertstart = start;
         Connection conn = DriverManager.getConnection(dest);
 
-        while (source.hasNextTable()) {
-            source.moveToNextTable();
-            tablecnt++;
+        try {
+            if (loadprofile != null)
+                loadprofile.applyBulkLoad(conn);
+            start = recordStage("open database", start);
+
+            populatedcolumns = null;
+            normalizedtable = null;
+            if (normalizingloader && dwcFixer && source.getFormatString().equals("DwCA")
+                    && source instanceof MultiTableReader) {
+                populatedcolumns = findPopulatedIDColumns((MultiTableReader)source);
+                start = recordStage("find populated ID columns", start);
+            }
+
+            boolean converted = false;
+            if (concurrenttables && source instanceof MultiTableReader)
+                converted = convertTablesConcurrently(conn, (MultiTableReader)source);
+
+            if (!converted) {
+                while (source.hasNextTable()) {
+                    source.moveToNextTable();
+                    tablecnt++;
+
+                    if (source.tableHasNextRow()) {
+                        tname = getDestinationTableName(source, tablecnt);
+                        buildTable(conn, tname);
+                        start = recordStage("load table " + tname, start);
+                    }
+                }
+            }
+            start = System.currentTimeMillis();
+
+            // If the data source is a DwC archive, attempt to "fix" any missing
+            // ID columns.  This could be designed more elegantly with a generic
+            // "fixer" interface, but since we are only planning to do it for DwC
+            // archives, the implementation is, for now, format-specific.
+            if (source.getFormatString().equals("DwCA")) {
+                // Only run this if dwcFixer Class variable is true.  This lets users
+                // turn this option off to speed up operations, e.g. especially useful
+                // in the command-line interpreter.  Archives that were normalized
+                // while they were loaded do not need to be fixed.
+                if (normalizedtable != null)
+                    renameStatistics(normalizedtable, DwCAFixer.MAIN_TABLE);
+                else if (dwcFixer) {
+                    DwCAFixer dwcafixer = new DwCAFixer();
+                    dwcafixer.setConversionListener(listener);
+                    dwcafixer.setParallelism(parallelism);
+                    String fixedtable = dwcafixer.fixArchive(conn);
+                    if (fixedtable != null)
+                        renameStatistics(fixedtable, DwCAFixer.MAIN_TABLE);
+                    start = recordStage("fix DwC archive", start);
+                }
+            }
+
+            if (wholesource && !colstatistics.isEmpty()) {
+                ColumnStatistics.write(conn, colstatistics);
+                start = recordStage("write column statistics", start);
+            }
+
+            // Put the database back into a safe state before it is used by
+            // anything else.
+            if (loadprofile != null)
+                loadprofile.applyFinal(conn);
+        } finally {
+            conn.close();
+        }
+
+        start = recordStage("finalize database", start);
+
+        if (listener != null && wholesource)
+            listener.conversionFinished(rowcnt, start - convertstart);
+    }
+
+    /**
+     * Gets the name to use in the destination database for the active table
+     * of a source.
+     *
+     * @param reader The source, with the table to name active.
+     * @param tablecnt The number of the active table in the source, starting
+     * at 1.
+     * @return A valid SQLite table name.
+     */
+    private String getDestinationTableName(TabularDataReader reader, int tablecnt) {
+        String tname;
+
+        // If the user supplied a name for the first table in the data source,
+        // use it.  Otherwise, take the table name from the data source.
+        if ((tablecnt == 1) && !tablename.equals(""))
+            tname = tablename;
+        else
+            tname = reader.getCurrentTableName();
+
+        return fixSQLiteIdentifierName(tname);
+    }
+
+    /**
+     * Finds out which ID columns of a Darwin Core archive have values, which
+     * the normalizing loader needs to know before it loads the archive (see
+     * NormalizingInserter.create()).  The archive is read with separate
+     * copies of the source, and reading stops as soon as all of the ID
+     * columns are known to have values.
+     *
+     * @param multisource The archive.
+     * @return The names of the concept ID columns and "occurrenceID" column
+     * that have at least one non-blank value, or null if the archive does not
+     * have exactly one table to convert or cannot be read again.
+     */
+    private Set<String> findPopulatedIDColumns(MultiTableReader multisource) {
+        // Like DwCAFixer, only normalize archives with a single table.
+        TabularDataReader tables = multisource.openCopy();
+        if (tables == null)
+            return null;
+
+        int tablecnt = 0;
+        try {
+            while (tables.hasNextTable()) {
+                tables.moveToNextTable();
+                if (tables.tableHasNextRow())
+                    tablecnt++;
+            }
+        } finally {
+            tables.closeFile();
+        }
+
+        if (tablecnt != 1)
+            return null;
+
+        TabularDataReader archive = multisource.openCopy();
+        if (archive == null)
+            return null;
 
-            // If the user supplied a name for the first table in the data
-            // source, use it.  Otherwise, take the table name from the data
-            // source.
-            if ((tablecnt == 1) && !tablename.equals(""))
-                tname = tablename;
-            else
-                tname = source.getCurrentTableName();
+        try {
+            do {
+                archive.moveToNextTable();
+            } while (!archive.tableHasNextRow());
 
-            if (source.tableHasNextRow())
-                buildTable(conn, fixSQLiteIdentifierName(tname));
+            // Find the ID columns.
+            List<Integer> idcols = new ArrayList<Integer>();
+            List<String> idnames = new ArrayList<String>();
+            String[] header = archive.tableGetNextRow();
+            for (int col = 0; col < header.length; col++) {
+                String colname = fixSQLiteIdentifierName(header[col]);
+                if ((DwCAFixer.getConceptIDs().contains(colname) || colname.equals("occurrenceID"))
+                        && !idnames.contains(colname)) {
+                    idcols.add(col);
+                    idnames.add(colname);
+                }
+            }
+
+            Set<String> populated = new HashSet<String>();
+            while (populated.size() < idnames.size() && archive.tableHasNextRow()) {
+                String[] row = archive.tableGetNextRow();
+                for (int cnt = 0; cnt < idcols.size(); cnt++) {
+                    int col = idcols.get(cnt);
+                    if (col < row.length && row[col] != null && !row[col].equals(""))
+                        populated.add(idnames.get(cnt));
+                }
+            }
+
+            return populated;
+        } finally {
+            archive.closeFile();
+        }
+    }
+
+    /**
+     * Converts the tables of a source concurrently.  The tables to convert are
+     * found with a separate copy of the source, so that the source itself is
+     * left untouched if there are fewer than two tables to convert.  Each
+     * table is then converted on a fork-join pool by its own
+     * TabularDataConverter, which reads the table with its own copy of the
+     * source and writes it to a temporary SQLite file.  As each table is
+     * finished (in source order), its file is attached to the destination
+     * database and the table is copied into it, while the later tables are
+     * still being converted.  If a table cannot be converted, the conversion
+     * of all remaining tables is cancelled before this method returns.
+     *
+     * @param conn A connection to the destination database.
+     * @param multisource The source.
+     * @return True if the tables were converted, or false if the source does
+     * not have enough tables to make concurrent conversion worthwhile.
+     * @throws SQLException
+     */
+    private boolean convertTablesConcurrently(Connection conn, MultiTableReader multisource)
+            throws SQLException {
+        // Find the tables that have rows and their destination names.
+        List<Integer> tableindexes = new ArrayList<Integer>();
+        List<String> tnames = new ArrayList<String>();
+        TabularDataReader tables = multisource.openCopy();
+        if (tables == null)
+            return false;
+
+        try {
+            int tablecnt = 0;
+            while (tables.hasNextTable()) {
+                tables.moveToNextTable();
+                tablecnt++;
+
+                if (tables.tableHasNextRow()) {
+                    tableindexes.add(tablecnt - 1);
+                    tnames.add(getDestinationTableName(tables, tablecnt));
+                }
+            }
+        } finally {
+            tables.closeFile();
+        }
+
+        if (tnames.size() < 2)
+            return false;
+
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        List<File> tablefiles = new ArrayList<File>();
+        List<ForkJoinTask<TabularDataConverter>> tasks =
+                new ArrayList<ForkJoinTask<TabularDataConverter>>();
+        boolean finished = false;
+
+        try {
+            for (int cnt = 0; cnt < tnames.size(); cnt++) {
+                File tablefile;
+                try {
+                    tablefile = File.createTempFile("triplifier_table", ".sqlite");
+                } catch (IOException e) {
+                    throw new SQLException("Could not create a temporary database.", e);
+                }
+                tablefiles.add(tablefile);
+
+                TabularDataConverter tableconverter = new TabularDataConverter(this,
+                        "jdbc:sqlite:" + tablefile.getPath());
+                tasks.add(pool.submit(new TableConverter(tableconverter, multisource,
+                        tableindexes.get(cnt), tnames.get(cnt), cancelled)));
+            }
+
+            for (int cnt = 0; cnt < tnames.size(); cnt++) {
+                String tname = tnames.get(cnt);
+                TabularDataConverter tableconverter;
+
+                try {
+                    tableconverter = tasks.get(cnt).get();
+                } catch (ExecutionException e) {
+                    throw getTableFailure(tasks, tnames, cnt, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("The conversion was interrupted.", e);
+                }
+
+                stagetimes.put("load table " + tname,
+                        tableconverter.getStageTimes().get("load table " + tname));
+                coldictionaries.putAll(tableconverter.getColumnDictionaries());
+                colstatistics.putAll(tableconverter.getColumnStatistics());
+                integercolumns.addAll(tableconverter.getIntegerColumns());
+                rowcnt += tableconverter.getRowCount();
+
+                long start = System.currentTimeMillis();
+                mergeTable(conn, tablefiles.get(cnt), tname);
+                recordStage("merge table " + tname, start);
+
+                tablefiles.get(cnt).delete();
+            }
+
+            finished = true;
+        } finally {
+            if (!finished)
+                cancelled.set(true);
+
+            // Wait for any remaining tasks to stop so that their temporary
+            // files can be deleted.
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (File tablefile : tablefiles)
+                tablefile.delete();
         }
 
-        // If the data source is a DwC archive, attempt to "fix" any missing
-        // ID columns.  This could be designed more elegantly with a generic
-        // "fixer" interface, but since we are only planning to do it for DwC
-        // archives, the implementation is, for now, format-specific.
-        if (source.getFormatString().equals("DwCA")) {
-            // Only run this if dwcFixer Class variable is true.  This lets users
-            // turn this option off to speed up operations, e.g. especially useful
-            // in the command-line interpreter.
-            if (dwcFixer) {
-                DwCAFixer dwcafixer = new DwCAFixer();
-                dwcafixer.fixArchive(conn);
+        return true;
+    }
+
+    /**
+     * Finds the table conversion that failed first after a conversion task
+     * ended with an exception.  If the task was only cancelled because the
+     * conversion of a later table failed, that table's failure is reported
+     * instead.
+     *
+     * @param tasks The table conversion tasks.
+     * @param tnames The names of the tables.
+     * @param failed The index of the task that ended with an exception.
+     * @param e The exception.
+     * @return An exception that describes the failure.
+     */
+    private SQLException getTableFailure(List<ForkJoinTask<TabularDataConverter>> tasks,
+            List<String> tnames, int failed, ExecutionException e) {
+        int index = failed;
+        Throwable cause = e.getCause();
+
+        for (int cnt = failed + 1; cnt < tasks.size() && cause instanceof CancellationException; cnt++) {
+            try {
+                tasks.get(cnt).get();
+            } catch (ExecutionException ex) {
+                index = cnt;
+                cause = ex.getCause();
+            } catch (Exception ex) {
+                // This task did not fail, or it was interrupted.
             }
         }
 
-        conn.close();
+        return new SQLException("Could not convert the table " + tnames.get(index) + ".", cause);
+    }
+
+    /**
+     * Copies a table from a SQLite file into the destination database.  If
+     * the table already exists in the destination database, IT IS DROPPED.
+     *
+     * @param conn A connection to the destination database.
+     * @param tablefile A SQLite file that contains the table.
+     * @param tname The name of the table.
+     * @throws SQLException
+     */
+    private void mergeTable(Connection conn, File tablefile, String tname) throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        try {
+            stmt.execute("ATTACH DATABASE '" + tablefile.getPath().replace("'", "''")
+                    + "' AS tablesource");
+
+            try {
+                ResultSet rs = stmt.executeQuery("SELECT sql FROM tablesource.sqlite_master "
+                        + "WHERE type = 'table' AND name = '" + tname + "'");
+                String createsql = rs.next() ? rs.getString(1) : null;
+                rs.close();
+                if (createsql == null)
+                    throw new SQLException("The converted table " + tname + " is missing.");
+
+                // The table definition does not name a database, so the
+                // table is created in the destination database.
+                stmt.execute("BEGIN TRANSACTION");
+                try {
+                    stmt.executeUpdate("DROP TABLE IF EXISTS main.[" + tname + "]");
+                    stmt.executeUpdate(createsql);
+                    stmt.executeUpdate("INSERT INTO main.[" + tname + "] SELECT * FROM tablesource.["
+                            + tname + "]");
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                }
+            } finally {
+                stmt.execute("DETACH DATABASE tablesource");
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Moves the column statistics and the INTEGER column names of a table to
+     * a new table name.
+     *
+     * @param oldname The original name of the table.
+     * @param newname The new name of the table.
+     */
+    private void renameStatistics(String oldname, String newname) {
+        LinkedHashMap<String, ColumnStatistics> renamed = new LinkedHashMap<String, ColumnStatistics>();
+
+        for (Map.Entry<String, ColumnStatistics> entry : colstatistics.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(oldname + "."))
+                key = newname + key.substring(oldname.length());
+            renamed.put(key, entry.getValue());
+        }
+
+        colstatistics = renamed;
+
+        for (int cnt = 0; cnt < integercolumns.size(); cnt++) {
+            String colname = integercolumns.get(cnt);
+            if (colname.startsWith(oldname + "."))
+                integercolumns.set(cnt, newname + colname.substring(oldname.length()));
+        }
+    }
+
+    /**
+     * Records the time taken by a conversion stage.
+     *
+     * @param stage The name of the stage.
+     * @param start The time the stage started, in milliseconds.
+     * @return The current time, which is the start time of the next stage.
+     */
+    private long recordStage(String stage, long start) {
+        long now = System.currentTimeMillis();
+        stagetimes.put(stage, now - start);
+
+        return now;
     }
 
     /**
@@ -198,7 +967,9 @@ public final class TabularDataConverter {
      * and number of elements in the first row of the source data is created,
      * and all rows from the source are copied to the new table.  If a data
      * source returns a blank column name, then a machine-generated column name
-     * will be used.
+     * will be used.  If the table is a DwC archive that is normalized while it
+     * is loaded (see setNormalizingLoader()), the rows are copied to the main
+     * table and concept tables instead.
      *
      * @param conn  A valid connection to a destination database.
      * @param tname The name to use for the table in the destination database.
@@ -229,6 +1000,7 @@ public final class TabularDataConverter {
         // set up the table definition query
         String query = "CREATE TABLE [" + tname + "] (";
         colcnt = 0;
+        List<String> colnames = new ArrayList<String>();
         for (String colname : source.tableGetNextRow()) {
             if (colcnt++ > 0)
                 query += ", ";
@@ -238,53 +1010,400 @@ public final class TabularDataConverter {
                 col_cnt++;
             }
             colname = fixSQLiteIdentifierName(colname);
+            colnames.add(colname);
             query += "\"" + colname + "\"";
         }
         query += ")";
         //System.out.println(query);
 
-        // create the table
-        stmt.executeUpdate(query);
-
-        // create a prepared statement for insert queries
-        query = "INSERT INTO [" + tname + "] VALUES (";
-        for (cnt = 0; cnt < colcnt; cnt++) {
-            if (cnt > 0)
-                query += ", ";
-            query += "?";
-        }
-        query += ")";
-        //System.out.println(query);
-        PreparedStatement insstmt = conn.prepareStatement(query);
+        // create the table, unless the table is a DwC archive that is
+        // normalized while it is loaded, whose tables are created by the
+        // NormalizingInserter
+        if (populatedcolumns == null)
+            stmt.executeUpdate(query);
 
         // Start a new transaction for all of the INSERT statements.  This
         // dramatically improves the run time from many minutes for a large data
-        // source to a matter of seconds.
+        // source to a matter of seconds.  For very large sources, the
+        // RowInserter commits the rows in chunks.
         stmt.execute("BEGIN TRANSACTION");
 
-        // populate the table with the source data
-        while (source.tableHasNextRow()) {
-            cnt = 0;
-            for (String dataval : source.tableGetNextRow()) {
-                //System.out.println(dataval);
-                insstmt.setString(++cnt, dataval);
+        // the name of the table that the rows are inserted into, for progress
+        // reports
+        String loadedname = tname;
+        RowInserter inserter;
+        if (populatedcolumns == null)
+            inserter = new RowInserter(conn, tname, colcnt);
+        else {
+            inserter = NormalizingInserter.create(conn, colnames, populatedcolumns);
+            normalizedtable = tname;
+            loadedname = DwCAFixer.MAIN_TABLE;
+        }
+        long start = System.currentTimeMillis();
+        if (listener != null) {
+            listener.tableStarted(loadedname);
+            inserter.setListener(listener, progressinterval);
+        }
+        if (statistics) {
+            ColumnStatistics[] stats = new ColumnStatistics[colnames.size()];
+            for (int col = 0; col < stats.length; col++) {
+                stats[col] = new ColumnStatistics();
+                colstatistics.put(tname + "." + colnames.get(col), stats[col]);
             }
+            inserter.setStatistics(stats);
+        }
+        if (typedcolumns)
+            inserter.setTypedColumns(colnames);
 
-            // Supply blank strings for any missing columns.  This does not appear
-            // to be strictly necessary, at least with the Sqlite driver we're
-            // using, but it is included as insurance against future changes.
-            while (cnt < colcnt) {
-                insstmt.setString(++cnt, "");
+        // populate the table with the source data
+        boolean loaded = false;
+        try {
+            if (useParallelLoad())
+                insertRowsParallel(inserter, (CSVReader)source);
+            else if (pipelined)
+                insertRowsPipelined(inserter, tname, colnames);
+            else if (source instanceof BatchTabularDataReader)
+                insertRowsBatched(inserter, tname, colnames, (BatchTabularDataReader)source);
+            else {
+                while (source.tableHasNextRow())
+                    inserter.insert(source.tableGetNextRow());
+            }
+            inserter.finish();
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                // Don't insert the waiting rows or retype the table after a
+                // failure, and don't leave the transaction open: an
+                // in-memory database's connection outlives this one.
+                inserter.abort();
+                try {
+                    stmt.execute("ROLLBACK");
+                    stmt.close();
+                } catch (SQLException e) {
+                    // Keep the error that ended the load.
+                }
             }
-
-            // add the row to the database
-            insstmt.executeUpdate();
         }
 
-        insstmt.close();
+        boolean[] integer = inserter.getIntegerColumns();
+        for (int col = 0; col < integer.length; col++) {
+            if (integer[col])
+                integercolumns.add(tname + "." + colnames.get(col));
+        }
 
         // end the transaction
         stmt.execute("COMMIT");
         stmt.close();
+
+        rowcnt += inserter.getRowCount();
+        if (listener != null)
+            listener.tableFinished(loadedname, inserter.getRowCount(), inserter.getCharCount(),
+                    System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Loads the remaining rows of the active source table by reading them into
+     * a single, reused RowBatch, rather than getting a new array from the
+     * source for every row.  Each row in the batch has exactly one value for
+     * each column.
+     *
+     * @param inserter The RowInserter for the table.
+     * @param tname The name of the table.
+     * @param colnames The names of the table's columns.
+     * @param batchsource A source that supports reading rows in batches.
+     * @throws SQLException
+     */
+    private void insertRowsBatched(RowInserter inserter, String tname,
+            List<String> colnames, BatchTabularDataReader batchsource) throws SQLException {
+        RowBatch batch = new RowBatch(colnames.size(), ROW_BATCH_SIZE);
+        batch.setDictionaries(createDictionaries(tname, colnames));
+
+        while (batchsource.readBatch(batch) > 0)
+            inserter.insert(batch);
+    }
+
+    /**
+     * Loads the remaining rows of the active source table with two threads: a
+     * reader thread fills RowBatches from the source while the calling thread
+     * writes the filled batches to the database, so reading and writing
+     * overlap.  A fixed number of batches is passed back and forth between the
+     * threads through two bounded queues (one for filled batches and one for
+     * empty batches), so the reader can never get more than a few batches
+     * ahead of the writer, and the batches are reused.  The database
+     * connection is only ever used by the calling thread.
+     *
+     * If the reader fails, the exception is rethrown in the calling thread
+     * (wrapped in an SQLException).  If writing fails, or if the calling
+     * thread is interrupted, the reader thread is stopped before this method
+     * returns.
+     *
+     * @param inserter The RowInserter for the table.
+     * @param tname The name of the table.
+     * @param colnames The names of the table's columns.
+     * @throws SQLException
+     */
+    private void insertRowsPipelined(RowInserter inserter, String tname,
+            List<String> colnames) throws SQLException {
+        int colcnt = colnames.size();
+        ColumnDictionary[] dicts = createDictionaries(tname, colnames);
+
+        ArrayBlockingQueue<RowBatch> empty = new ArrayBlockingQueue<RowBatch>(PIPELINE_BATCHES);
+        ArrayBlockingQueue<RowBatch> filled = new ArrayBlockingQueue<RowBatch>(PIPELINE_BATCHES);
+        for (int cnt = 0; cnt < PIPELINE_BATCHES; cnt++) {
+            RowBatch batch = new RowBatch(colcnt, ROW_BATCH_SIZE);
+            batch.setDictionaries(dicts);
+            empty.add(batch);
+        }
+
+        BatchProducer producer = new BatchProducer(source, empty, filled);
+        Thread producerthread = new Thread(producer, "TabularDataConverter reader");
+        producerthread.setDaemon(true);
+        producerthread.start();
+
+        boolean finished = false;
+
+        try {
+            RowBatch batch;
+
+            // An empty batch marks the end of the table (or a reader error).
+            while ((batch = filled.take()).size() > 0) {
+                inserter.insert(batch);
+                empty.put(batch);
+            }
+
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("The conversion was interrupted.", e);
+        } finally {
+            if (!finished)
+                producer.cancel(producerthread);
+
+            try {
+                producerthread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (producer.getError() != null)
+            throw new SQLException("Could not read the source data.", producer.getError());
+    }
+
+    /**
+     * Creates a dictionary for each column of a table, if dictionary encoding
+     * is on, and registers the dictionaries for reporting.
+     *
+     * @return The dictionaries, or null if dictionary encoding is off.
+     */
+    private ColumnDictionary[] createDictionaries(String tname, List<String> colnames) {
+        if (!dictionaries)
+            return null;
+
+        ColumnDictionary[] dicts = new ColumnDictionary[colnames.size()];
+        for (int col = 0; col < dicts.length; col++) {
+            dicts[col] = new ColumnDictionary(DICTIONARY_MAX_SIZE);
+            coldictionaries.put(tname + "." + colnames.get(col), dicts[col]);
+        }
+
+        return dicts;
+    }
+
+    /**
+     * Decides if the rows of the active source table should be loaded with
+     * insertRowsParallel().  This is only done for CSV sources that are large
+     * enough for the extra threads to pay off.
+     *
+     * @return True if the table should be loaded in parallel.
+     */
+    private boolean useParallelLoad() {
+        return parallelism > 1 && source instanceof CSVReader
+                && ((CSVReader)source).getRemainingBytes() >= PARALLEL_MIN_BYTES;
+    }
+
+    /**
+     * Loads the remaining rows of a CSV source by parsing chunks of the file
+     * concurrently on a fork-join pool.  The file is split at record
+     * boundaries, and the parsed chunks are handed to the (single) SQLite
+     * writer in file order, so the rows end up in the table in exactly the
+     * same order as they would with sequential loading.  Only a few more
+     * chunks than there are threads are in flight at any time, which keeps
+     * memory use bounded no matter how large the file is.
+     *
+     * @param inserter The RowInserter for the table.
+     * @param csvsource The CSV source, positioned after the header row.
+     * @throws SQLException
+     */
+    private void insertRowsParallel(RowInserter inserter, CSVReader csvsource)
+            throws SQLException {
+        List<CSVParser> chunks;
+        try {
+            chunks = csvsource.splitRemainingRows(PARALLEL_CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new SQLException("Could not split the CSV source.", e);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        LinkedList<ForkJoinTask<List<String[]>>> inflight =
+                new LinkedList<ForkJoinTask<List<String[]>>>();
+        int nextchunk = 0;
+
+        try {
+            while (nextchunk < chunks.size() && inflight.size() <= parallelism)
+                inflight.add(pool.submit(new ChunkParser(chunks.get(nextchunk++))));
+
+            while (!inflight.isEmpty()) {
+                List<String[]> rows = inflight.removeFirst().join();
+
+                if (nextchunk < chunks.size())
+                    inflight.add(pool.submit(new ChunkParser(chunks.get(nextchunk++))));
+
+                for (String[] row : rows)
+                    inserter.insert(row);
+            }
+        } catch (RuntimeException e) {
+            throw new SQLException("Could not parse the CSV source.", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Fills row batches from the active table of a source on its own thread
+     * for insertRowsPipelined().  Empty batches are taken from one queue,
+     * filled, and put on the other queue.  A batch with no rows is put on the
+     * queue of filled batches after the last row, or if reading fails.  Sources
+     * that do not support batches are read one row at a time.
+     */
+    private static class BatchProducer implements Runnable {
+        private final TabularDataReader source;
+        private final ArrayBlockingQueue<RowBatch> empty, filled;
+        private volatile boolean cancelled = false;
+        private volatile Throwable error = null;
+
+        BatchProducer(TabularDataReader source, ArrayBlockingQueue<RowBatch> empty,
+                ArrayBlockingQueue<RowBatch> filled) {
+            this.source = source;
+            this.empty = empty;
+            this.filled = filled;
+        }
+
+        @Override
+        public void run() {
+            RowBatch batch = null;
+
+            try {
+                do {
+                    batch = empty.take();
+                    if (cancelled)
+                        return;
+
+                    fill(batch);
+                    filled.put(batch);
+                } while (batch.size() > 0);
+            } catch (InterruptedException e) {
+                // The writer cancelled the conversion.
+            } catch (Throwable e) {
+                error = e;
+
+                // The queue of filled batches can hold every batch, so this
+                // never blocks.
+                batch.clear();
+                filled.offer(batch);
+            }
+        }
+
+        private void fill(RowBatch batch) {
+            if (source instanceof BatchTabularDataReader)
+                ((BatchTabularDataReader)source).readBatch(batch);
+            else {
+                batch.clear();
+                while (source.tableHasNextRow() && !batch.isFull())
+                    batch.setRow(batch.addRow(), source.tableGetNextRow());
+            }
+        }
+
+        /**
+         * Stops the producer thread, even if it is waiting for a batch.
+         */
+        void cancel(Thread thread) {
+            cancelled = true;
+            thread.interrupt();
+        }
+
+        Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A task that converts one table of a MultiTableReader for
+     * convertTablesConcurrently().  The task opens its own copy of the source,
+     * moves to its table, and converts the table with its own
+     * TabularDataConverter.
+     */
+    private static class TableConverter implements Callable<TabularDataConverter> {
+        private final TabularDataConverter converter;
+        private final MultiTableReader source;
+        private final int tableindex;
+        private final String tname;
+        private final AtomicBoolean cancelled;
+
+        TableConverter(TabularDataConverter converter, MultiTableReader source,
+                int tableindex, String tname, AtomicBoolean cancelled) {
+            this.converter = converter;
+            this.source = source;
+            this.tableindex = tableindex;
+            this.tname = tname;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public TabularDataConverter call() throws Exception {
+            if (cancelled.get())
+                throw new CancellationException("The conversion was cancelled.");
+
+            TabularDataReader reader = source.openCopy();
+            if (reader == null)
+                throw new IOException("Could not open the data source again.");
+
+            try {
+                for (int cnt = 0; cnt <= tableindex; cnt++)
+                    reader.moveToNextTable();
+
+                converter.setSource(new SingleTableReader(reader, cancelled));
+                converter.setTableName(tname);
+                converter.convert();
+            } catch (Exception e) {
+                // Stop the conversion of the other tables right away.
+                cancelled.set(true);
+                throw e;
+            } finally {
+                reader.closeFile();
+            }
+
+            return converter;
+        }
+    }
+
+    /**
+     * A task that parses all records in one chunk of a CSV file.
+     */
+    private static class ChunkParser implements Callable<List<String[]>> {
+        private final CSVParser parser;
+
+        ChunkParser(CSVParser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public List<String[]> call() throws IOException {
+            List<String[]> rows = new ArrayList<String[]>();
+
+            while (parser.hasNext())
+                rows.add(parser.next());
+
+            return rows;
+        }
     }
 }
@@ -0,0 +1,27 @@
+package reader.plugins;
+
+
+/**
+ * An optional extension of TabularDataReader for readers that can copy rows
+ * from the active table directly into a caller-owned RowBatch.  Reading rows
+ * in batches avoids creating a new array for every row, which matters when
+ * millions of rows are read.  Consumers of TabularDataReaders should check if
+ * a reader implements this interface and fall back to tableGetNextRow() if it
+ * does not.  The two ways of reading rows may be mixed: readBatch() continues
+ * from the row that tableGetNextRow() would have returned next, and vice
+ * versa.
+ */
+public interface BatchTabularDataReader extends TabularDataReader
+{
+    /**
+     * Reads rows from the active table into a batch.  The batch is cleared,
+     * and then rows are added to it until either the batch is full or the
+     * table has no more rows.  Each row is padded with blank Strings (or
+     * truncated) to the number of columns in the batch.
+     *
+     * @param batch The batch to fill.
+     * @return The number of rows that were read, which is 0 if there are no
+     * more rows in the active table.
+     */
+    public int readBatch(RowBatch batch);
+}
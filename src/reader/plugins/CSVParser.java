@@ -0,0 +1,455 @@
+package reader.plugins;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A fast, low-allocation parser for RFC 4180 CSV data.  Rather than pushing
+ * every character through a Reader, CSVParser scans the bytes of a region of
+ * a file directly from a memory-mapped FileChannel buffer.  The only objects
+ * allocated per record are the final field Strings (and the array that holds
+ * them); all intermediate work is done in a reusable byte buffer.  Text is
+ * decoded as UTF-8, and a UTF-8 byte order mark at the start of the file is
+ * ignored.
+ *
+ * The parser supports the following CSV features: 1) fields may be enclosed in
+ * double quotes; 2) double quotes inside of a double-quoted field must be
+ * escaped with a double quote; 3) quoted fields may span multiple lines; 4)
+ * records may be terminated by LF, CR, or CRLF; 5) space and tab characters are
+ * not trimmed from the beginning or end of fields.  Completely blank lines are
+ * ignored.  If a quoted field is followed by additional characters before the
+ * next delimiter, those characters are appended to the field value.
+ *
+ * If column dictionaries are provided (see setDictionaries()), the bytes of
+ * each field are first looked up in the field's dictionary, and a new String is
+ * only decoded for values that have not been seen before.
+ *
+ * Large files are mapped in windows of 64 MB, so files of any size
+ * can be parsed, as long as no single record is larger than the maximum size
+ * of a mapped buffer (2 GB).  Parsing a larger record, which usually means
+ * that a quote was never closed, fails with an IOException.  A CSVParser may also be restricted to a region
+ * of a file that starts and ends on record boundaries (see
+ * findRecordBoundaries()), which allows several parsers to work on one file
+ * at the same time.
+ */
+public class CSVParser
+{
+    // the default size of the memory-mapped window into the file
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    // the size of the buffer used when scanning for record boundaries
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    // states for the record boundary scanner
+    private static final int FIELD_START = 0, UNQUOTED = 1, QUOTED = 2,
+            QUOTE_IN_QUOTED = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the file and the region of the file that this parser reads
+    private final FileChannel channel;
+    private final long regionend;
+
+    // the size to use for new windows
+    private final int windowsize;
+
+    // the largest window that is mapped to fit a single record
+    private int maxwindowsize = Integer.MAX_VALUE;
+
+    // the currently mapped window and its location in the file
+    private MappedByteBuffer window;
+    private long winstart;
+    private int winlimit;
+
+    // the position of the next unread byte in the window
+    private int pos;
+
+    // reusable buffers for field bytes and parsed field values
+    private byte[] scratch;
+    private String[] fields;
+    private int fieldcnt;
+
+    // optional dictionaries for decoding the fields of each column
+    private ColumnDictionary[] dictionaries = null;
+
+    /**
+     * Creates a new CSVParser for the region of a file between the byte
+     * offsets start (inclusive) and end (exclusive).  The start offset must be
+     * either 0 or the beginning of a record.
+     *
+     * @param channel An open FileChannel for a CSV file.
+     * @param start The offset of the first byte to parse.
+     * @param end The offset just past the last byte to parse.
+     * @throws IOException
+     */
+    public CSVParser(FileChannel channel, long start, long end) throws IOException {
+        this(channel, start, end, WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a new CSVParser that uses a specific window size.  This is mainly
+     * useful for testing how records that cross window boundaries are handled.
+     *
+     * @param channel An open FileChannel for a CSV file.
+     * @param start The offset of the first byte to parse.
+     * @param end The offset just past the last byte to parse.
+     * @param windowsize The number of bytes to map at a time.
+     * @throws IOException
+     */
+    CSVParser(FileChannel channel, long start, long end, int windowsize) throws IOException {
+        this.channel = channel;
+        this.regionend = end;
+        this.windowsize = windowsize;
+
+        scratch = new byte[256];
+        fields = new String[16];
+
+        // Skip a UTF-8 byte order mark, if there is one.
+        if (start == 0 && end >= 3) {
+            ByteBuffer bom = ByteBuffer.allocate(3);
+            channel.read(bom, 0);
+            if ((bom.get(0) & 0xff) == 0xef && (bom.get(1) & 0xff) == 0xbb
+                    && (bom.get(2) & 0xff) == 0xbf)
+                start = 3;
+        }
+
+        map(start, windowsize);
+    }
+
+    /**
+     * Sets the dictionaries to use for decoding field values.  Fields whose
+     * index is beyond the end of the array are decoded normally.
+     *
+     * @param dictionaries One dictionary for each column, or null to decode
+     * all fields normally.
+     */
+    public void setDictionaries(ColumnDictionary[] dictionaries) {
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Sets the largest window that is mapped to fit a single record.  This is
+     * mainly useful for testing how records that are too large are handled.
+     *
+     * @param maxwindowsize The maximum number of bytes to map at a time.
+     */
+    void setMaxWindowSize(int maxwindowsize) {
+        this.maxwindowsize = maxwindowsize;
+    }
+
+    /**
+     * Maps a new window of the file, starting at the specified offset.
+     *
+     * @param start The file offset for the beginning of the window.
+     * @param size The requested size of the window.
+     * @throws IOException
+     */
+    private void map(long start, int size) throws IOException {
+        long len = Math.min((long)size, regionend - start);
+
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+        winstart = start;
+        winlimit = (int)len;
+        pos = 0;
+    }
+
+    /**
+     * Test if the current window reaches the end of the region.
+     */
+    private boolean windowAtEnd() {
+        return winstart + winlimit >= regionend;
+    }
+
+    /**
+     * Get the file offset of the next unread byte.
+     *
+     * @return The offset of the next byte that will be examined by the parser.
+     */
+    public long position() {
+        return winstart + pos;
+    }
+
+    /**
+     * Test if there is at least one more record in the region.  Any completely
+     * blank lines are skipped.
+     *
+     * @return True if another record is available; false otherwise.
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        while (true) {
+            while (pos < winlimit) {
+                byte b = window.get(pos);
+                if (b != '\n' && b != '\r')
+                    return true;
+                pos++;
+            }
+
+            if (windowAtEnd())
+                return false;
+
+            map(winstart + pos, windowsize);
+        }
+    }
+
+    /**
+     * Parse the next record and return its fields.
+     *
+     * @return The fields of the next record.
+     * @throws IOException
+     */
+    public String[] next() throws IOException {
+        int cnt = parseNext();
+
+        return Arrays.copyOf(fields, cnt);
+    }
+
+    /**
+     * Parse the next record, leaving its fields in the internal field buffer.
+     * Callers that want to avoid allocating a new array for each record can
+     * use this method together with getField().
+     *
+     * @return The number of fields in the record.
+     * @throws IOException
+     */
+    public int parseNext() throws IOException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        int mapsize = windowsize;
+
+        // If a record runs past the end of the current window, remap the
+        // window so that it starts at the beginning of the record and parse
+        // the record again.  If the record is larger than a whole window, the
+        // window size is doubled until the record fits or the window cannot
+        // grow any more.
+        while (!parseRecord()) {
+            if (pos == 0) {
+                if (mapsize >= maxwindowsize)
+                    throw new IOException("The record at byte " + winstart + " is larger than "
+                            + maxwindowsize + " bytes or has an unterminated quote.");
+
+                mapsize = (int)Math.min((long)mapsize * 2, maxwindowsize);
+            }
+
+            map(winstart + pos, mapsize);
+        }
+
+        return fieldcnt;
+    }
+
+    /**
+     * Get a field of the record that was most recently parsed by parseNext().
+     *
+     * @param index The index of the field.
+     * @return The field value.
+     */
+    public String getField(int index) {
+        if (index >= fieldcnt)
+            throw new IndexOutOfBoundsException();
+
+        return fields[index];
+    }
+
+    /**
+     * Attempts to parse one record from the current window, starting at pos.
+     * If the record is complete, pos is left at the beginning of the next line
+     * and true is returned.  If the end of the window was reached before the
+     * end of the record, pos is left unchanged and false is returned.
+     */
+    private boolean parseRecord() {
+        int p = pos;
+        int len;
+        byte b;
+        boolean atend = windowAtEnd();
+
+        fieldcnt = 0;
+
+        while (true) {
+            len = 0;
+
+            if (p < winlimit && window.get(p) == '"') {
+                // A quoted field.  Copy everything up to the closing quote,
+                // replacing escaped ("") quotes with single quotes.
+                p++;
+                while (true) {
+                    if (p >= winlimit) {
+                        if (atend)
+                            break;
+                        else
+                            return false;
+                    }
+
+                    b = window.get(p);
+                    if (b == '"') {
+                        if (p + 1 >= winlimit && !atend)
+                            return false;
+
+                        if (p + 1 < winlimit && window.get(p + 1) == '"') {
+                            len = append(len, b);
+                            p += 2;
+                        } else {
+                            p++;
+                            break;
+                        }
+                    } else {
+                        len = append(len, b);
+                        p++;
+                    }
+                }
+            }
+
+            // Copy the (rest of the) field up to the next delimiter.
+            while (p < winlimit) {
+                b = window.get(p);
+                if (b == ',' || b == '\n' || b == '\r')
+                    break;
+
+                len = append(len, b);
+                p++;
+            }
+
+            if (p >= winlimit && !atend)
+                return false;
+
+            if (dictionaries != null && fieldcnt < dictionaries.length)
+                addField(dictionaries[fieldcnt].decode(scratch, len, UTF8));
+            else
+                addField(new String(scratch, 0, len, UTF8));
+
+            if (p >= winlimit) {
+                // End of the data.
+                break;
+            }
+
+            b = window.get(p);
+            if (b == ',') {
+                p++;
+            } else {
+                // End of the line.
+                if (b == '\r') {
+                    if (p + 1 >= winlimit && !atend)
+                        return false;
+                    if (p + 1 < winlimit && window.get(p + 1) == '\n')
+                        p++;
+                }
+                p++;
+                break;
+            }
+        }
+
+        pos = p;
+
+        return true;
+    }
+
+    /**
+     * Appends a byte to the scratch buffer, growing it if necessary.
+     */
+    private int append(int len, byte b) {
+        if (len == scratch.length)
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+
+        scratch[len] = b;
+
+        return len + 1;
+    }
+
+    /**
+     * Adds a field to the field buffer, growing it if necessary.
+     */
+    private void addField(String field) {
+        if (fieldcnt == fields.length)
+            fields = Arrays.copyOf(fields, fields.length * 2);
+
+        fields[fieldcnt++] = field;
+    }
+
+    /**
+     * Splits a region of a CSV file into chunks that all begin and end on
+     * record boundaries, so that each chunk can be handed to its own
+     * CSVParser.  The region is scanned once with a small state machine that
+     * follows the same quoting rules as the parser, so line breaks inside of
+     * quoted fields are never mistaken for the end of a record.  Scanning is
+     * much cheaper than parsing, since nothing is decoded or allocated.
+     *
+     * @param channel An open FileChannel for a CSV file.
+     * @param start The offset of the beginning of a record.
+     * @param end The offset just past the end of the region.
+     * @param chunksize The approximate number of bytes in each chunk.
+     * @return The chunk boundaries, starting with start and ending with end.
+     * @throws IOException
+     */
+    public static long[] findRecordBoundaries(FileChannel channel, long start,
+            long end, long chunksize) throws IOException {
+        List<Long> bounds = new ArrayList<Long>();
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] bytes = buf.array();
+        long offset = start;
+        long target = start + chunksize;
+        int state = FIELD_START;
+        int cnt, len;
+        byte b;
+
+        bounds.add(start);
+
+        while (offset < end) {
+            buf.clear();
+            buf.limit((int)Math.min((long)buf.capacity(), end - offset));
+            len = channel.read(buf, offset);
+            if (len <= 0)
+                break;
+
+            for (cnt = 0; cnt < len; cnt++) {
+                b = bytes[cnt];
+
+                if (state == QUOTED) {
+                    if (b == '"')
+                        state = QUOTE_IN_QUOTED;
+                    continue;
+                }
+                if (state == QUOTE_IN_QUOTED && b == '"') {
+                    // an escaped quote
+                    state = QUOTED;
+                    continue;
+                }
+                if (state == FIELD_START && b == '"') {
+                    state = QUOTED;
+                    continue;
+                }
+
+                if (b == ',') {
+                    state = FIELD_START;
+                } else if (b == '\n' || b == '\r') {
+                    // The end of a record (or a blank line).
+                    state = FIELD_START;
+                    if (offset + cnt + 1 >= target && offset + cnt + 1 < end) {
+                        bounds.add(offset + cnt + 1);
+                        target = offset + cnt + 1 + chunksize;
+                    }
+                } else {
+                    state = UNQUOTED;
+                }
+            }
+
+            offset += len;
+        }
+
+        bounds.add(end);
+
+        long[] ret = new long[bounds.size()];
+        for (cnt = 0; cnt < ret.length; cnt++)
+            ret[cnt] = bounds.get(cnt);
+
+        return ret;
+    }
+}
@@ -2,45 +2,37 @@ package reader.plugins;
 
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.util.LinkedList;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 
 /**
  * Provides the ability to parse CSV formatted files.  This implementation is
- * mostly compliant with the RFC 4180 CSV specification.  In particular, 1) each
- * record is expected to be on a single line; 2) fields may be enclosed in
- * double quotes; 3) double quotes inside of a double-quoted string should be
- * escaped with a double quote; 4) space and tab characters are not trimmed from
- * the beginning or end of fields.
+ * compliant with the RFC 4180 CSV specification.  In particular, 1) fields may
+ * be enclosed in double quotes; 2) double quotes inside of a double-quoted
+ * string should be escaped with a double quote; 3) quoted fields may contain
+ * commas and line breaks, so a record may span multiple lines; 4) space and tab
+ * characters are not trimmed from the beginning or end of fields.  Blank lines
+ * are ignored.
  * 
- * This implementation has some additional features and/or limitations that
- * might not be supported by other CSV libraries.  First, if a field is
- * double-quoted, there should be no additional characters outside of the double
- * quotes.  Second, records must not span multiple lines.  Third, standard
- * escape sequences (e.g., "\"\t") are also supported inside of quoted fields.
- * Fourth, blank lines are ignored.
- * 
- * Finally, note that this class expects text to consist of simple ASCII
- * (1 byte) characters, and that characters 0-8 and 10-31 are all treated as
- * empty whitespace and ignored (unless they occur within a quoted string).
+ * The file is read through a memory-mapped buffer by a CSVParser, which scans
+ * the raw bytes directly and only allocates the final field strings.  Text is
+ * expected to be encoded as UTF-8 (which includes plain ASCII).  Rows can
+ * also be read in batches (see readBatch()), in which case the parsed fields
+ * are copied straight from the parser's field buffer into the batch.
  */
-public class CSVReader implements TabularDataReader
+public class CSVReader implements BatchTabularDataReader
 {
-    private StreamTokenizer st;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private CSVParser parser;
     private boolean hasnext = false;
-    private LinkedList<String> reclist;
     private int currtable;
     
-    public CSVReader()
-    {
-        reclist = new LinkedList<String>();
-    }
-    
     @Override
     public String getFormatString() {
         return "CSV";
@@ -93,46 +85,33 @@ public class CSVReader implements TabularDataReader
     @Override
     public boolean openFile(String filepath) {
         try {
-            st = new StreamTokenizer(new FileReader(filepath));
+            file = new RandomAccessFile(filepath, "r");
+            channel = file.getChannel();
+            parser = new CSVParser(channel, 0, channel.size());
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
+            closeFile();
             return false;
         }
         
         currtable = -1;
         
-        st.resetSyntax();
-        st.eolIsSignificant(true);
-        st.whitespaceChars(0, 31);
-        st.wordChars(' ', 255);
-        st.wordChars('\t', '\t');
-        st.quoteChar('"');
-        st.ordinaryChar(',');
-        
         testNext();
         
         return true;
     }
 
     /**
-     * Internal method to see if there is another line with data remaining in
-     * the file.  Any completely blank lines will be skipped.  At exit, st.ttype
-     * will be the first token of the next record in the file.
+     * Internal method to see if there is another record with data remaining
+     * in the file.  Any completely blank lines will be skipped.
      */
     private void testNext() {
-        int tokentype = StreamTokenizer.TT_EOF;
-        
-        do {
-            try { tokentype = st.nextToken(); }
-            catch (IOException e) {}
-        } while (
-                tokentype == StreamTokenizer.TT_EOL
-                );
-        
-        if (tokentype != StreamTokenizer.TT_EOF)
-            hasnext = true;
-        else
+        try {
+            hasnext = parser.hasNext();
+        }
+        catch (IOException e) {
             hasnext = false;
+        }
     }
 
     @Override
@@ -166,53 +145,117 @@ public class CSVReader implements TabularDataReader
         if (!tableHasNextRow())
             throw new NoSuchElementException();
         
-        int prevToken = ',';
-        int fieldcnt = 0;
-        reclist.clear();
+        String[] ret;
+        try {
+            ret = parser.next();
+        }
+        catch (IOException e) {
+            ret = new String[0];
+        }
+        
+        testNext();
         
+        return ret;
+    }
+
+    @Override
+    public int readBatch(RowBatch batch) {
+        int numcols = batch.getColumnCount();
+        int fieldcnt, col, row;
+
+        batch.clear();
+
+        // If the batch has column dictionaries, let the parser use them so
+        // that repeated values are not decoded again.
+        ColumnDictionary[] dictionaries = batch.getDictionaries();
+        if (dictionaries != null)
+            parser.setDictionaries(dictionaries);
+
         try {
-        while (st.ttype != StreamTokenizer.TT_EOL &&
-                st.ttype != StreamTokenizer.TT_EOF) {
-            if (st.ttype == ',') {
-                // See if we just passed an empty field.
-                if (prevToken == ',') {
-                    reclist.add("");
-                    fieldcnt++;
+            while (tableHasNextRow() && !batch.isFull()) {
+                try {
+                    fieldcnt = parser.parseNext();
                 }
-            }
-            else {
-                // See if we just passed an escaped double quote inside
-                // of a quoted string.
-                if (prevToken != ',')
-                    reclist.add(reclist.removeLast() + "\"" + st.sval);
-                else {
-                    reclist.add(st.sval);
-                    fieldcnt++;
+                catch (IOException e) {
+                    fieldcnt = 0;
+                }
+
+                row = batch.addRow();
+                for (col = 0; col < numcols; col++) {
+                    if (col >= fieldcnt)
+                        batch.set(row, col, "");
+                    else if (dictionaries != null)
+                        batch.setDecoded(row, col, parser.getField(col));
+                    else
+                        batch.set(row, col, parser.getField(col));
                 }
+
+                testNext();
             }
-            
-            prevToken = st.ttype;
-            st.nextToken();
         }
+        finally {
+            if (parser != null)
+                parser.setDictionaries(null);
         }
-        catch (IOException e) {}
+
+        return batch.size();
+    }
+
+    /**
+     * Get the number of bytes in the active table that have not been read yet.
+     *
+     * @return The number of unread bytes.
+     */
+    public long getRemainingBytes() {
+        if (!tableHasNextRow())
+            return 0;
         
-        // Test for the special case of a blank last field.
-        if (prevToken == ',') {
-            reclist.add("");
-            fieldcnt++;
+        try {
+            return channel.size() - parser.position();
+        }
+        catch (IOException e) {
+            return 0;
         }
+    }
+
+    /**
+     * Splits all of the rows remaining in the active table into chunks of
+     * approximately chunksize bytes and returns a separate CSVParser for each
+     * chunk.  The chunks are returned in file order and can be parsed
+     * concurrently.  After calling this method, the reader considers the
+     * active table to be completely read.
+     *
+     * @param chunksize The approximate size of each chunk, in bytes.
+     * @return A list of parsers, one for each chunk.
+     * @throws IOException
+     */
+    public List<CSVParser> splitRemainingRows(long chunksize) throws IOException {
+        List<CSVParser> parsers = new ArrayList<CSVParser>();
         
-        testNext();
+        if (tableHasNextRow()) {
+            long[] bounds = CSVParser.findRecordBoundaries(channel,
+                    parser.position(), channel.size(), chunksize);
+            
+            for (int cnt = 0; cnt < bounds.length - 1; cnt++)
+                parsers.add(new CSVParser(channel, bounds[cnt], bounds[cnt + 1]));
+        }
         
-        String[] ret = new String[fieldcnt];
-        for (int cnt = 0; cnt < fieldcnt; cnt++)
-            ret[cnt] = reclist.remove();
+        hasnext = false;
         
-        return ret;
+        return parsers;
     }
 
     @Override
     public void closeFile() {
+        try {
+            if (file != null)
+                file.close();
+        }
+        catch (IOException e) {}
+        
+        file = null;
+        channel = null;
+        parser = null;
+        hasnext = false;
     }
 }
@@ -0,0 +1,255 @@
+package reader.plugins;
+
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * A bounded dictionary of the distinct values in one column of a table.  Many
+ * columns of biodiversity data (e.g., country, institutionCode, basisOfRecord)
+ * contain only a small number of distinct values that are repeated over and
+ * over, so mapping each value to a single shared String instance saves both
+ * memory and, when the dictionary is consulted before a value is decoded (see
+ * decode()), the cost of creating a new String for every cell.  Because the
+ * values are shared, consumers can also check if a value is unchanged from
+ * the previous row with a simple identity comparison.
+ *
+ * A column with many distinct values gains nothing from a dictionary, so once
+ * the dictionary would exceed its maximum size, it is dropped and all further
+ * values are passed through unchanged.  The dictionary keeps track of how many
+ * values were looked up and how many were found, so its effectiveness can be
+ * reported.
+ */
+public class ColumnDictionary
+{
+    // the approximate number of bytes used by a String object and its char
+    // array, not counting the characters themselves
+    private static final int STRING_OVERHEAD = 56;
+
+    private final int maxsize;
+
+    // the dictionary of values, and an index of the same values by their
+    // encoded bytes for use by decode()
+    private HashMap<String, String> values;
+    private HashMap<ByteKey, String> encoded;
+
+    // a reusable key for looking up encoded values without copying them
+    private final ByteKey probe;
+
+    private boolean active;
+    private long lookups, hits, savedbytes;
+
+    /**
+     * Creates a new, empty ColumnDictionary.
+     *
+     * @param maxsize The maximum number of distinct values to keep.  If the
+     * column turns out to have more distinct values than this, the dictionary
+     * is abandoned.
+     */
+    public ColumnDictionary(int maxsize) {
+        this.maxsize = maxsize;
+        values = new HashMap<String, String>();
+        encoded = new HashMap<ByteKey, String>();
+        probe = new ByteKey();
+        active = true;
+    }
+
+    /**
+     * Gets the shared instance of a value.  If the value is not already in the
+     * dictionary, it is added.
+     *
+     * @param value A cell value.
+     * @return The dictionary's instance of the value, or the value itself if it
+     * is not in the dictionary.
+     */
+    public String intern(String value) {
+        if (value == null)
+            return null;
+
+        lookups++;
+        if (!active)
+            return value;
+
+        String existing = values.get(value);
+        if (existing != null) {
+            recordHit(existing);
+            return existing;
+        }
+
+        add(value, null);
+
+        return value;
+    }
+
+    /**
+     * Gets the shared instance of a value from its encoded bytes, decoding the
+     * bytes only if the value is not already in the dictionary.
+     *
+     * @param bytes A buffer that contains the encoded value.
+     * @param len The number of bytes of the value, starting at index 0.
+     * @param charset The character set of the encoded value.
+     * @return The decoded value.
+     */
+    public String decode(byte[] bytes, int len, Charset charset) {
+        lookups++;
+        if (!active)
+            return new String(bytes, 0, len, charset);
+
+        probe.set(bytes, len);
+        String existing = encoded.get(probe);
+        if (existing != null) {
+            recordHit(existing);
+            return existing;
+        }
+
+        String value = new String(bytes, 0, len, charset);
+
+        // A different encoding of an equal value (which should not normally
+        // happen) is stored under its own bytes but shares the String.
+        String shared = values.get(value);
+        if (shared != null)
+            value = shared;
+
+        add(value, new ByteKey(Arrays.copyOf(bytes, len)));
+
+        return value;
+    }
+
+    private void recordHit(String value) {
+        hits++;
+        savedbytes += STRING_OVERHEAD + 2 * value.length();
+    }
+
+    /**
+     * Adds a new value (and optionally its encoded bytes) to the dictionary,
+     * or abandons the dictionary if it is full.
+     */
+    private void add(String value, ByteKey key) {
+        if (values.size() >= maxsize && !values.containsKey(value)) {
+            active = false;
+            values = null;
+            encoded = null;
+            return;
+        }
+
+        values.put(value, value);
+        if (key != null)
+            encoded.put(key, value);
+    }
+
+    /**
+     * Test if the dictionary is still in use, i.e., if the column has not had
+     * too many distinct values.
+     *
+     * @return True if values are still being interned.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Get the number of distinct values in the dictionary.
+     *
+     * @return The dictionary size, or 0 if the dictionary was abandoned.
+     */
+    public int size() {
+        return active ? values.size() : 0;
+    }
+
+    /**
+     * Get the number of values that have been looked up.
+     *
+     * @return The number of lookups.
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Get the number of lookups that found an existing value.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the fraction of lookups that found an existing value.
+     *
+     * @return The hit rate, from 0 to 1.
+     */
+    public double getHitRate() {
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    /**
+     * Get an estimate of the number of bytes of String objects that did not
+     * have to be created because a shared value was used instead.
+     *
+     * @return The approximate number of bytes saved.
+     */
+    public long getSavedBytes() {
+        return savedbytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d lookups, %.1f%% hits, %s, ~%d KB saved", lookups,
+                getHitRate() * 100, active ? size() + " distinct values" : "abandoned",
+                savedbytes / 1024);
+    }
+
+
+    /**
+     * A hash key for a sequence of bytes.  The probe key wraps a caller's
+     * buffer without copying it; stored keys own a copy of their bytes.
+     */
+    private static class ByteKey
+    {
+        private byte[] bytes;
+        private int len;
+        private int hash;
+
+        ByteKey() {
+        }
+
+        ByteKey(byte[] bytes) {
+            set(bytes, bytes.length);
+        }
+
+        final void set(byte[] bytes, int len) {
+            this.bytes = bytes;
+            this.len = len;
+
+            int h = 1;
+            for (int cnt = 0; cnt < len; cnt++)
+                h = 31 * h + bytes[cnt];
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ByteKey))
+                return false;
+
+            ByteKey other = (ByteKey)obj;
+            if (other.len != len || other.hash != hash)
+                return false;
+
+            for (int cnt = 0; cnt < len; cnt++) {
+                if (bytes[cnt] != other.bytes[cnt])
+                    return false;
+            }
+
+            return true;
+        }
+    }
+}
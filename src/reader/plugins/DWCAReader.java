@@ -12,6 +12,7 @@ import org.gbif.dwc.text.Archive;
 import org.gbif.dwc.text.ArchiveFactory;
 import org.gbif.dwc.text.ArchiveField;
 import org.gbif.dwc.text.ArchiveFile;
+import org.gbif.utils.file.ClosableIterator;
 
 
 /**
@@ -26,8 +27,17 @@ import org.gbif.dwc.text.ArchiveFile;
  * this also fails, then "ID" is used as the column name.  "CORE_ID" is used for
  * the <corid> column of any "extension" tables.  ID fields will always be
  * returned as the first column in their table.
+ *
+ * Zipped archives that include meta.xml are read directly from the zip file
+ * (see ZippedDwCArchive) rather than being decompressed to a temporary
+ * directory first.  Other zipped archives are still decompressed.
+ *
+ * The core and extension tables of an archive are separate files, so they can
+ * be read concurrently by separate readers (see openCopy()).
  */
-public class DWCAReader implements TabularDataReader {
+public class DWCAReader implements BatchTabularDataReader, MultiTableReader {
+    // the path of the open archive
+    private String filepath = null;
     // iterator for records within a table (ArchiveFile)
     private Iterator<Record> rec_iter;
     // iterator for extension tables in an archive
@@ -36,6 +46,8 @@ public class DWCAReader implements TabularDataReader {
     private List<ArchiveField> fields;
     // the entire archive
     private Archive dwcarchive;
+    // the zip file of a zipped archive that is read without decompressing it
+    private ZippedDwCArchive zippedarchive = null;
     // the currently active table
     private ArchiveFile currfile;
     // temporary directory for uncompressing archive files
@@ -124,6 +136,40 @@ public class DWCAReader implements TabularDataReader {
         //System.out.println(tmpdir.getAbsolutePath());
     }
     
+    /**
+     * Opens a zipped archive without decompressing it, if the archive includes
+     * meta.xml.  If so, zippedarchive and dwcarchive are set.
+     * 
+     * @param archive The zipped DwC archive.
+     * 
+     * @return True if the archive was opened, false if it does not include
+     * meta.xml.
+     */
+    private boolean openZippedArchive(File archive) throws IOException {
+        zippedarchive = new ZippedDwCArchive(archive);
+        
+        try {
+            dwcarchive = zippedarchive.getArchive();
+        } catch (IOException e) {
+            closeZippedArchive();
+            throw e;
+        } catch (RuntimeException e) {
+            closeZippedArchive();
+            throw e;
+        }
+        
+        if (dwcarchive == null)
+            closeZippedArchive();
+        
+        return dwcarchive != null;
+    }
+    
+    private void closeZippedArchive() {
+        if (zippedarchive != null)
+            zippedarchive.close();
+        zippedarchive = null;
+    }
+    
     @Override
     public boolean testFile(String filepath) {
         File archive = new File(filepath);
@@ -137,8 +183,12 @@ public class DWCAReader implements TabularDataReader {
         
         try {
             if (isZippedArchive(filepath)) {
-                setTempDir();
-                ArchiveFactory.openArchive(archive, tmpdir);
+                // If the archive includes meta.xml, only meta.xml needs to
+                // be examined.
+                if (!openZippedArchive(archive)) {
+                    setTempDir();
+                    ArchiveFactory.openArchive(archive, tmpdir);
+                }
             }
             else
                 ArchiveFactory.openArchive(archive);
@@ -158,8 +208,10 @@ public class DWCAReader implements TabularDataReader {
         
         try {
             if (isZippedArchive(filepath)) {
-                setTempDir();
-                dwcarchive = ArchiveFactory.openArchive(archive, tmpdir);
+                if (!openZippedArchive(archive)) {
+                    setTempDir();
+                    dwcarchive = ArchiveFactory.openArchive(archive, tmpdir);
+                }
             }
             else
                 dwcarchive = ArchiveFactory.openArchive(archive);
@@ -173,9 +225,28 @@ public class DWCAReader implements TabularDataReader {
             return false;
         }
         
+        this.filepath = filepath;
+
         return true;
     }
 
+    /**
+     * Opens a new DWCAReader for the same archive.  Each reader opens the
+     * archive on its own, so the readers can read different tables of the
+     * archive at the same time.
+     *
+     * @return A new reader for the archive, or null if it could not be opened.
+     */
+    @Override
+    public TabularDataReader openCopy() {
+        DWCAReader copy = new DWCAReader();
+
+        if (filepath != null && copy.openFile(filepath))
+            return copy;
+        else
+            return null;
+    }
+
     @Override
     public boolean hasNextTable() {
         // If there are tables left to process, then either the core table has
@@ -195,7 +266,16 @@ public class DWCAReader implements TabularDataReader {
                 currfile = ext_iter.next();
             
             fields = currfile.getFieldsSorted();
-            rec_iter = currfile.iterator();
+            closeRecordIterator();
+            if (zippedarchive != null) {
+                try {
+                    rec_iter = zippedarchive.iterator(currfile);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            else
+                rec_iter = currfile.iterator();
             has_id = currfile.getId() != null && tablecnt == 0;
             id_index = -1;
             id_has_field = false;
@@ -322,6 +402,46 @@ public class DWCAReader implements TabularDataReader {
         return row;
     }
 
+    @Override
+    public int readBatch(RowBatch batch) {
+        int numcols = batch.getColumnCount();
+        int row, col;
+        String value;
+
+        batch.clear();
+
+        while (tableHasNextRow() && !batch.isFull()) {
+            if (reccnt == 0) {
+                // the generated header row
+                batch.setRow(batch.addRow(), tableGetNextRow());
+                continue;
+            }
+
+            // Copy the record's values directly into the batch, in the same
+            // order as tableGetNextRow().
+            Record rec = rec_iter.next();
+            row = batch.addRow();
+            col = 0;
+
+            if (has_id && col < numcols)
+                batch.set(row, col++, rec.id());
+
+            for (ArchiveField field : fields) {
+                if (id_index != field.getIndex() && col < numcols) {
+                    value = rec.value(field.getTerm());
+                    batch.set(row, col++, value == null ? "" : value);
+                }
+            }
+
+            while (col < numcols)
+                batch.set(row, col++, "");
+
+            reccnt++;
+        }
+
+        return batch.size();
+    }
+
     /**
      * Deletes a directory and all of its contents.  This method assumes that
      * the directory only contains files, not nested directories.
@@ -341,9 +461,23 @@ public class DWCAReader implements TabularDataReader {
         }
     }
     
+    /**
+     * Closes the record iterator of the active table, if it is closable.
+     */
+    private void closeRecordIterator() {
+        if (rec_iter instanceof ClosableIterator)
+            ((ClosableIterator)rec_iter).close();
+        rec_iter = null;
+    }
+    
     @Override
     public void closeFile() {
+        closeRecordIterator();
+        closeZippedArchive();
+        
         // If a temporary directory was used to uncompress a DwCA, delete it.
         removeDir(tmpdir);
+        
+        filepath = null;
     }
 }
@@ -4,53 +4,45 @@ package reader.plugins;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-//import java.io.IOException;
-import java.util.Iterator;
-//import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import java.io.IOException;
 import java.util.NoSuchElementException;
-import org.apache.poi.hssf.usermodel.HSSFDateUtil;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.joda.time.DateTime;
 
 
 
 /**
  * TabularDataReader for Excel-format spreadsheet files.  Both Excel 97-2003
- * format (*.xls) and Excel XML (*.xlsx) format files are supported.  The reader
- * attempts to infer if cells containing numerical values actually contain dates
- * by checking if the cell is date-formatted.  It so, the numerical value is
- * converted to a standard ISO8601 date/time string (yyyy-MM-ddTHH:mm:ss.SSSZZ).
- * This should work properly with both the Excel "1900 Date System" and the
- * "1904 Date System".  Also, the first row in each worksheet is assumed to
- * contain the column headers for the data and determines how many columns are
- * examined for all subsequent rows.
+ * format (*.xls) and Excel XML (*.xlsx) format files are supported.  Neither
+ * type of workbook is loaded into memory: Excel XML files are streamed one row
+ * at a time with an XLSXStreamReader, and Excel 97-2003 files are streamed one
+ * BIFF record at a time with an XLSStreamReader, so files of either format can
+ * be arbitrarily large.  The reader attempts to infer if cells containing
+ * numerical values actually contain dates by checking if the cell is
+ * date-formatted.  It so, the numerical value is converted to a standard
+ * ISO8601 date/time string (yyyy-MM-ddTHH:mm:ss.SSSZZ).  This should work
+ * properly with both the Excel "1900 Date System" and the "1904 Date System".
+ * For cells with formulas, the formula result that was saved in the file is
+ * used.  Also, the first row in each worksheet is assumed to contain the column
+ * headers for the data and determines how many columns are examined for all
+ * subsequent rows.  When rows are read in batches (see readBatch()), the cells
+ * from the streaming readers are copied directly into the batch without first
+ * being padded into a new array.  ExcelReader is not a MultiTableReader:
+ * moving past a worksheet of an .xls file means decoding all of its records,
+ * and every reader of an .xlsx file needs its own copy of the shared strings,
+ * so reading the worksheets with separate readers would cost more than
+ * reading them one after the other.
  */
-public class ExcelReader implements TabularDataReader
+public class ExcelReader implements BatchTabularDataReader
 {
-    // iterator for moving through the active worksheet
-    private Iterator<Row> rowiter = null;
     private boolean hasnext = false;
     
-    Row nextrow;
-    
     // The number of columns in the active worksheet (set by the first row).
     private int numcols;
     
-    // The index for the active worksheet.
-    private int currsheet;
-    
-    // The entire workbook (e.g., spreadsheet file).
-    private Workbook excelwb;
-    
-    // DataFormatter and FormulaEvaluator for dealing with cells with formulas.
-    private DataFormatter df;
-    private FormulaEvaluator fe;
+    // The streaming reader for the workbook, the next row of the active sheet,
+    // and the name of the active sheet.
+    private SpreadsheetStreamReader wbreader;
+    private String[] nextcells;
+    private String sheetname;
     
     @Override
     public String getShortFormatDesc() {
@@ -114,35 +106,52 @@ public class ExcelReader implements TabularDataReader
         }
         
         try {
-            excelwb = WorkbookFactory.create(is);
+            // Excel XML files are zip archives, so check for the zip "magic
+            // number" to decide which streaming reader to use.
+            boolean iszip = isZipFile(is);
+            is.close();
             
-            currsheet = 0;
+            if (iszip)
+                wbreader = new XLSXStreamReader(filepath);
+            else
+                wbreader = new XLSStreamReader(filepath);
         }
         catch (Exception e) {
             return false;
         }
         
-        // Create a new DataFormatter and FormulaEvaluator to use for cells with
-        // formulas.
-        df = new DataFormatter();
-        fe = excelwb.getCreationHelper().createFormulaEvaluator();
-        
         return true;
     }
 
+    /**
+     * Checks if an input stream starts with the signature of a zip archive.
+     */
+    private boolean isZipFile(FileInputStream is) throws IOException {
+        byte[] sig = new byte[4];
+        
+        if (is.read(sig) < 4)
+            return false;
+        
+        return sig[0] == 'P' && sig[1] == 'K' && sig[2] == 3 && sig[3] == 4;
+    }
+
     @Override
     public boolean hasNextTable() {
-        if (excelwb == null)
+        if (wbreader == null)
             return false;
         else
-            return (currsheet < excelwb.getNumberOfSheets());
+            return wbreader.hasNextSheet();
     }
     
     @Override
     public void moveToNextTable() {
         if (hasNextTable()) {
-            Sheet exsheet = excelwb.getSheetAt(currsheet++);
-            rowiter = exsheet.rowIterator();
+            try {
+                sheetname = wbreader.nextSheet();
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
             numcols = -1;
             testNext();
         }
@@ -152,31 +161,31 @@ public class ExcelReader implements TabularDataReader
 
     @Override
     public String getCurrentTableName() {
-        return excelwb.getSheetName(currsheet - 1);
+        return sheetname;
     }
 
     @Override
     public boolean tableHasNextRow() {
-        if (rowiter == null)
+        if (sheetname == null)
             return false;
         else
             return hasnext;
     }
 
     /**
-     * Internal method to see if there is another line with data remaining in
-     * the current table.  Any completely blank lines will be skipped.  This
-     * method is necessary because the POI row iterator does not always reliably
-     * end with the last data-containing row.
+     * Internal method to see if there is another row with data remaining in
+     * the current table.  The streaming readers only return rows that contain
+     * at least one cell, so any completely blank rows are skipped.
      */
     private void testNext() {
-        int lastcellnum = 0;
-        while (rowiter.hasNext() && lastcellnum < 1) {
-            nextrow = rowiter.next();
-            lastcellnum = nextrow.getLastCellNum();
+        try {
+            nextcells = wbreader.nextRow();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
         }
 
-        hasnext = lastcellnum > 0;
+        hasnext = nextcells != null;
     }
     
     @Override
@@ -184,56 +193,18 @@ public class ExcelReader implements TabularDataReader
         if (!tableHasNextRow())
             throw new NoSuchElementException();
         
-        Row row = nextrow;
-        Cell cell;
-
+        String[] cells = nextcells;
+        
         // If this is the first row in the sheet, use it to determine how many
         // columns this sheet has.  This is necessary to make sure that all rows
-        // have the same number of cells for SQLite.
+        // have the same number of cells for SQLite.  Rows are padded with blank
+        // cells (or truncated) to this number of columns.
         if (numcols < 0)
-            numcols = row.getLastCellNum();
+            numcols = cells.length;
         
         String[] ret = new String[numcols];
-        
-        // Unfortunately, we can't use a cell iterator here because, as
-        // currently implemented in POI, iterating over cells in a row will
-        // silently skip blank cells.
-        for (int cnt = 0; cnt < numcols; cnt++) {
-            cell = row.getCell(cnt, Row.CREATE_NULL_AS_BLANK);
-            
-            // inspect the data type of this cell and act accordingly
-            switch (cell.getCellType()) {
-                case Cell.CELL_TYPE_STRING:
-                    ret[cnt] = cell.getStringCellValue();
-                    break;
-                case Cell.CELL_TYPE_NUMERIC:
-                    // There is no date data type in Excel, so we have to check
-                    // if this cell contains a date-formatted value.
-                    if (HSSFDateUtil.isCellDateFormatted(cell)) {
-                        // Convert the value to a Java date object, then to
-                        // ISO 8601 format using Joda-Time.
-                        DateTime date;
-                        date = new DateTime(cell.getDateCellValue());
-                        ret[cnt] = date.toString();
-                    }
-                    else
-                        ret[cnt] = Double.toString(cell.getNumericCellValue());
-                    break;
-                case Cell.CELL_TYPE_BOOLEAN:
-                    if (cell.getBooleanCellValue())
-                        ret[cnt] = "true";
-                    else
-                        ret[cnt] = "false";
-                    break;
-                case Cell.CELL_TYPE_FORMULA:
-                    // Use the FormulaEvaluator to determine the result of the
-                    // cell's formula, then convert the result to a String.
-                    ret[cnt] = df.formatCellValue(cell, fe);
-                    break;
-                default:
-                    ret[cnt] = "";
-            }
-        }
+        for (int cnt = 0; cnt < numcols; cnt++)
+            ret[cnt] = (cnt < cells.length) ? cells[cnt] : "";
         
         // Determine if another row is available after this one.
         testNext();
@@ -241,7 +212,27 @@ public class ExcelReader implements TabularDataReader
         return ret;
     }
 
+    @Override
+    public int readBatch(RowBatch batch) {
+        batch.clear();
+
+        while (tableHasNextRow() && !batch.isFull()) {
+            if (numcols < 0)
+                numcols = nextcells.length;
+
+            batch.setRow(batch.addRow(), nextcells);
+            testNext();
+        }
+
+        return batch.size();
+    }
+
     @Override
     public void closeFile() {
+        if (wbreader != null)
+            wbreader.close();
+        wbreader = null;
+        sheetname = null;
+        hasnext = false;
     }    
 }
@@ -0,0 +1,26 @@
+package reader.plugins;
+
+
+/**
+ * An optional extension of TabularDataReader for readers of data sources with
+ * several tables (e.g., Darwin Core archives) whose tables
+ * can be read independently of each other.  Such a reader can open additional,
+ * independent readers for the same data source, so that several tables can be
+ * read at the same time by different threads.  Readers should only implement
+ * this interface if moving past a table is much cheaper than reading it, since
+ * each additional reader must move past all of the tables before the one it
+ * reads.
+ */
+public interface MultiTableReader extends TabularDataReader
+{
+    /**
+     * Opens a new reader for the same data source as this reader.  The new
+     * reader is positioned at the start of the data source, shares no state
+     * with this reader, and can be used by a different thread than this
+     * reader.  The caller is responsible for closing the new reader.
+     *
+     * @return A new reader for the data source, or null if the data source
+     * could not be opened again.
+     */
+    public TabularDataReader openCopy();
+}
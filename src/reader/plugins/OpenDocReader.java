@@ -2,14 +2,20 @@ package reader.plugins;
 
 
 import java.io.File;
-import java.io.IOException;
-import java.util.GregorianCalendar;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.joda.time.DateTime;
 import org.jopendocument.dom.ODValueType;
-import org.jopendocument.dom.spreadsheet.Cell;
-import org.jopendocument.dom.spreadsheet.Sheet;
-import org.jopendocument.dom.spreadsheet.SpreadSheet;
 
 
 /**
@@ -21,31 +27,63 @@ import org.jopendocument.dom.spreadsheet.SpreadSheet;
  * string (HH:mm:ss.SSSZZ).  Also, the first row in each worksheet is assumed to
  * contain the column headers for the data and determines how many columns are
  * examined for all subsequent rows.
+ *
+ * The document is not loaded into memory.  Instead, content.xml is streamed
+ * directly out of the document's zip archive with a StAX pull parser, one row
+ * at a time.  Repeated rows and columns (table:number-rows-repeated and
+ * table:number-columns-repeated) are not expanded in memory: a repeated data
+ * row is simply returned the indicated number of times, repeated blank rows
+ * are skipped all at once, and repeated cells are only expanded up to the
+ * number of columns in the sheet.  Because the sheets are read in document
+ * order, calling hasNextTable() skips any unread rows of the active sheet.
+ * When rows are read in batches (see readBatch()), a single row array is
+ * reused for every row that is copied into the batch.
  */
-public class OpenDocReader implements TabularDataReader
+public class OpenDocReader implements BatchTabularDataReader
 {
-    // the entire spreadsheet file
-    private SpreadSheet sprdsheet;
-    
-    // the active worksheet
-    private Sheet odsheet;
-    
-    // the index of the active worksheet
-    private int currsheet;
-    
-    // Used for tracking the dimensions of the active sheet as well as the
-    // current row in the active sheet.  The number of columns in the active
-    // worksheet is determined by the first row.
-    private int numrows, curr_row, numcols;
-    
-    private boolean hasnext = false;
+    private static final String TABLE_NS = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
+    private static final String TEXT_NS = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+    private static final String OFFICE_NS = "urn:oasis:names:tc:opendocument:xmlns:office:1.0";
+
+    // matches runs of white space in cell text, which are collapsed to a
+    // single space
+    private static final Pattern multispace = Pattern.compile("[\t\r\n ]+");
+
+    // the spreadsheet file and the XML stream of its contents
+    private ZipFile odfile;
+    private InputStream contentstream;
+    private XMLStreamReader xmlreader;
+
+    // the name of the active worksheet and of the next worksheet, if it has
+    // been found
+    private String sheetname, nextsheetname;
+
+    // whether the rows of the active worksheet are being read, and the
+    // number of row or column groups (e.g., table:table-header-rows) that
+    // the XML stream is currently inside of
+    private boolean insheet;
+    private int groupdepth;
+
+    // The number of columns declared for the active worksheet, and the number
+    // of columns in the active worksheet, which is determined by the first row.
+    private int declaredcols, numcols;
+
+    // the next data row and the number of times that it is repeated
     private String[] nextrow;
-    
+    private int repeatcnt;
+
+    // Whether the array of the next data row can be reused for the row after
+    // it.  This is only true while rows are being copied into a RowBatch, since
+    // otherwise the array is returned to the caller.
+    private boolean reuserow = false;
+
+    private boolean hasnext = false;
+
     @Override
     public String getFormatString() {
         return "ODF";
     }
-    
+
     @Override
     public String getShortFormatDesc() {
         return "OpenDocument";
@@ -65,9 +103,9 @@ public class OpenDocReader implements TabularDataReader
      * currently implemented, this method simply tests if the file extension is
      * "ods".  A better approach would be to actually test for a specific
      * "magic number."  This method also tests if the file actually exists.
-     * 
+     *
      * @param filepath The file to test.
-     * 
+     *
      * @return True if the specified file exists and appears to be an
      * OpenDocument file, false otherwise.
      */
@@ -77,53 +115,97 @@ public class OpenDocReader implements TabularDataReader
         File file = new File(filepath);
         if (!file.exists())
             return false;
-        
+
         int index = filepath.lastIndexOf('.');
-        
+
         if (index != -1 && index != (filepath.length() - 1)) {
             // get the extension
             String ext = filepath.substring(index + 1);
-            
+
             if (ext.equals("ods"))
-                return true;            
+                return true;
         }
-        
+
         return false;
     }
-    
+
     @Override
     public boolean openFile(String filepath) {
-        File filein = new File(filepath);
-        
         try {
-            sprdsheet = SpreadSheet.createFromFile(filein);
-            currsheet = 0;
-            curr_row = numrows = 0;
+            odfile = new ZipFile(filepath);
+
+            ZipEntry content = odfile.getEntry("content.xml");
+            if (content == null) {
+                closeFile();
+                return false;
+            }
+
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+
+            contentstream = odfile.getInputStream(content);
+            xmlreader = factory.createXMLStreamReader(contentstream);
+
+            insheet = false;
+            nextsheetname = null;
+            hasnext = false;
         }
-        catch (IOException e) {
+        catch (Exception e) {
+            closeFile();
             return false;
         }
-        
+
         return true;
     }
 
     @Override
     public boolean hasNextTable() {
-        if (sprdsheet == null)
+        if (xmlreader == null)
             return false;
-        else
-            return currsheet < sprdsheet.getSheetCount();
+
+        if (nextsheetname == null) {
+            try {
+                findNextTable();
+            }
+            catch (XMLStreamException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return nextsheetname != null;
     }
-    
+
+    /**
+     * Skips any unread parts of the active worksheet and advances the XML
+     * stream to the beginning of the next worksheet, if there is one.
+     */
+    private void findNextTable() throws XMLStreamException {
+        if (insheet)
+            skipSheet();
+        hasnext = false;
+
+        while (xmlreader.hasNext()) {
+            if (xmlreader.next() == XMLStreamConstants.START_ELEMENT
+                    && isElement(TABLE_NS, "table")) {
+                nextsheetname = xmlreader.getAttributeValue(TABLE_NS, "name");
+                if (nextsheetname == null)
+                    nextsheetname = "";
+                return;
+            }
+        }
+    }
+
     @Override
     public void moveToNextTable() {
         if (hasNextTable()) {
-            odsheet = sprdsheet.getSheet(currsheet++);
-            
-            numrows = odsheet.getRowCount();
-            curr_row = 0;
-            numcols = 0;
-            //System.out.println(numrows);
+            sheetname = nextsheetname;
+            nextsheetname = null;
+            insheet = true;
+            groupdepth = 0;
+            declaredcols = 0;
+            numcols = -1;
+            repeatcnt = 0;
             testNext();
         }
         else
@@ -132,7 +214,7 @@ public class OpenDocReader implements TabularDataReader
 
     @Override
     public String getCurrentTableName() {
-        return odsheet.getName();
+        return sheetname;
     }
 
     @Override
@@ -144,92 +226,368 @@ public class OpenDocReader implements TabularDataReader
      * Internal method to see if the current sheet has another data row.  This
      * is necessary to avoid returning blank rows at the end of the sheet in
      * certain cases.  If another valid row is found, it will be parsed and
-     * assigned to nextrow;
+     * assigned to nextrow.
      */
     private void testNext() {
-        Cell cell;
-        boolean blankrow = true;
-        hasnext = false;
-        
-        // If this is the first row in the sheet, we need to determine how many
-        // columns there are.
-        if (numcols == 0 && curr_row < numrows) {
-            numcols = 0;
-            for (int cnt = 0; cnt < odsheet.getColumnCount(); cnt++) {
-                cell = odsheet.getCellAt(cnt, curr_row);
-                if (!cell.getTextValue().equals(""))
-                    numcols++;
-                else
-                    // Stop looking after the first blank cell.
-                    break;
-            }
+        // If the previous row was repeated, return it again.
+        if (repeatcnt > 1) {
+            repeatcnt--;
+            if (!reuserow)
+                nextrow = nextrow.clone();
+            hasnext = true;
+            return;
         }
-        
-        nextrow = new String[numcols];
-
-        // get the next row that actually contains data
-        while (blankrow && (curr_row < numrows)) {
-            for (int cnt = 0; cnt < numcols; cnt++) {
-                cell = odsheet.getCellAt(cnt, curr_row);
-
-                // see if this cell contains a date or time value
-                if (cell.getValueType() == ODValueType.TIME) {
-                    // Although not stated in the API documentation, getting the
-                    // value of a time cell returns a java.util.GregorianCalendar
-                    // object.  To prove this, run the line of code below.
-                    //System.out.println(cell.getValue().getClass().getName());
-                    
-                    // convert the time value to an ISO 8601 time string
-                    GregorianCalendar cal = (GregorianCalendar)cell.getValue();
-                    DateTime date = new DateTime(cal.getTime());
-                    nextrow[cnt] = date.toString("HH:mm:ss.SSSZZ");
+
+        hasnext = false;
+
+        try {
+            // get the next row that actually contains data
+            while (insheet && !hasnext) {
+                int event = xmlreader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (isElement(TABLE_NS, "table-column")) {
+                        declaredcols += getRepeat("number-columns-repeated");
+                        skipElement();
+                    }
+                    else if (isElement(TABLE_NS, "table-row")) {
+                        hasnext = readRow();
+                    }
+                    else if (isTableGroup())
+                        groupdepth++;
+                    else
+                        // skip everything that is not part of the table grid
+                        skipElement();
                 }
-                else if (cell.getValueType() == ODValueType.DATE) {
-                    // Although not stated in the API documentation, getting the
-                    // value of a date cell returns a java.util.Date object.
-                    // To prove this, run the line of code below.
-                    //System.out.println(cell.getValue().getClass().getName());
-
-                    // get the date value and convert it to an ISO 8601 string
-                    DateTime date;
-                    date = new DateTime(cell.getValue());
-                    nextrow[cnt] = date.toString();
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (groupdepth > 0)
+                        groupdepth--;
+                    else
+                        // the end of the active sheet
+                        insheet = false;
                 }
-                else {
-                    nextrow[cnt] = cell.getTextValue();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Test if the current element groups columns or rows of a table (e.g.,
+     * table:table-header-rows), in which case its children need to be read.
+     */
+    private boolean isTableGroup() {
+        if (!TABLE_NS.equals(xmlreader.getNamespaceURI()))
+            return false;
+
+        String name = xmlreader.getLocalName();
+
+        return name.equals("table-header-columns") || name.equals("table-columns")
+                || name.equals("table-column-group") || name.equals("table-header-rows")
+                || name.equals("table-rows") || name.equals("table-row-group");
+    }
+
+    /**
+     * Reads the table:table-row element at the current position of the XML
+     * stream.  If this is the first row of the sheet, it determines how many
+     * columns the sheet has: the number of non-empty cells at the beginning of
+     * the row.  Completely blank rows (within the sheet's columns) are
+     * ignored.
+     *
+     * @return True if the row contains data, in which case it is assigned to
+     * nextrow and its repeat count is assigned to repeatcnt; false otherwise.
+     */
+    private boolean readRow() throws XMLStreamException {
+        int rowrepeat = getRepeat("number-rows-repeated");
+        boolean firstrow = numcols < 0;
+        boolean blankrow = true;
+        boolean done = false;
+        String[] cells;
+        int col = 0;
+
+        // Cells are only expanded up to the number of columns in the sheet.
+        // For the first row, that number is not known yet, so the limit is the
+        // number of declared columns.
+        int maxcols;
+        if (firstrow)
+            maxcols = declaredcols > 0 ? declaredcols : Integer.MAX_VALUE;
+        else
+            maxcols = numcols;
+
+        if (firstrow)
+            cells = new String[16];
+        else if (reuserow && nextrow != null && nextrow.length == numcols)
+            cells = nextrow;
+        else
+            cells = new String[numcols];
+
+        while (true) {
+            int event = xmlreader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (!done && (isElement(TABLE_NS, "table-cell")
+                        || isElement(TABLE_NS, "covered-table-cell"))) {
+                    int cellrepeat = getRepeat("number-columns-repeated");
+                    CellValue value = readCell();
+
+                    for (int cnt = 0; cnt < cellrepeat && col < maxcols; cnt++) {
+                        // In the first row, stop looking after the first
+                        // blank cell.
+                        if (firstrow && value.text.equals("")) {
+                            done = true;
+                            break;
+                        }
+
+                        if (col == cells.length)
+                            cells = Arrays.copyOf(cells, cells.length * 2);
+
+                        cells[col++] = value.value;
+                        if (!value.value.equals(""))
+                            blankrow = false;
+                    }
+
+                    if (col >= maxcols)
+                        done = true;
                 }
+                else
+                    skipElement();
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                // the end of the row
+                break;
+        }
+
+        if (firstrow) {
+            numcols = col;
+            cells = Arrays.copyOf(cells, numcols);
+
+            // If the first row is blank, the sheet has no columns, so there
+            // are no rows to return.
+            if (numcols == 0) {
+                skipSheet();
+                return false;
+            }
+        }
 
-                if (!nextrow[cnt].equals("")) {
-                    blankrow = false;
+        if (blankrow)
+            return false;
+
+        // fill in any missing cells at the end of the row
+        for (; col < numcols; col++)
+            cells[col] = "";
+
+        nextrow = cells;
+        repeatcnt = rowrepeat;
+
+        return true;
+    }
+
+    /**
+     * Reads the table cell element at the current position of the XML stream
+     * and determines its value.  Date and time values are converted to ISO
+     * 8601 strings; all other values are returned as the text content of the
+     * cell.
+     */
+    private CellValue readCell() throws XMLStreamException {
+        CellValue value = new CellValue();
+        String valuetype = xmlreader.getAttributeValue(OFFICE_NS, "value-type");
+        String datevalue = xmlreader.getAttributeValue(OFFICE_NS, "date-value");
+        String timevalue = xmlreader.getAttributeValue(OFFICE_NS, "time-value");
+        StringBuilder text = null;
+
+        // Get the text content of the cell, which is the text of each of its
+        // paragraphs (text:p or text:h elements), joined with line breaks.
+        while (true) {
+            int event = xmlreader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (isElement(TEXT_NS, "p") || isElement(TEXT_NS, "h")) {
+                    if (text == null)
+                        text = new StringBuilder();
+                    else
+                        text.append('\n');
+
+                    readParagraph(text);
                 }
+                else
+                    skipElement();
             }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                // the end of the cell
+                break;
+        }
 
-            curr_row++;
+        value.text = (text == null) ? "" : text.toString();
+
+        if ("time".equals(valuetype) && timevalue != null) {
+            // jOpenDocument parses time values into Calendar objects
+            Calendar cal = (Calendar)ODValueType.TIME.parse(timevalue);
+
+            // convert the time value to an ISO 8601 time string
+            DateTime date = new DateTime(cal.getTime());
+            value.value = date.toString("HH:mm:ss.SSSZZ");
+        }
+        else if ("date".equals(valuetype) && datevalue != null) {
+            // get the date value and convert it to an ISO 8601 string
+            DateTime date = new DateTime((Date)ODValueType.DATE.parse(datevalue));
+            value.value = date.toString();
         }
+        else
+            value.value = value.text;
 
-        hasnext = !blankrow;
+        return value;
     }
-    
+
+    /**
+     * Reads the text of the paragraph element at the current position of the
+     * XML stream.  Runs of white space are collapsed to a single space, and
+     * the text:s, text:tab, and text:line-break elements are replaced by the
+     * characters they represent.
+     */
+    private void readParagraph(StringBuilder text) throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = xmlreader.next();
+
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (TEXT_NS.equals(xmlreader.getNamespaceURI())) {
+                        String name = xmlreader.getLocalName();
+                        if (name.equals("tab"))
+                            text.append('\t');
+                        else if (name.equals("line-break"))
+                            text.append('\n');
+                        else if (name.equals("s")) {
+                            String cnt = xmlreader.getAttributeValue(TEXT_NS, "c");
+                            int spaces = (cnt == null) ? 1 : Integer.parseInt(cnt);
+                            for (int i = 0; i < spaces; i++)
+                                text.append(' ');
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(multispace.matcher(xmlreader.getText()).replaceAll(" "));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Gets the value of a repeat count attribute (in the table namespace) of
+     * the current element.
+     */
+    private int getRepeat(String attrname) {
+        String repeat = xmlreader.getAttributeValue(TABLE_NS, attrname);
+
+        if (repeat == null)
+            return 1;
+        else
+            return Integer.parseInt(repeat);
+    }
+
+    /**
+     * Test if the current element has the specified namespace and name.
+     */
+    private boolean isElement(String namespace, String name) {
+        return name.equals(xmlreader.getLocalName())
+                && namespace.equals(xmlreader.getNamespaceURI());
+    }
+
+    /**
+     * Skips the remainder of the active worksheet.
+     */
+    private void skipSheet() throws XMLStreamException {
+        for (; groupdepth >= 0; groupdepth--)
+            skipElement();
+
+        groupdepth = 0;
+        insheet = false;
+    }
+
+    /**
+     * Skips the remainder of the current element, including any children.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = xmlreader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
     /**
      * Get the next data-containing row from the current worksheet.  The length
      * of the returned array will always be equal to the number of columns in
      * the sheet, as determined from the first row, even if the current row has
      * fewer data-containing cells.  Completely empty rows are ignored.
-     * 
+     *
      * @return The data from the next row of the spreadsheet.
      */
     @Override
     public String[] tableGetNextRow() {
         if (!tableHasNextRow())
             throw new NoSuchElementException();
-        
+
         String ret[] = nextrow;
         testNext();
-        
+
         return ret;
     }
 
+    @Override
+    public int readBatch(RowBatch batch) {
+        batch.clear();
+        reuserow = true;
+
+        try {
+            while (tableHasNextRow() && !batch.isFull()) {
+                batch.setRow(batch.addRow(), nextrow);
+                testNext();
+            }
+        }
+        finally {
+            reuserow = false;
+        }
+
+        return batch.size();
+    }
+
     @Override
     public void closeFile() {
+        try {
+            if (xmlreader != null)
+                xmlreader.close();
+            if (contentstream != null)
+                contentstream.close();
+            if (odfile != null)
+                odfile.close();
+        }
+        catch (Exception e) {}
+
+        xmlreader = null;
+        contentstream = null;
+        odfile = null;
+        insheet = false;
+        hasnext = false;
+    }
+
+    /**
+     * The text content and the converted value of a table cell.
+     */
+    private static class CellValue {
+        String text;
+        String value;
     }
 }
@@ -0,0 +1,174 @@
+package reader.plugins;
+
+
+/**
+ * A reusable, column-oriented buffer for a block of rows from a
+ * TabularDataReader (see BatchTabularDataReader).  A RowBatch has a fixed
+ * number of columns and can hold up to a fixed number of rows.  The values of
+ * each column are stored in their own array, and these arrays are allocated
+ * only once, when the batch is created, so a single RowBatch can be filled
+ * over and over again without creating any new objects other than the cell
+ * values themselves.
+ *
+ * Optionally, each column can have a ColumnDictionary (see setDictionaries()),
+ * in which case repeated values in the column are stored as a single, shared
+ * String instance.  Readers that can look values up before creating Strings
+ * (e.g., CSVReader) use the dictionaries directly.
+ */
+public class RowBatch
+{
+    // the cell values, indexed by column and then by row
+    private final String[][] columns;
+    private final int capacity;
+    private int size;
+
+    // the dictionaries for each column, or null if values are not interned
+    private ColumnDictionary[] dictionaries = null;
+
+    /**
+     * Creates a new, empty RowBatch.
+     *
+     * @param numcols The number of columns in each row.
+     * @param capacity The maximum number of rows in the batch.
+     */
+    public RowBatch(int numcols, int capacity) {
+        if (numcols < 0 || capacity < 1)
+            throw new IllegalArgumentException();
+
+        this.capacity = capacity;
+        columns = new String[numcols][capacity];
+        size = 0;
+    }
+
+    /**
+     * Sets the dictionaries to use for interning the values of each column.
+     *
+     * @param dictionaries An array with one dictionary for each column, or null
+     * to store values as they are.
+     */
+    public void setDictionaries(ColumnDictionary[] dictionaries) {
+        if (dictionaries != null && dictionaries.length != columns.length)
+            throw new IllegalArgumentException();
+
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Get the dictionaries that are used for interning column values.
+     *
+     * @return The column dictionaries, or null if there are none.
+     */
+    ColumnDictionary[] getDictionaries() {
+        return dictionaries;
+    }
+
+    /**
+     * Get the number of columns in each row of this batch.
+     *
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Get the maximum number of rows that this batch can hold.
+     *
+     * @return The capacity of the batch.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of rows that are currently in this batch.
+     *
+     * @return The number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Test if this batch cannot hold any more rows.
+     *
+     * @return True if the batch is full.
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Removes all rows from this batch.  The column arrays are kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a new row to the end of this batch.  The caller must then supply a
+     * value for every column of the row with set().
+     *
+     * @return The index of the new row.
+     */
+    public int addRow() {
+        if (isFull())
+            throw new IllegalStateException("The row batch is full.");
+
+        return size++;
+    }
+
+    /**
+     * Sets the value of one cell in this batch.
+     *
+     * @param row The index of the row.
+     * @param col The index of the column.
+     * @param value The cell value.
+     */
+    public void set(int row, int col, String value) {
+        if (dictionaries != null)
+            value = dictionaries[col].intern(value);
+
+        columns[col][row] = value;
+    }
+
+    /**
+     * Sets the value of one cell in this batch to a value that was already
+     * obtained from the column's dictionary.
+     */
+    void setDecoded(int row, int col, String value) {
+        columns[col][row] = value;
+    }
+
+    /**
+     * Sets all cells of a row from an array of values.  If the array has
+     * fewer elements than the batch has columns, the remaining cells are set to
+     * blank Strings; extra elements are ignored.
+     *
+     * @param row The index of the row.
+     * @param values The cell values.
+     */
+    public void setRow(int row, String[] values) {
+        int cnt;
+        int len = Math.min(values.length, columns.length);
+
+        for (cnt = 0; cnt < len; cnt++)
+            set(row, cnt, values[cnt]);
+        for (; cnt < columns.length; cnt++)
+            set(row, cnt, "");
+    }
+
+    /**
+     * Gets the value of one cell in this batch.
+     *
+     * @param row The index of the row.
+     * @param col The index of the column.
+     * @return The cell value.
+     */
+    public String get(int row, int col) {
+        if (row >= size)
+            throw new IndexOutOfBoundsException();
+
+        return columns[col][row];
+    }
+}
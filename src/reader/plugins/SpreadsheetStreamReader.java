@@ -0,0 +1,41 @@
+package reader.plugins;
+
+
+/**
+ * Common interface for the classes that stream the rows of a spreadsheet file
+ * one worksheet at a time (see ExcelReader).  Implementations convert cell
+ * values to the Strings that ExcelReader returns and leave the handling of
+ * column counts to the caller.
+ */
+interface SpreadsheetStreamReader
+{
+    /**
+     * Test if the workbook has another worksheet.
+     */
+    public boolean hasNextSheet();
+
+    /**
+     * Make the next worksheet the active sheet.
+     *
+     * @return The name of the new active worksheet.
+     * @throws Exception
+     */
+    public String nextSheet() throws Exception;
+
+    /**
+     * Get the next row in the active worksheet that contains at least one
+     * cell.  The returned array has one element for each column up to and
+     * including the last cell in the row; missing cells are returned as empty
+     * Strings.
+     *
+     * @return The cell values of the next row, or null if there are no more
+     * rows in the sheet.
+     * @throws Exception
+     */
+    public String[] nextRow() throws Exception;
+
+    /**
+     * Closes the workbook.
+     */
+    public void close();
+}
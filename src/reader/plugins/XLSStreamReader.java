@@ -0,0 +1,356 @@
+package reader.plugins;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RecordFactoryInputStream;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.record.formula.eval.ErrorEval;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.joda.time.DateTime;
+
+
+/**
+ * Reads the rows of an Excel 97-2003 (*.xls, BIFF8) workbook without building
+ * the POI usermodel.  The workbook stream is read one BIFF record at a time
+ * with a RecordFactoryInputStream (the same record source that HSSFEventFactory
+ * uses), and each record is passed through a FormatTrackingHSSFListener, which
+ * keeps track of the number formats and cell styles, to this class, which
+ * collects the cell records into rows.  Rather than pushing every record of
+ * the workbook to a listener in one pass, records are only pulled from the
+ * stream until the next row is complete, so rows can be returned to the caller
+ * (see ExcelReader) one at a time and the number of cell objects in memory does
+ * not depend on the number of rows in the sheet.
+ *
+ * Cell values are converted to Strings the same way that XLSXStreamReader
+ * converts the cells of Excel XML workbooks.  For formula cells, the result
+ * that was cached in the file when it was last saved is used; formulas are not
+ * re-evaluated.
+ */
+class XLSStreamReader implements SpreadsheetStreamReader, HSSFListener
+{
+    private InputStream docstream;
+    private RecordFactoryInputStream records;
+    private FormatTrackingHSSFListener formatlistener;
+    private SSTRecord sst;
+    private boolean date1904;
+
+    // the names of the worksheets, in the order in which they are stored
+    private ArrayList<String> sheetnames;
+    // the number of worksheets that have been started
+    private int sheetcnt;
+    // whether the records of a worksheet are currently being read
+    private boolean insheet;
+    // the nesting depth of BOF/EOF records (e.g., for embedded charts)
+    private int depth;
+
+    // Whether each number format index is a date format.  This only needs to
+    // be determined once per format.
+    private HashMap<Integer, Boolean> dateformats;
+    private DataFormatter df;
+
+    // the cells and index of the row that is currently being collected
+    private ArrayList<String> rowcells;
+    private int rowindex;
+    // the column of a formula cell whose String result is in the next
+    // StringRecord, or -1 if there is none
+    private int stringcol;
+    // the most recently completed row
+    private String[] completedrow;
+
+    /**
+     * Opens a BIFF8 workbook for streaming and reads the workbook globals (the
+     * worksheet names, shared strings table, and formats).
+     *
+     * @param filepath The path of an *.xls file.
+     * @throws Exception
+     */
+    public XLSStreamReader(String filepath) throws Exception {
+        FileInputStream is = new FileInputStream(filepath);
+        POIFSFileSystem fs;
+
+        try {
+            fs = new POIFSFileSystem(is);
+        }
+        finally {
+            is.close();
+        }
+
+        try {
+            docstream = fs.createDocumentInputStream("Workbook");
+        }
+        catch (IOException e) {
+            // some writers use upper case for the stream name
+            docstream = fs.createDocumentInputStream("WORKBOOK");
+        }
+
+        sheetnames = new ArrayList<String>();
+        dateformats = new HashMap<Integer, Boolean>();
+        df = new DataFormatter();
+        rowcells = new ArrayList<String>();
+        rowindex = -1;
+        stringcol = -1;
+
+        records = new RecordFactoryInputStream(docstream, false);
+        formatlistener = new FormatTrackingHSSFListener(this);
+
+        // Process the records of the workbook globals substream, which ends
+        // with the first top-level EOF record.
+        Record rec;
+        do {
+            rec = records.nextRecord();
+            if (rec != null)
+                formatlistener.processRecord(rec);
+        } while (rec != null && depth > 0);
+    }
+
+    @Override
+    public boolean hasNextSheet() {
+        return sheetcnt < sheetnames.size();
+    }
+
+    @Override
+    public String nextSheet() {
+        // Skip any unread records of the active sheet, then find the beginning
+        // of the next sheet.
+        Record rec;
+        do {
+            rec = records.nextRecord();
+            if (rec != null)
+                formatlistener.processRecord(rec);
+        } while (rec != null && !(depth == 1 && rec instanceof BOFRecord));
+
+        insheet = (rec != null);
+        rowcells.clear();
+        rowindex = -1;
+        stringcol = -1;
+
+        return sheetnames.get(sheetcnt++);
+    }
+
+    @Override
+    public String[] nextRow() {
+        completedrow = null;
+
+        while (insheet && completedrow == null) {
+            Record rec = records.nextRecord();
+
+            if (rec == null) {
+                finishRow();
+                insheet = false;
+            }
+            else
+                formatlistener.processRecord(rec);
+        }
+
+        return completedrow;
+    }
+
+    /**
+     * Processes a single BIFF record.  This is called by the
+     * FormatTrackingHSSFListener after it has examined the record.
+     */
+    @Override
+    public void processRecord(Record rec) {
+        switch (rec.getSid()) {
+            case BOFRecord.sid:
+                depth++;
+                break;
+            case EOFRecord.sid:
+                depth--;
+                if (depth == 0 && insheet) {
+                    // the end of the active worksheet
+                    finishRow();
+                    insheet = false;
+                }
+                break;
+            case BoundSheetRecord.sid:
+                sheetnames.add(((BoundSheetRecord)rec).getSheetname());
+                break;
+            case SSTRecord.sid:
+                sst = (SSTRecord)rec;
+                break;
+            case DateWindow1904Record.sid:
+                date1904 = ((DateWindow1904Record)rec).getWindowing() == 1;
+                break;
+            default:
+                if (insheet && depth == 1)
+                    processCellRecord(rec);
+        }
+    }
+
+    /**
+     * Adds the value of a cell record to the current row.  Records that are
+     * not cell records are ignored.
+     */
+    private void processCellRecord(Record rec) {
+        switch (rec.getSid()) {
+            case NumberRecord.sid:
+                // RK and MulRK records are converted to NumberRecords by the
+                // RecordFactoryInputStream.
+                NumberRecord numrec = (NumberRecord)rec;
+                addCell(numrec.getRow(), numrec.getColumn(), getNumberString(numrec));
+                break;
+            case LabelSSTRecord.sid:
+                LabelSSTRecord lsrec = (LabelSSTRecord)rec;
+                addCell(lsrec.getRow(), lsrec.getColumn(),
+                        sst.getString(lsrec.getSSTIndex()).getString());
+                break;
+            case LabelRecord.sid:
+                LabelRecord lrec = (LabelRecord)rec;
+                addCell(lrec.getRow(), lrec.getColumn(), lrec.getValue());
+                break;
+            case BoolErrRecord.sid:
+                BoolErrRecord berec = (BoolErrRecord)rec;
+                if (berec.isBoolean())
+                    addCell(berec.getRow(), berec.getColumn(), berec.getBooleanValue() ? "true" : "false");
+                else
+                    addCell(berec.getRow(), berec.getColumn(), "");
+                break;
+            case BlankRecord.sid:
+                BlankRecord brec = (BlankRecord)rec;
+                addCell(brec.getRow(), brec.getColumn(), "");
+                break;
+            case MulBlankRecord.sid:
+                MulBlankRecord mbrec = (MulBlankRecord)rec;
+                for (int col = mbrec.getFirstColumn(); col <= mbrec.getLastColumn(); col++)
+                    addCell(mbrec.getRow(), col, "");
+                break;
+            case FormulaRecord.sid:
+                FormulaRecord frec = (FormulaRecord)rec;
+                addCell(frec.getRow(), frec.getColumn(), getFormulaString(frec));
+                break;
+            case StringRecord.sid:
+                // the String result of the preceding formula cell
+                if (stringcol >= 0) {
+                    rowcells.set(stringcol, ((StringRecord)rec).getString());
+                    stringcol = -1;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds a cell to the current row.  If the cell is in a different row, the
+     * current row is finished first.
+     */
+    private void addCell(int row, int col, String value) {
+        if (row != rowindex)
+            finishRow();
+        rowindex = row;
+
+        while (rowcells.size() < col)
+            rowcells.add("");
+
+        if (col < rowcells.size())
+            rowcells.set(col, value);
+        else
+            rowcells.add(value);
+    }
+
+    /**
+     * Makes the cells collected for the current row the completed row.
+     */
+    private void finishRow() {
+        if (!rowcells.isEmpty())
+            completedrow = rowcells.toArray(new String[rowcells.size()]);
+
+        rowcells.clear();
+        rowindex = -1;
+    }
+
+    /**
+     * Converts the value of a numeric cell to a String.
+     */
+    private String getNumberString(NumberRecord rec) {
+        double value = rec.getValue();
+
+        // There is no date data type in Excel, so we have to check if this
+        // cell contains a date-formatted value.
+        if (isDateFormat(rec) && DateUtil.isValidExcelDate(value)) {
+            // Convert the value to a Java date object, then to ISO 8601
+            // format using Joda-Time.
+            DateTime date = new DateTime(DateUtil.getJavaDate(value, date1904));
+            return date.toString();
+        }
+        else
+            return Double.toString(value);
+    }
+
+    /**
+     * Converts the cached result of a formula cell to a String.
+     */
+    private String getFormulaString(FormulaRecord rec) {
+        switch (rec.getCachedResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                // Format the formula result as the DataFormatter would.
+                int index = formatlistener.getFormatIndex(rec);
+                String formatstr = formatlistener.getFormatString(index);
+                if (formatstr == null)
+                    formatstr = "General";
+                return df.formatRawCellContents(rec.getValue(), index, formatstr, date1904);
+            case Cell.CELL_TYPE_STRING:
+                // If the result is a non-empty String, it is stored in the
+                // StringRecord that follows the formula.
+                if (rec.hasCachedResultString())
+                    stringcol = rec.getColumn();
+                return "";
+            case Cell.CELL_TYPE_BOOLEAN:
+                return rec.getCachedBooleanValue() ? "true" : "false";
+            case Cell.CELL_TYPE_ERROR:
+                return ErrorEval.getText(rec.getCachedErrorValue());
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Test if a cell has a date number format.
+     */
+    private boolean isDateFormat(NumberRecord rec) {
+        int index = formatlistener.getFormatIndex(rec);
+        Boolean isdate = dateformats.get(index);
+
+        if (isdate == null) {
+            String formatstr = formatlistener.getFormatString(index);
+            isdate = formatstr != null && DateUtil.isADateFormat(index, formatstr);
+            dateformats.put(index, isdate);
+        }
+
+        return isdate;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (docstream != null)
+                docstream.close();
+        }
+        catch (IOException e) {}
+
+        docstream = null;
+        records = null;
+        insheet = false;
+    }
+}
@@ -0,0 +1,368 @@
+package reader.plugins;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.joda.time.DateTime;
+
+
+/**
+ * Reads the rows of an Excel 2007+ (*.xlsx) workbook without loading the
+ * workbook into memory.  The shared strings table and the cell styles are read
+ * once when the workbook is opened; after that, each worksheet is streamed
+ * directly from its XML part in the OOXML package, one row at a time, so the
+ * memory needed does not depend on the number of rows in the sheet.  The XML is
+ * read with a StAX pull parser rather than a SAX handler, because rows are
+ * pulled by the caller (see ExcelReader) rather than pushed to it.
+ *
+ * Cell values are converted to Strings the same way that ExcelReader converts
+ * the cells of a fully-loaded (usermodel) workbook.  For formula cells, the
+ * result that was cached in the file when it was last saved is used; formulas
+ * are not re-evaluated.
+ */
+class XLSXStreamReader implements SpreadsheetStreamReader
+{
+    private OPCPackage pkg;
+    private ReadOnlySharedStringsTable sst;
+    private StylesTable styles;
+    private boolean date1904;
+
+    // iterator over the worksheet parts in the workbook
+    private XSSFReader.SheetIterator sheetiter;
+
+    // the XML stream of the active worksheet
+    private InputStream sheetstream;
+    private XMLStreamReader xmlreader;
+
+    // The number format index and format string for each cell style index,
+    // and whether that format is a date format.  These only need to be
+    // determined once per style.
+    private HashMap<Integer, CellFormat> formats;
+    private DataFormatter df;
+
+    // the cells of the row that is currently being parsed
+    private ArrayList<String> rowcells;
+
+    /**
+     * Opens an OOXML workbook for streaming.
+     *
+     * @param filepath The path of an *.xlsx file.
+     * @throws Exception
+     */
+    public XLSXStreamReader(String filepath) throws Exception {
+        pkg = OPCPackage.open(filepath, PackageAccess.READ);
+
+        try {
+            XSSFReader xssfreader = new XSSFReader(pkg);
+
+            sst = new ReadOnlySharedStringsTable(pkg);
+            styles = xssfreader.getStylesTable();
+            date1904 = isDate1904(xssfreader.getWorkbookData());
+            sheetiter = (XSSFReader.SheetIterator)xssfreader.getSheetsData();
+        }
+        catch (Exception e) {
+            close();
+            throw e;
+        }
+
+        formats = new HashMap<Integer, CellFormat>();
+        df = new DataFormatter();
+        rowcells = new ArrayList<String>();
+    }
+
+    /**
+     * Checks the workbook part to see if the workbook uses the "1904 Date
+     * System".
+     */
+    private boolean isDate1904(InputStream workbookdata) throws XMLStreamException, IOException {
+        XMLStreamReader xr = XMLInputFactory.newInstance().createXMLStreamReader(workbookdata);
+        String value = null;
+
+        try {
+            while (xr.hasNext()) {
+                if (xr.next() == XMLStreamConstants.START_ELEMENT) {
+                    if (xr.getLocalName().equals("workbookPr")) {
+                        value = xr.getAttributeValue(null, "date1904");
+                        break;
+                    }
+                    else if (xr.getLocalName().equals("sheets"))
+                        break;
+                }
+            }
+        }
+        finally {
+            xr.close();
+            workbookdata.close();
+        }
+
+        return "1".equals(value) || "true".equals(value);
+    }
+
+    /**
+     * Test if the workbook has another worksheet.
+     */
+    @Override
+    public boolean hasNextSheet() {
+        return sheetiter.hasNext();
+    }
+
+    /**
+     * Make the next worksheet the active sheet.
+     *
+     * @return The name of the new active worksheet.
+     * @throws XMLStreamException
+     */
+    @Override
+    public String nextSheet() throws XMLStreamException, IOException {
+        closeSheet();
+
+        sheetstream = sheetiter.next();
+        xmlreader = XMLInputFactory.newInstance().createXMLStreamReader(sheetstream);
+
+        return sheetiter.getSheetName();
+    }
+
+    /**
+     * Get the next row in the active worksheet that contains at least one
+     * cell.  The returned array has one element for each column up to and
+     * including the last cell in the row; missing cells are returned as empty
+     * Strings.
+     *
+     * @return The cell values of the next row, or null if there are no more
+     * rows in the sheet.
+     * @throws XMLStreamException
+     */
+    @Override
+    public String[] nextRow() throws XMLStreamException {
+        if (xmlreader == null)
+            return null;
+
+        int event;
+        String name;
+        int col = 0;
+
+        // the type, style, and value of the current cell
+        String ctype = null, cstyle = null, cvalue = null;
+        StringBuilder inlinestr = new StringBuilder();
+        boolean isformula = false;
+
+        rowcells.clear();
+
+        while (xmlreader.hasNext()) {
+            event = xmlreader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                name = xmlreader.getLocalName();
+
+                if (name.equals("row")) {
+                    rowcells.clear();
+                    col = 0;
+                }
+                else if (name.equals("c")) {
+                    String ref = xmlreader.getAttributeValue(null, "r");
+                    if (ref != null)
+                        col = getColumnIndex(ref);
+
+                    ctype = xmlreader.getAttributeValue(null, "t");
+                    cstyle = xmlreader.getAttributeValue(null, "s");
+                    cvalue = null;
+                    inlinestr.setLength(0);
+                    isformula = false;
+                }
+                else if (name.equals("v"))
+                    cvalue = xmlreader.getElementText();
+                else if (name.equals("f")) {
+                    isformula = true;
+                    xmlreader.getElementText();
+                }
+                else if (name.equals("t"))
+                    // text of an inline string
+                    inlinestr.append(xmlreader.getElementText());
+                else if (name.equals("rPh"))
+                    // skip phonetic runs
+                    skipElement();
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                name = xmlreader.getLocalName();
+
+                if (name.equals("c")) {
+                    while (rowcells.size() < col)
+                        rowcells.add("");
+
+                    if (ctype != null && ctype.equals("inlineStr"))
+                        cvalue = inlinestr.toString();
+                    rowcells.add(getCellString(ctype, cstyle, cvalue, isformula));
+
+                    col++;
+                }
+                else if (name.equals("row")) {
+                    if (!rowcells.isEmpty())
+                        return rowcells.toArray(new String[rowcells.size()]);
+                }
+                else if (name.equals("sheetData")) {
+                    break;
+                }
+            }
+        }
+
+        closeSheet();
+
+        return null;
+    }
+
+    /**
+     * Skips the remainder of the current element, including any children.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = xmlreader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    /**
+     * Converts a cell reference (e.g., "AB12") to a 0-based column index.
+     */
+    private int getColumnIndex(String ref) {
+        int col = 0;
+
+        for (int cnt = 0; cnt < ref.length(); cnt++) {
+            char c = ref.charAt(cnt);
+            if (c < 'A' || c > 'Z')
+                break;
+
+            col = col * 26 + (c - 'A' + 1);
+        }
+
+        return col - 1;
+    }
+
+    /**
+     * Converts the raw value of a cell to the String that ExcelReader returns
+     * for it.
+     *
+     * @param ctype The cell type ("t" attribute).
+     * @param cstyle The cell style index ("s" attribute).
+     * @param cvalue The raw cell value.
+     * @param isformula Whether the cell contains a formula.
+     * @return The value of the cell as a String.
+     */
+    private String getCellString(String ctype, String cstyle, String cvalue, boolean isformula) {
+        if (cvalue == null)
+            return "";
+
+        if (ctype == null || ctype.equals("n")) {
+            double value = Double.parseDouble(cvalue);
+            CellFormat format = getFormat(cstyle);
+
+            if (isformula)
+                // Format the formula result as the DataFormatter would.
+                return df.formatRawCellContents(value, format.index, format.formatstr, date1904);
+            else if (format.isdate && DateUtil.isValidExcelDate(value)) {
+                // Convert the value to a Java date object, then to ISO 8601
+                // format using Joda-Time.
+                DateTime date = new DateTime(DateUtil.getJavaDate(value, date1904));
+                return date.toString();
+            }
+            else
+                return Double.toString(value);
+        }
+        else if (ctype.equals("s")) {
+            return sst.getEntryAt(Integer.parseInt(cvalue));
+        }
+        else if (ctype.equals("b")) {
+            return cvalue.equals("1") || cvalue.equals("true") ? "true" : "false";
+        }
+        else if (ctype.equals("e")) {
+            // Error values are only meaningful as formula results.
+            return isformula ? cvalue : "";
+        }
+        else {
+            // inline strings and string formula results
+            return cvalue;
+        }
+    }
+
+    /**
+     * Gets the number format information for a cell style index.
+     */
+    private CellFormat getFormat(String cstyle) {
+        int styleindex = (cstyle == null) ? 0 : Integer.parseInt(cstyle);
+        CellFormat format = formats.get(styleindex);
+
+        if (format == null) {
+            format = new CellFormat();
+
+            if (styles != null && styleindex < styles.getNumCellStyles()) {
+                XSSFCellStyle style = styles.getStyleAt(styleindex);
+                format.index = style.getDataFormat();
+                format.formatstr = style.getDataFormatString();
+            }
+            else {
+                format.index = 0;
+                format.formatstr = "General";
+            }
+
+            format.isdate = DateUtil.isADateFormat(format.index, format.formatstr);
+            formats.put(styleindex, format);
+        }
+
+        return format;
+    }
+
+    /**
+     * Closes the stream for the active worksheet.
+     */
+    private void closeSheet() {
+        try {
+            if (xmlreader != null)
+                xmlreader.close();
+            if (sheetstream != null)
+                sheetstream.close();
+        }
+        catch (Exception e) {}
+
+        xmlreader = null;
+        sheetstream = null;
+    }
+
+    /**
+     * Closes the workbook.
+     */
+    @Override
+    public void close() {
+        closeSheet();
+
+        if (pkg != null)
+            pkg.revert();
+        pkg = null;
+    }
+
+    /**
+     * Number format information for a cell style.
+     */
+    private static class CellFormat {
+        int index;
+        String formatstr;
+        boolean isdate;
+    }
+}
@@ -0,0 +1,305 @@
+package reader.plugins;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.parsers.SAXParserFactory;
+import org.gbif.dwc.record.Record;
+import org.gbif.dwc.record.RecordIterator;
+import org.gbif.dwc.text.Archive;
+import org.gbif.dwc.text.ArchiveFactory;
+import org.gbif.dwc.text.ArchiveField;
+import org.gbif.dwc.text.ArchiveFile;
+import org.gbif.dwc.text.UnsupportedArchiveException;
+import org.gbif.file.CSVReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+
+/**
+ * Provides access to a zipped Darwin Core Archive without extracting it.
+ * ArchiveFactory always decompresses a zipped archive into a directory before
+ * reading it, which, for large archives, needs as much disk space as the
+ * uncompressed data and doubles the amount of disk I/O.  Instead, this class
+ * reads meta.xml directly from the zip file and builds the same Archive,
+ * ArchiveFile, and ArchiveField objects that ArchiveFactory would.  The records
+ * of the core and extension files are then streamed directly from their zip
+ * entries, using the same CSVReader and RecordIterator classes that
+ * ArchiveFile.iterator() uses, so the records are identical.
+ *
+ * Like the decompression done by ArchiveFactory, the directory structure of
+ * the zip file is ignored (i.e., files are found by name only), and hidden
+ * files are skipped.  Only archives that include meta.xml can be read this way;
+ * for other archives, getArchive() returns null.
+ */
+class ZippedDwCArchive
+{
+    private static final String NS_DWCA = "http://rs.tdwg.org/dwc/text/";
+
+    private ZipFile zipfile;
+
+    // the entries of the zip file, indexed by file name
+    private HashMap<String, ZipEntry> entries;
+
+    /**
+     * Opens a zip file.
+     *
+     * @param archive The zip file.
+     * @throws IOException
+     */
+    public ZippedDwCArchive(File archive) throws IOException {
+        zipfile = new ZipFile(archive);
+        entries = new HashMap<String, ZipEntry>();
+
+        Enumeration<? extends ZipEntry> zipentries = zipfile.entries();
+        while (zipentries.hasMoreElements()) {
+            ZipEntry entry = zipentries.nextElement();
+            String name = new File(entry.getName()).getName();
+
+            if (!entry.isDirectory() && !name.startsWith(".") && !entries.containsKey(name))
+                entries.put(name, entry);
+        }
+    }
+
+    /**
+     * Reads the archive's meta.xml file and checks that all of the data files
+     * it describes are present in the zip file.
+     *
+     * @return The archive description, or null if the zip file does not
+     * contain a meta.xml file.
+     * @throws IOException
+     * @throws UnsupportedArchiveException If meta.xml is invalid or describes
+     * an invalid archive.
+     */
+    public Archive getArchive() throws IOException, UnsupportedArchiveException {
+        ZipEntry metaentry = entries.get("meta.xml");
+        if (metaentry == null)
+            return null;
+
+        Archive archive = new Archive();
+        InputStream is = zipfile.getInputStream(metaentry);
+
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(is, new MetaHandler(archive));
+        }
+        catch (Exception e) {
+            throw new UnsupportedArchiveException(e);
+        }
+        finally {
+            is.close();
+        }
+
+        validateArchive(archive);
+
+        return archive;
+    }
+
+    /**
+     * Checks that an archive has a core data file and that every data file
+     * has the properties required to read it.
+     */
+    private void validateArchive(Archive archive) throws UnsupportedArchiveException {
+        ArchiveFile core = archive.getCore();
+
+        if (core == null)
+            throw new UnsupportedArchiveException("DwC-A core data file is NULL");
+        if (!archive.getExtensions().isEmpty() && core.getId() == null)
+            throw new UnsupportedArchiveException("DwC-A core data file is lacking an id column. No extensions allowed in this case");
+        validateFile(core);
+
+        for (ArchiveFile extension : archive.getExtensions()) {
+            if (extension.getId() == null)
+                throw new UnsupportedArchiveException("DwC-A data file requires an id or foreign key to the core id");
+            validateFile(extension);
+        }
+    }
+
+    private void validateFile(ArchiveFile afile) throws UnsupportedArchiveException {
+        if (afile.getLocation() == null)
+            throw new UnsupportedArchiveException("DwC-A data file requires a location");
+        if (afile.getEncoding() == null)
+            throw new UnsupportedArchiveException("DwC-A data file requires a character encoding");
+        if (getEntry(afile) == null)
+            throw new UnsupportedArchiveException("DwC-A data file " + afile.getLocation() + " is missing from the archive");
+    }
+
+    /**
+     * Gets the zip entry for the data of an archive file.
+     */
+    private ZipEntry getEntry(ArchiveFile afile) {
+        return entries.get(new File(afile.getLocation()).getName());
+    }
+
+    /**
+     * Returns an iterator over the records of one of the archive's data files.
+     * The records are read directly from the zip file.
+     *
+     * @param afile A core or extension file of the archive.
+     * @return An iterator over the file's records.
+     * @throws IOException
+     */
+    public Iterator<Record> iterator(ArchiveFile afile) throws IOException {
+        InputStream is = zipfile.getInputStream(getEntry(afile));
+        CSVReader csvreader = new CSVReader(is, afile.getEncoding(),
+                afile.getFieldsTerminatedBy(), afile.getFieldsEnclosedBy(),
+                afile.getIgnoreHeaderLines());
+
+        return new RecordIterator(csvreader, afile.getId(), afile.getFields(), afile.getRowType(), true);
+    }
+
+    /**
+     * Closes the zip file.
+     */
+    public void close() {
+        try {
+            zipfile.close();
+        }
+        catch (IOException e) {}
+    }
+
+    /**
+     * A SAX handler that builds an Archive from meta.xml in the same way as
+     * ArchiveFactory.
+     */
+    private static class MetaHandler extends DefaultHandler
+    {
+        private Archive archive;
+        private ArchiveFile afile;
+        private StringBuilder content = new StringBuilder();
+
+        public MetaHandler(Archive archive) {
+            this.archive = archive;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attrs) throws SAXException {
+            content.setLength(0);
+
+            try {
+                if (localName.equalsIgnoreCase("archive") || localName.equalsIgnoreCase("stararchive")) {
+                    archive.setMetadataLocation(getAttr(attrs, "metadata"));
+                }
+                else if (localName.equalsIgnoreCase("core") || localName.equalsIgnoreCase("extension")) {
+                    afile = buildArchiveFile(attrs);
+                }
+                else if (localName.equalsIgnoreCase("coreid") || localName.equalsIgnoreCase("id")) {
+                    if (afile != null)
+                        afile.setId(buildField(attrs));
+                }
+                else if (localName.equalsIgnoreCase("field")) {
+                    if (afile != null)
+                        afile.addField(buildField(attrs));
+                }
+            }
+            catch (UnsupportedArchiveException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (localName.equalsIgnoreCase("core")) {
+                archive.setCore(afile);
+            }
+            else if (localName.equalsIgnoreCase("extension")) {
+                // Extensions without an ID index are ignored.
+                if (afile.getId() != null && afile.getId().getIndex() != null)
+                    archive.addExtension(afile);
+            }
+            else if (localName.equalsIgnoreCase("location")) {
+                afile.addLocation(content.toString().trim());
+            }
+
+            content.setLength(0);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            content.append(ch, start, length);
+        }
+
+        private ArchiveFile buildArchiveFile(Attributes attrs) throws UnsupportedArchiveException {
+            ArchiveFile newfile = new ArchiveFile();
+
+            if (getAttr(attrs, "encoding") != null)
+                newfile.setEncoding(getAttr(attrs, "encoding"));
+            if (getAttr(attrs, "fieldsTerminatedBy") != null)
+                newfile.setFieldsTerminatedBy(unescapeBackslash(getAttr(attrs, "fieldsTerminatedBy")));
+            if (getAttr(attrs, "fieldsEnclosedBy") != null)
+                newfile.setFieldsEnclosedBy(getFirstChar(getAttr(attrs, "fieldsEnclosedBy")));
+            if (getAttr(attrs, "linesTerminatedBy") != null)
+                newfile.setLinesTerminatedBy(unescapeBackslash(getAttr(attrs, "linesTerminatedBy")));
+            if (getAttr(attrs, "rowType") != null)
+                newfile.setRowType(getAttr(attrs, "rowType"));
+
+            try {
+                newfile.setIgnoreHeaderLines(Integer.parseInt(getAttr(attrs, "ignoreHeaderLines")));
+            }
+            catch (NumberFormatException e) {}
+
+            return newfile;
+        }
+
+        private ArchiveField buildField(Attributes attrs) throws UnsupportedArchiveException {
+            String term = getAttr(attrs, "term");
+            ArchiveField.DataType type = ArchiveField.DataType.findByXmlSchemaType(getAttr(attrs, "type"));
+            Integer index = null;
+
+            if (type == null)
+                type = ArchiveField.DataType.string;
+
+            if (getAttr(attrs, "index") != null) {
+                try {
+                    index = Integer.parseInt(getAttr(attrs, "index"));
+                }
+                catch (NumberFormatException e) {
+                    throw new UnsupportedArchiveException(e);
+                }
+            }
+
+            return new ArchiveField(index, term == null ? null : ArchiveFactory.findTerm(term),
+                    getAttr(attrs, "default"), type);
+        }
+
+        private String getAttr(Attributes attrs, String name) {
+            String value = attrs.getValue("", name);
+            if (value == null)
+                value = attrs.getValue(NS_DWCA, name);
+
+            return value;
+        }
+
+        private static String unescapeBackslash(String value) {
+            if (value == null || value.length() == 0)
+                return value;
+
+            return value.replaceAll("\\\\t", "\t").replaceAll("\\\\n", "\n")
+                    .replaceAll("\\\\r", "\r").replaceAll("\\\\f", "\f");
+        }
+
+        private static Character getFirstChar(String value) throws UnsupportedArchiveException {
+            if (value == null || value.length() == 0)
+                return null;
+            if (value.length() == 1)
+                return value.charAt(0);
+            if (value.equalsIgnoreCase("\\t"))
+                return '\t';
+            if (value.equalsIgnoreCase("\\n"))
+                return '\n';
+            if (value.equalsIgnoreCase("\\r"))
+                return '\r';
+
+            throw new UnsupportedArchiveException("Only darwin core archives with a single quotation character are supported, but found >>>" + value + "<<<");
+        }
+    }
+}
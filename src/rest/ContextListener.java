@@ -1,5 +1,6 @@
 package rest;
 
+import dbmap.ConnectionPool;
 import dbmap.DBsystem;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -7,7 +8,8 @@ import org.apache.log4j.Level;
 
 /**
  * Registers/unregisters JDBC drivers listed in DBsystem
- * when context is initialized/destroyed.
+ * when context is initialized/destroyed, and turns on
+ * pooling of database connections while the context is up.
  * Needs an entry in web.xml.
  */
 public class ContextListener implements ServletContextListener {
@@ -27,12 +29,16 @@ public class ContextListener implements ServletContextListener {
         
         // Set the log level so that D2RQ doesn't produce DEBUG messages.
         org.apache.log4j.Logger.getRootLogger().setLevel(Level.ERROR);
+
+        ConnectionPool.setEnabled(true);
     }
 
     /**
-     * Does nothing; only included to meet the interface requirements.
+     * Close the pooled database connections and unregister the driver of the
+     * connection pools.
      */
     @Override
     public void contextDestroyed(ServletContextEvent event) {
+        ConnectionPool.shutdown();
     }
 }
\ No newline at end of file
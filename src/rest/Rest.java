@@ -9,6 +9,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletContext;
 import javax.ws.rs.*;
@@ -17,6 +18,9 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import JenaTools.rdf2dot;
+import reader.ConversionCache;
+import reader.ConversionProgress;
+import reader.InMemoryDatabase;
 import reader.ReaderManager;
 import reader.TabularDataConverter;
 import reader.plugins.TabularDataReader;
@@ -27,6 +31,7 @@ import com.sun.jersey.core.header.FormDataContentDisposition;
 import com.sun.jersey.multipart.FormDataParam;
 
 import dbmap.Connection;
+import dbmap.IndexBuilder;
 import dbmap.Mapping;
 import de.fuberlin.wiwiss.d2rq.jena.ModelD2RQ;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -53,6 +58,11 @@ public class Rest {
     @Context
     private static ServletContext context;
 
+    // the progress of the uploads that are being converted, indexed by the
+    // progress IDs chosen by the clients
+    private static final ConcurrentHashMap<String, ConversionProgress> conversions =
+            new ConcurrentHashMap<String, ConversionProgress>();
+
     /**
      * Get real path of the sqlite folder in classes folder.
      *
@@ -88,8 +98,13 @@ public class Rest {
      * string.  This is necessary for the UI to work properly with Internet
      * Explorer.
      *
+     * If the client supplies a progress ID, the progress of the conversion can
+     * be followed with getConversionProgress() while the upload is converted.
+     *
      * @param inputStream        File to be uploaded.
      * @param contentDisposition Form-data content disposition header.
+     * @param progressId         A unique ID for following the progress of the
+     *                           conversion, or null.
      * @return Mapping representation of tabular data in the file.
      */
     @POST
@@ -98,26 +113,81 @@ public class Rest {
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     public String uploadDataSource(
             @FormDataParam("file") InputStream inputStream,
-            @FormDataParam("file") FormDataContentDisposition contentDisposition)
+            @FormDataParam("file") FormDataContentDisposition contentDisposition,
+            @FormDataParam("progressId") String progressId)
             throws Exception {
         String fileName = contentDisposition.getFileName();
         File sqliteFile = createUniqueFile(fileName + ".sqlite", getSqlitePath());
+        Mapping mapping;
         if (fileName.endsWith(".sqlite")) {
             writeFile(inputStream, sqliteFile);
+            mapping = inspect(new Connection(sqliteFile));
         } else {
             File tempFile = File.createTempFile("upload", fileName);
             writeFile(inputStream, tempFile);
-            ReaderManager rm = new ReaderManager();
-            rm.loadReaders();
-            TabularDataReader tdr = rm.openFile(tempFile.getPath());
-            TabularDataConverter tdc = new TabularDataConverter(tdr, "jdbc:sqlite:" + sqliteFile.getPath());
-            tdc.convert();
-            tdr.closeFile();
+
+            // If the same data source was converted before, reuse the
+            // database and Mapping from the conversion cache.
+            ConversionCache cache = ConversionCache.getConfiguredCache();
+            String cacheKey = null;
+            String cachedMapping = null;
+            if (cache != null) {
+                cacheKey = cache.getKey(tempFile, true, false, false);
+                cachedMapping = cache.getMetadata(cacheKey);
+                if (cachedMapping != null && !cache.fetch(cacheKey, sqliteFile))
+                    cachedMapping = null;
+            }
+
+            if (cachedMapping != null) {
+                mapping = new ObjectMapper().readValue(cachedMapping, Mapping.class);
+                mapping.connection = new Connection(sqliteFile);
+            } else {
+                ReaderManager rm = new ReaderManager();
+                rm.loadReaders();
+                TabularDataReader tdr = rm.openFile(tempFile.getPath());
+
+                ConversionProgress progress = null;
+                if (progressId != null && !progressId.equals("")) {
+                    progress = new ConversionProgress();
+                    conversions.put(progressId, progress);
+                }
+
+                try {
+                    if (InMemoryDatabase.fitsInMemory(tempFile)) {
+                        // Convert and inspect the data in memory.  The
+                        // later requests for the data source refer to the
+                        // SQLite file, so the database is then written to
+                        // the file in a single pass.
+                        InMemoryDatabase memorydb = InMemoryDatabase.create(sqliteFile.getName());
+                        try {
+                            TabularDataConverter tdc = new TabularDataConverter(tdr, memorydb.getUrl());
+                            tdc.setConversionListener(progress);
+                            tdc.convert();
+                            tdr.closeFile();
+
+                            mapping = inspect(new Connection(memorydb));
+                            memorydb.backup(sqliteFile);
+                        } finally {
+                            memorydb.close();
+                        }
+                        mapping.connection = new Connection(sqliteFile);
+                    } else {
+                        TabularDataConverter tdc = new TabularDataConverter(tdr, "jdbc:sqlite:" + sqliteFile.getPath());
+                        tdc.setConversionListener(progress);
+                        tdc.convert();
+                        tdr.closeFile();
+                        mapping = inspect(new Connection(sqliteFile));
+                    }
+                } finally {
+                    if (progress != null)
+                        conversions.remove(progressId);
+                }
+
+                if (cache != null)
+                    cache.store(cacheKey, sqliteFile, new ObjectMapper().writeValueAsString(mapping));
+            }
         }
 
-        // Get the data source Mapping object.
-        Mapping mapping = inspect(new Connection(sqliteFile));
-        
         // In order to return JSON with the content-type "text/plain", we need
         // to manually convert the Mapping object to JSON and then return it as
         // a string.
@@ -126,6 +196,21 @@ public class Rest {
         return jsonmapper.writeValueAsString(mapping);
     }
 
+    /**
+     * Get the progress of converting an uploaded data source, while
+     * uploadDataSource() is converting it.
+     *
+     * @param progressId The progress ID that was sent with the upload.
+     * @return The progress of the conversion, or nothing if no upload with
+     * this progress ID is being converted.
+     */
+    @GET
+    @Path("/conversionProgress")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ConversionProgress getConversionProgress(@QueryParam("progressId") String progressId) {
+        return progressId == null ? null : conversions.get(progressId);
+    }
+
     /**
      * Write InputStream to File.
      *
@@ -189,12 +274,21 @@ public class Rest {
         return getMapping(mapping, false);
     }
 
-    private String getMapping(Mapping mapping, Boolean verifyFile) throws Exception {
-        if (verifyFile)
+    /**
+     * Write the D2RQ Mapping Language representation of a Mapping to a file.
+     * A mapping for triplification uses the connection's pool, so it is not
+     * usable outside of this application.
+     *
+     * @param mapping Mapping to translate.
+     * @param forTriples Whether the mapping is for triplification.
+     * @return URL to the n3 file.
+     */
+    private String getMapping(Mapping mapping, boolean forTriples) throws Exception {
+        if (forTriples)
             mapping.connection.verifyFile();
         File mapFile = createUniqueFile("mapping.n3", getTriplesPath());
         PrintWriter pw = new PrintWriter(mapFile);
-        mapping.printD2RQ(pw);
+        mapping.printD2RQ(pw, forTriples);
         pw.close();
         return triplesFolder + "/" + mapFile.getName();
     }
@@ -214,8 +308,13 @@ public class Rest {
         System.gc();
         SettingsManager sm = SettingsManager.getInstance();
         sm.loadProperties();
+        String mappingPath = getMapping(tparams.mapping, true);
+
+        // Index the columns that D2RQ's queries will use.
+        new IndexBuilder(tparams.mapping).buildIndexes();
+
         Model model = new ModelD2RQ(FileUtils.toURL(
-                context.getRealPath(getMapping(tparams.mapping, true))),
+                context.getRealPath(mappingPath)),
                 FileUtils.langN3, sm.retrieveValue("defaultURI", "urn:x-biscicol:"));
 
         // Set the output format and matching output file name.
@@ -234,19 +333,24 @@ public class Rest {
         File tripleFile = createUniqueFile(foutname, getTriplesPath());
         FileOutputStream fos = new FileOutputStream(tripleFile);
 
-        // Write out the triples according to the output format.
-        if (outformat.equals("dot")) {
-            String dotFileData = rdf2dot.parse(model);
-            fos.write(dotFileData.getBytes());
-            fos.flush();
-        }
-        else {
-            // Write the RDF triples.
-            model.write(fos, outformat);
+        try {
+            // Write out the triples according to the output format.
+            if (outformat.equals("dot")) {
+                String dotFileData = rdf2dot.parse(model);
+                fos.write(dotFileData.getBytes());
+                fos.flush();
+            }
+            else {
+                // Write the RDF triples.
+                model.write(fos, outformat);
+            }
+        } finally {
+            // Closing the model closes D2RQ's database connection, which
+            // returns it to the connection pool.
+            model.close();
+            fos.close();
         }
         
-        fos.close();
-        
         // Return the file location.
         return triplesFolder + "/" + tripleFile.getName();
     }
@@ -5,6 +5,7 @@ import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.sparql.SystemARQ;
 import com.hp.hpl.jena.util.FileUtils;
 import com.sun.jersey.core.util.ThrowHelper;
+import dbmap.IndexBuilder;
 import dbmap.Mapping;
 import de.fuberlin.wiwiss.d2rq.jena.ModelD2RQ;
 import org.apache.log4j.Level;
@@ -20,6 +21,8 @@ import java.io.*;
 public class Triplifier {
     static File outputPath;
     private File mappingFile;
+    private IndexBuilder indexBuilder;
+    private long triplifyTime;
 
     public Triplifier(File pOutputPath) throws Exception {
         outputPath = pOutputPath;
@@ -38,6 +41,26 @@ public class Triplifier {
         return mappingFile;
     }
 
+    /**
+     * Get the IndexBuilder used by the last call to getTriples(), which
+     * reports how many indexes were created and how long that took.
+     *
+     * @return The IndexBuilder, or null if getTriples() has not been called.
+     */
+    public IndexBuilder getIndexBuilder() {
+        return indexBuilder;
+    }
+
+    /**
+     * Get the time the last call to getTriples() spent running D2RQ, not
+     * counting the time spent creating indexes.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getTriplifyTime() {
+        return triplifyTime;
+    }
+
     /**
      * Create new file in given folder, add incremental number to base if filename already exists.
      *
@@ -82,11 +105,19 @@ public class Triplifier {
         SettingsManager sm = SettingsManager.getInstance();
         sm.loadProperties();
 
+        String mappingPath = getMapping(filenamePrefix, mapping, true);
+
+        // Index the columns that D2RQ's queries will use.
+        indexBuilder = new IndexBuilder(mapping);
+        indexBuilder.buildIndexes();
+
+        long start = System.currentTimeMillis();
         triplifyDirect t = new triplifyDirect(
-                new File(getMapping(filenamePrefix, mapping, true)),
+                new File(mappingPath),
                 createUniqueFile(filenamePrefix + ".triples.txt", getOutputPath()),
                 lang,
                 sm.retrieveValue("defaultURI", "urn:x-biscicol:"));
+        triplifyTime = System.currentTimeMillis() - start;
 
         return t.getOutputFile().getAbsoluteFile().toString();
     }
@@ -2,13 +2,10 @@ package simplifier.plugins;
 
 import dbmap.*;
 import dbmap.Attribute;
-import de.fuberlin.wiwiss.d2rq.algebra.*;
 import settings.deepRoots;
 import vocabulary.VocabularyItem;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 
 /**
  * A crude set of properties to simplify DwCA for testing against, VN, Morphbank, etc.
@@ -146,16 +143,10 @@ public class dwcSimplifier extends simplifier {
     protected Object[] getProperTableAndId(String tableName) {
         ArrayList tableAndId = new ArrayList();
         String maintable = "maintable";
-        List<de.fuberlin.wiwiss.d2rq.algebra.Attribute> columns = schemaInspector.listColumns(new RelationName(null, maintable));
-        Iterator it = columns.iterator();
-        while (it.hasNext()) {
-            de.fuberlin.wiwiss.d2rq.algebra.Attribute a = (de.fuberlin.wiwiss.d2rq.algebra.Attribute) it.next();
-            if (a.attributeName().equals(tableName + "ID")) {
-                tableAndId.add(maintable);
-                tableAndId.add(tableName + "ID");
-                return tableAndId.toArray();
-            }
-
+        if (schemaCatalog.hasColumn(maintable, tableName + "ID")) {
+            tableAndId.add(maintable);
+            tableAndId.add(tableName + "ID");
+            return tableAndId.toArray();
         }
         tableAndId.add(tableName);
         tableAndId.add("id");
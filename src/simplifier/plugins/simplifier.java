@@ -1,9 +1,6 @@
 package simplifier.plugins;
 
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
-import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
-import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.map.Database;
 import dbmap.*;
 import settings.deepRoots;
@@ -15,7 +12,6 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Establish a common method for connecting to SQLLite datasources for various flavors of the simplifier.
@@ -29,7 +25,7 @@ public abstract class simplifier {
     protected deepRoots dRoots;
 
     protected Connection connection;
-    protected DatabaseSchemaInspector schemaInspector;
+    protected SchemaCatalog schemaCatalog;
     protected Database database;
     protected boolean addPrefix;
 
@@ -37,7 +33,7 @@ public abstract class simplifier {
         this.connection = connection;
 
         database = getD2RQdatabase(connection);
-        schemaInspector = database.connectedDB().schemaInspector();
+        schemaCatalog = SchemaCatalog.forConnection(connection);
         entity = new HashSet<Entity>();
         join = new HashSet<Join>();
         relation = new HashSet<Relation>();
@@ -67,19 +63,7 @@ public abstract class simplifier {
      * @return JDBC URL.
      */
     String getJdbcUrl(Connection connection) {
-        switch (connection.system) {
-            case mysql:
-                return "jdbc:mysql://" + connection.host + "/" + connection.database;
-            case postgresql:
-                return "jdbc:postgresql://" + connection.host + "/" + connection.database;
-            case oracle:
-                return "jdbc:oracle:thin:@" + connection.host + ":" + connection.database;
-            case sqlserver:
-                return "jdbc:sqlserver://" + connection.host + ";databaseName=" + connection.database;
-            case sqlite:
-                return "jdbc:sqlite:" + connection.host + "/" + connection.database;
-        }
-        return null;
+        return connection.getJdbcUrl();
     }
 
     /**
@@ -96,15 +80,7 @@ public abstract class simplifier {
      * @return
      */
     protected ArrayList getColumns(String tablename) {
-        List<Attribute> attributes = schemaInspector.listColumns(new RelationName(null, tablename));
-        Iterator it = attributes.iterator();
-        ArrayList arrayList = new ArrayList();
-        while (it.hasNext()) {
-            de.fuberlin.wiwiss.d2rq.algebra.Attribute a = (de.fuberlin.wiwiss.d2rq.algebra.Attribute) it.next();
-            arrayList.add(a.attributeName());
-        }
-
-        return arrayList;
+        return new ArrayList(schemaCatalog.getColumns(tablename));
     }
 
     /**
@@ -194,7 +170,7 @@ public abstract class simplifier {
      * @return
      */
     protected Boolean tableInSchema(String tableName) {
-        return schemaInspector.listTableNames(null).toString().contains(tableName);
+        return schemaCatalog.hasTable(tableName);
     }
 
 
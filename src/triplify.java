@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.Scanner;
 
 import JenaTools.rdf2dot;
@@ -16,8 +17,13 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.log4j.Level;
 
+import reader.ColumnStatistics;
+import reader.ConversionCache;
+import reader.ConversionProgress;
+import reader.InMemoryDatabase;
 import reader.ReaderManager;
 import reader.TabularDataConverter;
+import reader.plugins.ColumnDictionary;
 import reader.plugins.TabularDataReader;
 import dbmap.*;
 import settings.PathManager;
@@ -64,6 +70,17 @@ public class triplify {
         opts.addOption("debug", false, "Output debug statements and do not delete processing files, " +
                 "enabling the user to debug application");
 
+        opts.addOption("progress", false, "Print the progress of converting the input file " +
+                "to standard error.");
+
+        opts.addOption("typedColumns", false, "Store columns whose values are all integers " +
+                "as INTEGER columns in the intermediate SQLite database.  This makes the database " +
+                "smaller and joins on integer IDs faster, and does not change the output.");
+
+        opts.addOption("normalizingLoader", false, "Normalize Darwin Core archives while they " +
+                "are loaded, instead of loading them as they are and then normalizing them.  This is " +
+                "faster for large archives and does not change the output.");
+
         opts.addOption("f", "format", true, "Set the output format to one of:" +
                 "\n...N3" +
                 "\n...NTriple (default)" +
@@ -230,28 +247,75 @@ public class triplify {
         }
         // Handle dwc simplifier
         else {
-            int filecounter;
-            File sqlitefile;
-
-            tdr = rm.openFile(inputFile.getAbsolutePath());
-            if (tdr == null) {
-                System.err.println("Error: Unable to open input file " + inputFile.getAbsolutePath());
+            File sqlitefile = null;
+            InMemoryDatabase memorydb;
+
+            // If the same input was converted before, copy the SQLite
+            // database from the conversion cache.
+            ConversionCache cache = ConversionCache.getConfiguredCache();
+            String cachekey = null;
+            boolean cached = false;
+            if (cache != null) {
+                cachekey = cache.getKey(inputFile, fixDwCA, cl.hasOption("normalizingLoader"),
+                        cl.hasOption("typedColumns"));
+                sqlitefile = createSQLiteFile(processDirectory, inputFile);
+                cached = cache.fetch(cachekey, sqlitefile);
             }
 
-            // Create SQLite file
-            String pathPrefix = processDirectory + File.separator + inputFile.getName();
-            sqlitefile = new File(pathPrefix + ".sqlite");
-            filecounter = 1;
-            while (sqlitefile.exists())
-                sqlitefile = new File(pathPrefix + "_" + filecounter++ + ".sqlite");
+            if (cached) {
+                memorydb = null;
+                if (cl.hasOption("debug"))
+                    System.out.println("Using the cached conversion of " + inputFile.getName());
+            } else {
+                tdr = rm.openFile(inputFile.getAbsolutePath());
+                if (tdr == null) {
+                    System.err.println("Error: Unable to open input file " + inputFile.getAbsolutePath());
+                }
 
-            tdc = new TabularDataConverter(tdr, "jdbc:sqlite:" + sqlitefile.getAbsolutePath());
-            tdc.setDwcFixer(fixDwCA);
-            tdc.convert();
-            tdr.closeFile();
+                // Small data sources are converted to an in-memory SQLite
+                // database, unless the user wants to keep the SQLite file for
+                // debugging.
+                if (!cl.hasOption("debug") && InMemoryDatabase.fitsInMemory(inputFile)) {
+                    sqlitefile = null;
+                    memorydb = InMemoryDatabase.create(inputFile.getName());
+                    tdc = new TabularDataConverter(tdr, memorydb.getUrl());
+                } else {
+                    sqlitefile = createSQLiteFile(processDirectory, inputFile);
+                    memorydb = null;
+                    tdc = new TabularDataConverter(tdr, "jdbc:sqlite:" + sqlitefile.getAbsolutePath());
+                }
+
+                tdc.setDwcFixer(fixDwCA);
+                tdc.setNormalizingLoader(cl.hasOption("normalizingLoader"));
+                tdc.setTypedColumns(cl.hasOption("typedColumns"));
+                if (cl.hasOption("progress"))
+                    tdc.setConversionListener(new ConversionProgress(System.err));
+                tdc.convert();
+                tdr.closeFile();
+
+                if (cache != null) {
+                    if (memorydb != null)
+                        cache.store(cachekey, memorydb, null);
+                    else
+                        cache.store(cachekey, sqlitefile, null);
+                }
+
+                // Report how long each conversion stage took, how well the
+                // column dictionaries worked, and the column statistics.
+                if (cl.hasOption("debug")) {
+                    for (Map.Entry<String, Long> entry : tdc.getStageTimes().entrySet())
+                        System.out.println("Conversion stage " + entry.getKey() + ": " + entry.getValue() + " ms");
+                    for (Map.Entry<String, ColumnDictionary> entry : tdc.getColumnDictionaries().entrySet())
+                        System.out.println("Column dictionary for " + entry.getKey() + ": " + entry.getValue());
+                    for (Map.Entry<String, ColumnStatistics> entry : tdc.getColumnStatistics().entrySet())
+                        System.out.println("Column statistics for " + entry.getKey() + ": " + entry.getValue());
+                    for (String colname : tdc.getIntegerColumns())
+                        System.out.println("INTEGER column: " + colname);
+                }
+            }
 
             // Create connection to SQLlite database
-            Connection connection = new Connection(sqlitefile);
+            Connection connection = memorydb != null ? new Connection(memorydb) : new Connection(sqlitefile);
             Triplifier r = new Triplifier(processDirectory);
 
             // Create the dwcSimplifier
@@ -266,11 +330,21 @@ public class triplify {
             // Print the contents of the file
             printContents(cl, fileName, language);
 
+            // Report the time spent on indexes and on triplification.
+            if (cl.hasOption("debug")) {
+                System.out.println("Created " + r.getIndexBuilder().getCreatedCount() + " indexes in "
+                        + r.getIndexBuilder().getBuildTime() + " ms");
+                System.out.println("Triplification took " + r.getTriplifyTime() + " ms");
+            }
+
             // Cleaning up
             File tripleOutputFile = new File(fileName);
+            if (memorydb != null)
+                memorydb.close();
+
             if (!cl.hasOption("debug")) {
                 // Cleanup sqlite file
-                if (!sqlitefile.delete()) {
+                if (sqlitefile != null && !sqlitefile.delete()) {
                     System.err.println("Unable to delete processing file = " + sqlitefile.getAbsoluteFile());
                 }
 
@@ -297,6 +371,24 @@ public class triplify {
 
     }
 
+    /**
+     * Choose a name for a new SQLite file for an input file, adding a number
+     * to the name if the file already exists.
+     *
+     * @param processDirectory
+     * @param inputFile
+     * @return The new SQLite file
+     */
+    private static File createSQLiteFile(File processDirectory, File inputFile) {
+        String pathPrefix = processDirectory + File.separator + inputFile.getName();
+        File sqlitefile = new File(pathPrefix + ".sqlite");
+        int filecounter = 1;
+        while (sqlitefile.exists())
+            sqlitefile = new File(pathPrefix + "_" + filecounter++ + ".sqlite");
+
+        return sqlitefile;
+    }
+
     /**
      * Print the contents of a particular file
      *
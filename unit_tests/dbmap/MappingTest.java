@@ -0,0 +1,206 @@
+package dbmap;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MappingTest {
+    private Mapping mapping;
+
+    @Before
+    public void setUp() {
+        mapping = new Mapping();
+        // The joins are searched in the order in which they were added.
+        mapping.joins = new LinkedHashSet<Join>();
+        mapping.entities = new HashSet<Entity>();
+    }
+
+    /**
+     * Tests finding tables that are joined directly, in either direction.
+     * Of several joins of the same tables, the first one is used.
+     */
+    @Test
+    public void testFindDirectJoin() {
+        Join ab = addJoin("a", "b");
+        Join ab2 = addJoin("a", "b");
+        Join cc = addJoin("c", "c");
+
+        assertArrayEquals(new Join[] {ab}, mapping.findJoins("a", "b"));
+        assertArrayEquals(new Join[] {ab}, mapping.findJoins("b", "a"));
+        assertArrayEquals(new Join[] {cc}, mapping.findJoins("c", "c"));
+        assertNull(mapping.findJoins("a", "a"));
+        assertNull(mapping.findJoins("a", "c"));
+        assertNull(mapping.findJoins("a", "x"));
+
+        mapping.joins.remove(ab);
+        assertArrayEquals(new Join[] {ab2}, mapping.findJoins("a", "b"));
+    }
+
+    /**
+     * Tests finding tables that are joined through one intermediate table.
+     * Of several intermediate tables, the one with the first join is used.
+     */
+    @Test
+    public void testFindTwoJoins() {
+        Join bc = addJoin("b", "c");
+        Join ad = addJoin("a", "d");
+        Join ab = addJoin("a", "b");
+        Join dc = addJoin("d", "c");
+
+        assertArrayEquals(new Join[] {ad, dc}, mapping.findJoins("a", "c"));
+        assertArrayEquals(new Join[] {bc, ab}, mapping.findJoins("c", "a"));
+        assertArrayEquals(new Join[] {bc, dc}, mapping.findJoins("b", "d"));
+    }
+
+    /**
+     * Tests finding tables that are joined through two or more intermediate
+     * tables, which were not found before.  The shortest chain is used.
+     */
+    @Test
+    public void testFindLongerChains() {
+        Join ab = addJoin("a", "b");
+        Join cb = addJoin("c", "b");
+        Join cd = addJoin("c", "d");
+        Join de = addJoin("d", "e");
+
+        assertArrayEquals(new Join[] {ab, cb, cd}, mapping.findJoins("a", "d"));
+        assertArrayEquals(new Join[] {de, cd, cb, ab}, mapping.findJoins("e", "a"));
+
+        // A shortcut makes the chain shorter.
+        Join ea = addJoin("e", "b");
+        assertArrayEquals(new Join[] {ab, ea}, mapping.findJoins("a", "e"));
+        assertArrayEquals(new Join[] {ab, cb, cd}, mapping.findJoins("a", "d"));
+    }
+
+    /**
+     * Tests that the joins and entities are found again after the sets are
+     * changed or replaced.
+     */
+    @Test
+    public void testChangedSets() {
+        Join ab = addJoin("a", "b");
+        assertNull(mapping.findJoins("a", "c"));
+
+        // Replace a join without changing the size of the set.
+        mapping.joins.remove(ab);
+        Join ac = addJoin("a", "c");
+        assertArrayEquals(new Join[] {ac}, mapping.findJoins("a", "c"));
+        assertNull(mapping.findJoins("a", "b"));
+
+        mapping.joins = new HashSet<Join>();
+        assertNull(mapping.findJoins("a", "c"));
+
+        Entity entity = new Entity();
+        entity.table = "a";
+        entity.idColumn = "id";
+        assertNull(mapping.findEntity("a", "id"));
+        mapping.entities.add(entity);
+        assertSame(entity, mapping.findEntity("a", "id"));
+        assertNull(mapping.findEntity("a", "other"));
+
+        mapping.entities = new HashSet<Entity>();
+        assertNull(mapping.findEntity("a", "id"));
+    }
+
+    /**
+     * Tests the joins that are found against the previous implementation of
+     * findJoins(), which only found one or two joins, on random join graphs.
+     * The chains that it did not find must be valid chains of at least three
+     * joins.  Relation does not look for joins of a table with itself, so
+     * only pairs of different tables are compared.
+     */
+    @Test
+    public void testSameAsPreviousImplementation() {
+        Random random = new Random(1);
+        int longer = 0;
+
+        for (int graph = 0; graph < 500; graph++) {
+            setUp();
+            int tablecnt = 2 + random.nextInt(10);
+            int joincnt = random.nextInt(16);
+            for (int cnt = 0; cnt < joincnt; cnt++)
+                addJoin("t" + random.nextInt(tablecnt), "t" + random.nextInt(tablecnt));
+
+            for (int t1 = 0; t1 < tablecnt; t1++) {
+                for (int t2 = 0; t2 < tablecnt; t2++) {
+                    if (t1 == t2)
+                        continue;
+
+                    String table1 = "t" + t1, table2 = "t" + t2;
+                    Join[] expected = findJoinsPrevious(mapping.joins, table1, table2);
+                    Join[] found = mapping.findJoins(table1, table2);
+
+                    if (expected != null)
+                        assertArrayEquals(expected, found);
+                    else if (found != null) {
+                        assertTrue(found.length >= 3);
+                        String table = table1;
+                        for (Join join : found) {
+                            if (table.equals(join.foreignTable))
+                                table = join.primaryTable;
+                            else {
+                                assertEquals(table, join.primaryTable);
+                                table = join.foreignTable;
+                            }
+                        }
+                        assertEquals(table2, table);
+                        longer++;
+                    }
+                }
+            }
+        }
+
+        assertTrue(longer > 0);
+    }
+
+    private Join addJoin(String foreignTable, String primaryTable) {
+        Join join = new Join();
+        join.foreignTable = foreignTable;
+        join.foreignColumn = "fk" + mapping.joins.size();
+        join.primaryTable = primaryTable;
+        join.primaryColumn = "id";
+        mapping.joins.add(join);
+
+        return join;
+    }
+
+    /**
+     * The previous implementation of Mapping.findJoins().
+     */
+    private static Join[] findJoinsPrevious(Set<Join> joins, String table1, String table2) {
+        Join join1 = findJoinPrevious(joins, table1, table2);
+        if (join1 != null)
+            return new Join[] {join1};
+
+        for (Join join : joins) {
+            join1 = null;
+            if (table1.equals(join.foreignTable))
+                join1 = findJoinPrevious(joins, join.primaryTable, table2);
+            else if (table1.equals(join.primaryTable))
+                join1 = findJoinPrevious(joins, join.foreignTable, table2);
+            if (join1 != null)
+                return new Join[] {join, join1};
+        }
+
+        return null;
+    }
+
+    private static Join findJoinPrevious(Set<Join> joins, String table1, String table2) {
+        for (Join join : joins) {
+            if (table1.equals(join.foreignTable) && table2.equals(join.primaryTable)
+                    || table1.equals(join.primaryTable) && table2.equals(join.foreignTable))
+                return join;
+        }
+
+        return null;
+    }
+}
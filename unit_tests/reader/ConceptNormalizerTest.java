@@ -0,0 +1,231 @@
+package reader;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ConceptNormalizerTest {
+    // the number of rows of the test table, which is more than one batch
+    private static final int ROWS = 25000;
+
+    // the database for the test table
+    private File db;
+    private Connection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+
+        db = File.createTempFile("normalizer", ".sqlite");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (conn != null)
+            conn.close();
+        db.delete();
+    }
+
+    /**
+     * Tests that InstanceTable numbers the instances in the order in which
+     * they are added and finds them again.  Null values and blank Strings are
+     * different values.
+     */
+    @Test
+    public void testInstanceTable() {
+        ConceptNormalizer.InstanceTable instances = new ConceptNormalizer.InstanceTable();
+        String[] values = {"a", "b"};
+
+        assertEquals(0, instances.size());
+        assertEquals(-1, instances.find(values));
+
+        assertEquals(0, instances.getNumber(values));
+        assertEquals(1, instances.getNumber(new String[] {"a", ""}));
+        assertEquals(2, instances.getNumber(new String[] {"a", null}));
+        assertEquals(3, instances.getNumber(new String[] {"", ""}));
+        assertEquals(0, instances.getNumber(new String[] {"a", "b"}));
+        assertEquals(2, instances.getNumber(new String[] {"a", null}));
+        assertEquals(4, instances.size());
+
+        // The values are copied when an instance is added.
+        values[0] = "c";
+        assertArrayEquals(new String[] {"a", "b"}, instances.get(0));
+        assertEquals(-1, instances.find(values));
+        assertArrayEquals(new String[] {"a", null}, instances.get(2));
+
+        // Add enough instances for the hash table to grow several times.
+        for (int cnt = 0; cnt < 10000; cnt++)
+            assertEquals(cnt + 4, instances.getNumber(new String[] {"x" + cnt, "y" + (cnt % 7)}));
+        assertEquals(10004, instances.size());
+        for (int cnt = 0; cnt < 10000; cnt++)
+            assertEquals(cnt + 4, instances.find(new String[] {"x" + cnt, "y" + (cnt % 7)}));
+        assertEquals(3, instances.find(new String[] {"", ""}));
+        assertEquals(-1, instances.find(new String[] {"x1", "y2"}));
+        assertTrue(instances.getMemory() > 0);
+    }
+
+    /**
+     * Tests that concepts that are spilled because their instances do not fit
+     * in the memory budget are normalized in the database with the same
+     * result as concepts whose instances are kept in memory.
+     */
+    @Test
+    public void testSpilledConcepts() throws Exception {
+        ConceptNormalizer normalizer = createNormalizer();
+        normalizer.normalize();
+        assertTrue(normalizer.getSpilledConcepts().isEmpty());
+        List<String> inmemory = getTables();
+
+        normalizer = createNormalizer();
+        normalizer.setMemoryBudget(0);
+        normalizer.normalize();
+        assertEquals(Arrays.asList("locationID", "eventID", "taxonID"),
+                normalizer.getSpilledConcepts());
+        List<String> spilled = getTables();
+        assertEquals(inmemory, spilled);
+
+        // With a smaller budget, only the taxa, which have the most
+        // instances, are spilled.
+        normalizer = createNormalizer();
+        normalizer.setMemoryBudget(150000);
+        normalizer.normalize();
+        assertEquals(Arrays.asList("taxonID"), normalizer.getSpilledConcepts());
+        assertEquals(inmemory, getTables());
+
+        // Check the first locations.  The blank location got the ID 1 but
+        // was deleted, and null values come before blank Strings.
+        int location = inmemory.indexOf("-- location");
+        assertTrue(location >= 0);
+        assertEquals("2|Argentina|null|", inmemory.get(location + 1));
+        assertEquals("3|Argentina||", inmemory.get(location + 2));
+        assertEquals("4|Argentina|Chaco|", inmemory.get(location + 3));
+    }
+
+    /**
+     * Tests that numbering the instances of the concepts in parallel gives
+     * the same tables as numbering them on one thread.
+     */
+    @Test
+    public void testParallelism() throws Exception {
+        ConceptNormalizer normalizer = createNormalizer();
+        normalizer.setParallelism(1);
+        normalizer.normalize();
+        List<String> serial = getTables();
+
+        normalizer = createNormalizer();
+        normalizer.setParallelism(4);
+        normalizer.normalize();
+        assertEquals(serial, getTables());
+
+        // Numbering in parallel also works with spilled concepts, which are
+        // not numbered at all.
+        normalizer = createNormalizer();
+        normalizer.setParallelism(4);
+        normalizer.setMemoryBudget(150000);
+        normalizer.normalize();
+        assertEquals(serial, getTables());
+    }
+
+    /**
+     * Creates a new main table with random values for three concepts, and a
+     * ConceptNormalizer for the table.  The "year" column is an INTEGER
+     * column.  Some rows have blank or null values for all location terms.
+     */
+    private ConceptNormalizer createNormalizer() throws Exception {
+        if (conn != null)
+            conn.close();
+        db.delete();
+        conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE main (occurrenceID, country, stateProvince, "
+                + "year INTEGER, month, scientificName, locationID, eventID, taxonID)");
+        stmt.close();
+
+        String[] countries = {"Argentina", "Brazil", "Chile"};
+        String[] states = {"Chaco", "Salta", "", "Norte"};
+        Random random = new Random(1);
+        PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO main VALUES (?, ?, ?, ?, ?, ?, NULL, NULL, NULL)");
+        conn.setAutoCommit(false);
+        for (int row = 0; row < ROWS; row++) {
+            String country = countries[random.nextInt(countries.length)];
+            String state = states[random.nextInt(states.length)];
+            int locationkind = random.nextInt(20);
+            if (locationkind == 0)
+                country = state = "";
+            else if (locationkind == 1)
+                state = null;
+
+            pstmt.setInt(1, row + 1);
+            pstmt.setString(2, country);
+            pstmt.setString(3, state);
+            if (random.nextInt(10) == 0)
+                pstmt.setString(4, "");
+            else
+                pstmt.setInt(4, 1950 + random.nextInt(60));
+            pstmt.setString(5, Integer.toString(1 + random.nextInt(12)));
+            pstmt.setString(6, "Species " + random.nextInt(3000));
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+        pstmt.close();
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        HashMap<String, String> coltypes = new HashMap<String, String>();
+        coltypes.put("year", "INTEGER");
+        ConceptNormalizer normalizer = new ConceptNormalizer(conn, "main", coltypes);
+        normalizer.addConcept("locationID", Arrays.asList("country", "stateProvince"));
+        normalizer.addConcept("eventID", Arrays.asList("year", "month"));
+        normalizer.addConcept("taxonID", Arrays.asList("scientificName"));
+
+        return normalizer;
+    }
+
+    /**
+     * Lists the rows of all tables in the database.
+     */
+    private List<String> getTables() throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+
+        ArrayList<String> tables = new ArrayList<String>();
+        ResultSet rs = stmt.executeQuery(
+                "SELECT name FROM sqlite_master WHERE type='table' ORDER BY name");
+        while (rs.next())
+            tables.add(rs.getString(1));
+        rs.close();
+
+        for (String table : tables) {
+            rows.add("-- " + table);
+            rs = stmt.executeQuery("SELECT * FROM \"" + table + "\" ORDER BY rowid");
+            int colcnt = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                String row = "";
+                for (int col = 1; col <= colcnt; col++)
+                    row += rs.getString(col) + "|";
+                rows.add(row);
+            }
+            rs.close();
+        }
+        stmt.close();
+
+        return rows;
+    }
+}
@@ -0,0 +1,131 @@
+package reader;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reader.plugins.TabularDataReader;
+
+
+/**
+ * Tests NormalizingInserter by loading Darwin Core archives with it and with
+ * DwCAFixer, which must give exactly the same tables.
+ */
+public class NormalizingInserterTest {
+    private ReaderManager rm;
+
+    // the databases for the archives loaded by DwCAFixer and by the
+    // normalizing loader
+    private File fixerdb, loaderdb;
+
+    // Set this to the location of the test data.
+    private String testdatadir = "testdata";
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+
+        rm = new ReaderManager();
+        rm.loadReaders();
+
+        fixerdb = File.createTempFile("fixer", ".sqlite");
+        loaderdb = File.createTempFile("loader", ".sqlite");
+    }
+
+    @After
+    public void tearDown() {
+        fixerdb.delete();
+        loaderdb.delete();
+    }
+
+    /**
+     * Tests that the normalizing loader creates the same tables as
+     * DwCAFixer, including the IDs of the concept instances.  Only the
+     * archives without ID columns have concepts to normalize.
+     */
+    @Test
+    public void testSameTablesAsFixer() throws Exception {
+        String[] archives = {
+            "dwca-4_classes.zip", "dwca-all_classes.zip", "dwca-mixed_classes-IDs.zip",
+            "dwca-mixed_classes-no_IDs.zip", "noidInput.zip"
+        };
+
+        for (String archive : archives) {
+            List<String> fixed = getTables(archive, false, fixerdb);
+            List<String> loaded = getTables(archive, true, loaderdb);
+
+            assertEquals(archive, fixed, loaded);
+        }
+    }
+
+    /**
+     * Tests the IDs of the concept instances of an archive with a row that
+     * has blank values for all of the event terms.  DwCAFixer numbers the
+     * blank event like any other instance and then deletes it, so the only
+     * event does not get the ID 1.
+     */
+    @Test
+    public void testBlankInstance() throws Exception {
+        List<String> loaded = getTables("dwca-mixed_classes-no_IDs.zip", true, loaderdb);
+
+        int event = loaded.indexOf("-- event");
+        assertTrue(event >= 0);
+        assertEquals("2|1959|6|4|04 JUN 1959|", loaded.get(event + 1));
+        assertEquals("-- geologicalContext", loaded.get(event + 2));
+
+        int location = loaded.indexOf("-- location");
+        assertEquals("1|USA|Arkansas|Madison|", loaded.get(location + 1));
+        assertEquals("2|USA|Arkansas|Washington|", loaded.get(location + 2));
+    }
+
+    /**
+     * Loads an archive and lists the rows of all tables in the database.
+     */
+    private List<String> getTables(String archive, boolean normalizingloader, File db)
+            throws Exception {
+        db.delete();
+        TabularDataReader reader = rm.openFile(testdatadir + "/" + archive);
+        TabularDataConverter tdc = new TabularDataConverter(reader, "jdbc:sqlite:" + db.getPath());
+        tdc.setNormalizingLoader(normalizingloader);
+        tdc.convert();
+        reader.closeFile();
+
+        ArrayList<String> rows = new ArrayList<String>();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            ArrayList<String> tables = new ArrayList<String>();
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT name FROM sqlite_master WHERE type='table' ORDER BY name");
+            while (rs.next())
+                tables.add(rs.getString(1));
+            rs.close();
+
+            for (String table : tables) {
+                rows.add("-- " + table);
+                rs = stmt.executeQuery("SELECT * FROM \"" + table + "\" ORDER BY rowid");
+                int colcnt = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    String row = "";
+                    for (int col = 1; col <= colcnt; col++)
+                        row += rs.getString(col) + "|";
+                    rows.add(row);
+                }
+                rs.close();
+            }
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+
+        return rows;
+    }
+}
@@ -120,6 +120,21 @@ public class ReaderManagerTest {
         assertEquals("DwCA", reader.getFormatString());
     }
 
+    /**
+     * Tests FileSignature.detect(), which ReaderManager uses to decide which
+     * readers should test a file.
+     */
+    @Test
+    public void testDetectSignature() {
+        assertEquals(FileSignature.TEXT, FileSignature.detect(testdatadir + "/test.csv"));
+        assertEquals(FileSignature.ODF, FileSignature.detect(testdatadir + "/test.ods"));
+        assertEquals(FileSignature.OLE2, FileSignature.detect(testdatadir + "/test.xls"));
+        assertEquals(FileSignature.OOXML, FileSignature.detect(testdatadir + "/test.xlsx"));
+        assertEquals(FileSignature.DIRECTORY, FileSignature.detect(testdatadir + "/test-dwca"));
+        assertEquals(FileSignature.ZIP, FileSignature.detect(testdatadir + "/test.zip"));
+        assertEquals(FileSignature.UNKNOWN, FileSignature.detect(testdatadir + "/nonexistent"));
+    }
+
     /**
      * Tests openFile(filepath, formatstring) method of ReaderManager.
      */
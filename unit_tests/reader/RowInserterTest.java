@@ -0,0 +1,207 @@
+package reader;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class RowInserterTest {
+    // the number of rows of the test table, which is more than the sample
+    private static final int ROWS = 2000;
+
+    // the columns of the test table
+    private static final List<String> COLNAMES = Arrays.asList(
+            "id", "zeros", "decimal", "big", "blank", "text");
+
+    // the database for the test table
+    private File db;
+    private Connection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+
+        db = File.createTempFile("inserter", ".sqlite");
+        conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.close();
+        db.delete();
+    }
+
+    /**
+     * Tests which values are recognized as canonical integers.
+     */
+    @Test
+    public void testIsCanonicalInteger() {
+        String[] canonical = {
+            "0", "7", "-7", "42", "1000000", "9223372036854775807", "-9223372036854775808"
+        };
+        String[] noncanonical = {
+            null, "", "-", "-0", "00", "007", "+7", "7.0", " 7", "7 ", "1e3", "NA",
+            "9223372036854775808", "-9223372036854775809", "9999999999999999999",
+            "10000000000000000000"
+        };
+
+        for (String value : canonical)
+            assertTrue(value, RowInserter.isCanonicalInteger(value));
+        for (String value : noncanonical)
+            assertFalse(value, RowInserter.isCanonicalInteger(value));
+    }
+
+    /**
+     * Tests that columns whose sampled values are integers become INTEGER
+     * columns, and that columns with later values that do not fit in an
+     * INTEGER column (leading zeros, decimals, and integers that overflow 64
+     * bits) are turned back into untyped columns only when the load is
+     * finished.  The values read back from the table must not change.
+     */
+    @Test
+    public void testSampleThenUntype() throws Exception {
+        for (RowInserter.Mode mode : RowInserter.Mode.values()) {
+            List<String[]> rows = createRows();
+            createTable();
+
+            Statement stmt = conn.createStatement();
+            stmt.execute("BEGIN TRANSACTION");
+            RowInserter inserter = new RowInserter(conn, "test", COLNAMES.size(), mode);
+            inserter.setTypedColumns(COLNAMES);
+            for (String[] row : rows)
+                inserter.insert(row);
+
+            // The table has not been retyped yet.
+            assertEquals(Arrays.asList("test", "triplifier_rest_test"), getTableNames());
+            assertArrayEquals(
+                    new String[] {"INTEGER", "INTEGER", "INTEGER", "INTEGER", "INTEGER", ""},
+                    getColumnTypes());
+
+            inserter.finish();
+            stmt.execute("COMMIT");
+            stmt.close();
+
+            String msg = mode.toString();
+            assertEquals(msg, Arrays.asList("test"), getTableNames());
+            assertArrayEquals(msg, new String[] {"INTEGER", "", "", "", "", ""}, getColumnTypes());
+            assertEquals(msg, "[true, false, false, false, false, false]",
+                    Arrays.toString(inserter.getIntegerColumns()));
+            assertEquals(msg, ROWS, inserter.getRowCount());
+
+            // The values are read back unchanged and in the same order.  The
+            // values of the untyped columns are all text.
+            ResultSet rs = conn.createStatement().executeQuery("SELECT *, typeof(id), "
+                    + "typeof(zeros), typeof(big) FROM test ORDER BY rowid");
+            for (String[] row : rows) {
+                assertTrue(rs.next());
+                for (int col = 0; col < COLNAMES.size(); col++)
+                    assertEquals(msg, row[col], rs.getString(col + 1));
+                assertEquals(msg, "integer", rs.getString(7));
+                assertEquals(msg, "text", rs.getString(8));
+                assertEquals(msg, "text", rs.getString(9));
+            }
+            assertFalse(rs.next());
+            rs.close();
+        }
+    }
+
+    /**
+     * Tests that INTEGER columns keep their type if all values fit, without
+     * any rest table.
+     */
+    @Test
+    public void testNoUntyping() throws Exception {
+        createTable();
+
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN TRANSACTION");
+        RowInserter inserter = new RowInserter(conn, "test", COLNAMES.size());
+        inserter.setTypedColumns(COLNAMES);
+        for (int row = 0; row < ROWS; row++)
+            inserter.insert(new String[] {
+                Integer.toString(row), "1", "2", "3", row % 2 == 0 ? "" : "4", "text"
+            });
+        assertEquals(Arrays.asList("test"), getTableNames());
+        inserter.finish();
+        stmt.execute("COMMIT");
+        stmt.close();
+
+        assertArrayEquals(new String[] {"INTEGER", "INTEGER", "INTEGER", "INTEGER", "INTEGER", ""},
+                getColumnTypes());
+        assertEquals("[true, true, true, true, true, false]",
+                Arrays.toString(inserter.getIntegerColumns()));
+    }
+
+    /**
+     * Creates the rows of the test table.  Within the sample, all columns
+     * except "text" have integer values, and "blank" only has blanks and
+     * integers.  After the sample, "zeros" gets a value with a leading zero,
+     * "decimal" gets a decimal value, and "big" gets a value that does not
+     * fit in 64 bits.
+     */
+    private List<String[]> createRows() {
+        List<String[]> rows = new ArrayList<String[]>();
+
+        for (int row = 0; row < ROWS; row++) {
+            String[] values = {
+                Integer.toString(row), Integer.toString(row % 10), Integer.toString(-row - 1),
+                Long.toString(Long.MAX_VALUE - row), row % 3 == 0 ? "" : "5", "row " + row
+            };
+            if (row == 600)
+                values[1] = "007";
+            if (row == 900)
+                values[2] = "1.5";
+            if (row == 1500)
+                values[3] = "9223372036854775808";
+            if (row == 1800)
+                values[4] = "00";
+            rows.add(values);
+        }
+
+        return rows;
+    }
+
+    private void createTable() throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS test");
+        stmt.executeUpdate("CREATE TABLE test (id, zeros, decimal, big, blank, text)");
+        stmt.close();
+    }
+
+    private List<String> getTableNames() throws Exception {
+        List<String> names = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(
+                "SELECT name FROM sqlite_master WHERE type='table' ORDER BY name");
+        while (rs.next())
+            names.add(rs.getString(1));
+        rs.close();
+        stmt.close();
+
+        return names;
+    }
+
+    private String[] getColumnTypes() throws Exception {
+        List<String> types = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(test)");
+        while (rs.next())
+            types.add(rs.getString("type"));
+        rs.close();
+        stmt.close();
+
+        return types.toArray(new String[types.size()]);
+    }
+}
@@ -0,0 +1,287 @@
+package reader;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reader.plugins.MultiTableReader;
+import reader.plugins.TabularDataReader;
+
+
+public class TabularDataConverterTest {
+    private ReaderManager rm;
+
+    // the destination database of the conversions
+    private File db;
+
+    // Set this to the location of the test data.
+    private String testdatadir = "testdata";
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+
+        rm = new ReaderManager();
+        rm.loadReaders();
+
+        db = File.createTempFile("converter", ".sqlite");
+    }
+
+    @After
+    public void tearDown() {
+        db.delete();
+    }
+
+    /**
+     * Tests that converting the tables of data sources concurrently gives
+     * the same tables as converting them one after the other.
+     */
+    @Test
+    public void testConcurrentTables() throws Exception {
+        String[] files = {
+            "test.zip", "dwca-4_classes.zip", "dwca-mixed_classes-IDs.zip",
+            "dwca-mixed_classes-no_IDs.zip", "test.xls", "test.xlsx"
+        };
+
+        for (String file : files) {
+            TabularDataReader reader = rm.openFile(testdatadir + "/" + file);
+            List<String> sequential = getTables(reader, false, true);
+            reader.closeFile();
+
+            reader = rm.openFile(testdatadir + "/" + file);
+            List<String> concurrent = getTables(reader, true, true);
+            reader.closeFile();
+
+            assertEquals(file, sequential, concurrent);
+        }
+
+        List<String> sequential = getTables(new TestTables(4, 3000, -1), false, true);
+        List<String> concurrent = getTables(new TestTables(4, 3000, -1), true, true);
+        assertEquals(sequential, concurrent);
+        assertEquals("-- table1", concurrent.get(0));
+        assertEquals("1|name 1|0|", concurrent.get(1));
+        assertEquals(3 * 3001, concurrent.indexOf("-- table4"));
+        assertEquals("3000|name 8|9000|", concurrent.get(4 * 3001 - 1));
+    }
+
+    /**
+     * Tests that if the conversion of one table fails during a concurrent
+     * conversion, the table is named in the exception and no temporary table
+     * files are left behind.
+     */
+    @Test
+    public void testFailingTable() throws Exception {
+        List<String> tablefiles = getTemporaryTableFiles();
+
+        try {
+            getTables(new TestTables(4, 3000, 2), true, false);
+            fail("The conversion did not fail.");
+        } catch (SQLException e) {
+            assertEquals("Could not convert the table table3.", e.getMessage());
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(tablefiles, getTemporaryTableFiles());
+    }
+
+    /**
+     * Tests that loading tables with a separate reader thread gives the same
+     * rows in the same order as loading them on one thread.
+     */
+    @Test
+    public void testPipelined() throws Exception {
+        String[] files = {
+            "test.csv", "test-multiline.csv", "test.ods", "test.xls", "test.xlsx", "test.zip"
+        };
+
+        for (String file : files) {
+            TabularDataReader reader = rm.openFile(testdatadir + "/" + file);
+            List<String> unpipelined = getTables(reader, false, false);
+            reader.closeFile();
+
+            reader = rm.openFile(testdatadir + "/" + file);
+            List<String> pipelined = getTables(reader, false, true);
+            reader.closeFile();
+
+            assertEquals(file, unpipelined, pipelined);
+        }
+
+        // These tables have many more rows than fit in the pipeline's
+        // batches.
+        List<String> unpipelined = getTables(new TestTables(2, 20000, -1), false, false);
+        List<String> pipelined = getTables(new TestTables(2, 20000, -1), false, true);
+        assertEquals(unpipelined, pipelined);
+        assertEquals("20000|name 8|20000|", pipelined.get(2 * 20001 - 1));
+    }
+
+    /**
+     * Tests that if the reader fails while a table is loaded with a separate
+     * reader thread, convert() throws the reader's exception instead of
+     * waiting for more rows.
+     */
+    @Test(timeout = 60000)
+    public void testPipelinedReaderFailure() throws Exception {
+        try {
+            getTables(new TestTables(2, 20000, 1), false, true);
+            fail("The conversion did not fail.");
+        } catch (SQLException e) {
+            assertEquals("Could not read the source data.", e.getMessage());
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * Converts a data source and lists the rows of all tables in the
+     * destination database.
+     */
+    private List<String> getTables(TabularDataReader reader, boolean concurrenttables,
+            boolean pipelined) throws Exception {
+        db.delete();
+        TabularDataConverter tdc = new TabularDataConverter(reader, "jdbc:sqlite:" + db.getPath());
+        tdc.setConcurrentTables(concurrenttables);
+        tdc.setPipelined(pipelined);
+        tdc.setParallelism(4);
+        tdc.convert();
+
+        ArrayList<String> rows = new ArrayList<String>();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            ArrayList<String> tables = new ArrayList<String>();
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT name FROM sqlite_master WHERE type='table' ORDER BY name");
+            while (rs.next())
+                tables.add(rs.getString(1));
+            rs.close();
+
+            for (String table : tables) {
+                rows.add("-- " + table);
+                rs = stmt.executeQuery("SELECT * FROM \"" + table + "\" ORDER BY rowid");
+                int colcnt = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    String row = "";
+                    for (int col = 1; col <= colcnt; col++)
+                        row += rs.getString(col) + "|";
+                    rows.add(row);
+                }
+                rs.close();
+            }
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+
+        return rows;
+    }
+
+    /**
+     * Lists the temporary files of concurrently converted tables.
+     */
+    private List<String> getTemporaryTableFiles() {
+        ArrayList<String> names = new ArrayList<String>();
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+
+        if (files != null) {
+            for (String name : files) {
+                if (name.startsWith("triplifier_table"))
+                    names.add(name);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * A data source with several generated tables.  Each table has a header
+     * row and a number of data rows.  If a table to fail is given, reading
+     * that table throws an IllegalStateException halfway through.
+     */
+    static class TestTables implements MultiTableReader {
+        private final int tablecnt;
+        private final int rowcnt;
+        private final int failtable;
+        private int table = -1;
+        private int row = 0;
+
+        TestTables(int tablecnt, int rowcnt, int failtable) {
+            this.tablecnt = tablecnt;
+            this.rowcnt = rowcnt;
+            this.failtable = failtable;
+        }
+
+        public TabularDataReader openCopy() {
+            return new TestTables(tablecnt, rowcnt, failtable);
+        }
+
+        public String getFormatString() {
+            return "TEST";
+        }
+
+        public String getShortFormatDesc() {
+            return "test tables";
+        }
+
+        public String getFormatDescription() {
+            return "generated test tables";
+        }
+
+        public String[] getFileExtensions() {
+            return new String[0];
+        }
+
+        public boolean testFile(String filepath) {
+            return false;
+        }
+
+        public boolean openFile(String filepath) {
+            return false;
+        }
+
+        public boolean hasNextTable() {
+            return table + 1 < tablecnt;
+        }
+
+        public void moveToNextTable() {
+            table++;
+            row = 0;
+        }
+
+        public String getCurrentTableName() {
+            return "table" + (table + 1);
+        }
+
+        public boolean tableHasNextRow() {
+            return table >= 0 && table < tablecnt && row <= rowcnt;
+        }
+
+        public String[] tableGetNextRow() {
+            if (table == failtable && row == rowcnt / 2)
+                throw new IllegalStateException("Could not read row " + row + ".");
+
+            String[] values;
+            if (row == 0)
+                values = new String[] {"id", "name", "count"};
+            else
+                values = new String[] {
+                    Integer.toString(row), "name " + (row % 17), Integer.toString(table * row)
+                };
+            row++;
+
+            return values;
+        }
+
+        public void closeFile() {
+            table = tablecnt;
+        }
+    }
+}
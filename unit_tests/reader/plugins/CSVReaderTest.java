@@ -1,5 +1,10 @@
 package reader.plugins;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -81,5 +86,163 @@ public class CSVReaderTest extends ReaderTest {
         String[] exp_tnames = {"table1"};
         
         testReadData(reader, testdatadir + "/test.csv", exp_data, exp_tnames);
-    }    
+    }
+
+    /**
+     * Tests reading a UTF-8 file with a byte order mark, CRLF line endings,
+     * and quoted fields that span multiple lines.
+     */
+    @Test
+    public void testReadMultilineData() {
+        String[][][] exp_data = {
+            {
+                {"id","name","notes"},
+                {"1","M\u00fcller, Hans","line one\r\nline two"},
+                {"2","\u0141\u00f3d\u017a","say \"hi\""},
+                {"3","",""},
+                {"4","","last"}
+            }
+        };
+        
+        String[] exp_tnames = {"table1"};
+        
+        testReadData(reader, testdatadir + "/test-multiline.csv", exp_data, exp_tnames);
+    }
+
+    /**
+     * Tests readBatch method of CSVReader.  The batch is smaller than the
+     * table, so it must be refilled, and rows are padded or truncated to the
+     * number of columns in the batch.
+     */
+    @Test
+    public void testReadBatch() {
+        String[][] exp_rows = {
+            {"data1","quoted string","d1"},
+            {"data2","another \"quoted\" string","something_else"},
+            {"data3","quoted string with a comma (\",\")","last value"},
+            {"data4","row with a blank",""}
+        };
+        
+        assertTrue(reader.openFile(testdatadir + "/test.csv"));
+        reader.moveToNextTable();
+        reader.tableGetNextRow();
+        
+        RowBatch batch = new RowBatch(3, 3);
+        int rowcnt = 0;
+        int cnt;
+        while ((cnt = reader.readBatch(batch)) > 0) {
+            assertTrue(cnt <= 3);
+            for (int row = 0; row < cnt; row++, rowcnt++) {
+                for (int col = 0; col < 3; col++)
+                    assertEquals(exp_rows[rowcnt][col], batch.get(row, col));
+            }
+        }
+        
+        assertEquals(exp_rows.length, rowcnt);
+        assertFalse(reader.tableHasNextRow());
+        reader.closeFile();
+    }
+
+    /**
+     * Tests that CSVParser returns the same records no matter how the file is
+     * split into memory-mapped windows.  Very small windows force records and
+     * quoted fields to cross window boundaries.
+     */
+    @Test
+    public void testParserWindowBoundaries() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(testdatadir + "/test-multiline.csv", "r");
+        FileChannel channel = file.getChannel();
+        
+        CSVParser parser = new CSVParser(channel, 0, channel.size());
+        java.util.ArrayList<String[]> expected = new java.util.ArrayList<String[]>();
+        while (parser.hasNext())
+            expected.add(parser.next());
+        
+        for (int winsize = 1; winsize < 16; winsize++) {
+            parser = new CSVParser(channel, 0, channel.size(), winsize);
+            for (String[] exp_row : expected) {
+                assertTrue(parser.hasNext());
+                assertArrayEquals(exp_row, parser.next());
+            }
+            assertFalse(parser.hasNext());
+        }
+        
+        file.close();
+    }
+
+    /**
+     * Tests that splitting a file at record boundaries and parsing each chunk
+     * separately gives the same records as parsing the whole file at once,
+     * even when quoted fields contain line breaks.
+     */
+    @Test
+    public void testFindRecordBoundaries() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(testdatadir + "/test-multiline.csv", "r");
+        FileChannel channel = file.getChannel();
+        
+        CSVParser parser = new CSVParser(channel, 0, channel.size());
+        java.util.ArrayList<String[]> expected = new java.util.ArrayList<String[]>();
+        while (parser.hasNext())
+            expected.add(parser.next());
+        
+        for (int chunksize = 1; chunksize < 64; chunksize++) {
+            long[] bounds = CSVParser.findRecordBoundaries(channel, 0, channel.size(), chunksize);
+            assertEquals(0, bounds[0]);
+            assertEquals(channel.size(), bounds[bounds.length - 1]);
+            
+            int rowcnt = 0;
+            for (int cnt = 0; cnt < bounds.length - 1; cnt++) {
+                parser = new CSVParser(channel, bounds[cnt], bounds[cnt + 1]);
+                while (parser.hasNext())
+                    assertArrayEquals(expected.get(rowcnt++), parser.next());
+            }
+            assertEquals(expected.size(), rowcnt);
+        }
+        
+        file.close();
+    }
+
+    /**
+     * Tests that a record that does not fit in the largest window, such as a
+     * record with an unterminated quote, makes CSVParser throw an exception
+     * instead of trying to map ever larger windows.
+     */
+    @Test
+    public void testParserRecordTooLarge() throws Exception {
+        File csvfile = File.createTempFile("unterminated", ".csv");
+        FileWriter writer = new FileWriter(csvfile);
+        writer.write("id,notes\n1,\"never closed\n");
+        for (int cnt = 0; cnt < 20; cnt++)
+            writer.write(cnt + ",more text\n");
+        writer.close();
+        
+        RandomAccessFile file = new RandomAccessFile(csvfile, "r");
+        FileChannel channel = file.getChannel();
+        
+        try {
+            CSVParser parser = new CSVParser(channel, 0, channel.size(), 4);
+            parser.setMaxWindowSize(64);
+            assertArrayEquals(new String[] {"id","notes"}, parser.next());
+            try {
+                parser.next();
+                fail("A record larger than the largest window was parsed.");
+            } catch (IOException e) {
+                assertEquals("The record at byte 9 is larger than 64 bytes or has an "
+                        + "unterminated quote.", e.getMessage());
+            }
+            
+            // If the window may grow to the end of the file, the quoted field
+            // runs to the end of the file.
+            parser = new CSVParser(channel, 0, channel.size(), 4);
+            parser.setMaxWindowSize(1024);
+            parser.next();
+            String[] row = parser.next();
+            assertEquals(2, row.length);
+            assertTrue(row[1].endsWith("19,more text\n"));
+            assertFalse(parser.hasNext());
+        } finally {
+            file.close();
+            csvfile.delete();
+        }
+    }
 }
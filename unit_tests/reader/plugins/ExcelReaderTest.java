@@ -1,6 +1,17 @@
 package reader.plugins;
 
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.*;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -99,5 +110,59 @@ public class ExcelReaderTest extends ReaderTest {
         
         testReadData(reader, testdatadir + "/test.xls", exp_data, exp_tnames);
         testReadData(reader, testdatadir + "/test.xlsx", exp_data, exp_tnames);
-    }    
+    }
+
+    /**
+     * Tests that the results of formula cells are the same Strings that
+     * POI's DataFormatter gives for them when it evaluates the formulas,
+     * which is how ExcelReader read formula cells before it streamed the
+     * workbooks.
+     */
+    @Test
+    public void testFormulaResults() throws Exception {
+        testFormulaResults(testdatadir + "/test.xls");
+        testFormulaResults(testdatadir + "/test.xlsx");
+    }
+
+    /**
+     * Compares the formula results in the first sheet of a workbook with the
+     * values from DataFormatter.formatCellValue().  Rows are matched by
+     * their first value.
+     */
+    private void testFormulaResults(String datafile) throws Exception {
+        assertTrue(reader.openFile(datafile));
+        reader.moveToNextTable();
+        List<String[]> rows = new ArrayList<String[]>();
+        while (reader.tableHasNextRow())
+            rows.add(reader.tableGetNextRow());
+        reader.closeFile();
+
+        FileInputStream in = new FileInputStream(datafile);
+        Workbook wb = WorkbookFactory.create(in);
+        in.close();
+        Sheet sheet = wb.getSheetAt(0);
+        FormulaEvaluator fe = wb.getCreationHelper().createFormulaEvaluator();
+        DataFormatter df = new DataFormatter();
+
+        int formulacnt = 0;
+        for (Row poirow : sheet) {
+            for (Cell cell : poirow) {
+                if (cell.getCellType() != Cell.CELL_TYPE_FORMULA)
+                    continue;
+
+                String key = df.formatCellValue(poirow.getCell(0));
+                String[] row = null;
+                for (String[] candidate : rows) {
+                    if (candidate[0].equals(key))
+                        row = candidate;
+                }
+                assertNotNull(row);
+                assertEquals(df.formatCellValue(cell, fe), row[cell.getColumnIndex()]);
+                formulacnt++;
+            }
+        }
+
+        // a boolean, a numeric and a string formula
+        assertEquals(3, formulacnt);
+    }
 }